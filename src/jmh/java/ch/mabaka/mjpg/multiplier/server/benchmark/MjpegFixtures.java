@@ -0,0 +1,97 @@
+package ch.mabaka.mjpg.multiplier.server.benchmark;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+/**
+ * MJPEG streams the benchmarks run against.
+ * <p>
+ * A fixture is a multipart stream as sent by the cameras, with {@value #FRAMES} JPEG frames of roughly the requested
+ * size. The frames are real, decodable JPEGs of a noise image. Fixtures are recorded once into
+ * {@code target/jmh-fixtures} and reused by later runs, so all benchmarks and forks see the same bytes. To benchmark
+ * against a recording of an actual camera, pass {@code -Dmjpg.fixture=<file>} to the forks; the frame size parameter
+ * is then ignored.
+ */
+public final class MjpegFixtures {
+
+	public static final int FRAMES = 16;
+
+	public static final String BOUNDARY = "FRAME";
+
+	private static final Path FIXTURE_DIRECTORY = Path.of("target", "jmh-fixtures");
+
+	private MjpegFixtures() {
+	}
+
+	/**
+	 * @return the bytes of the multipart stream with frames of about the given size
+	 */
+	public static byte[] load(final int frameSize) {
+		try {
+			final String recording = System.getProperty("mjpg.fixture");
+			if (recording != null) {
+				return Files.readAllBytes(Path.of(recording));
+			}
+			final Path fixture = FIXTURE_DIRECTORY.resolve("frames-" + frameSize + ".mjpg");
+			if (!Files.exists(fixture)) {
+				Files.createDirectories(FIXTURE_DIRECTORY);
+				Files.write(fixture, record(frameSize));
+			}
+			return Files.readAllBytes(fixture);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * @return a single JPEG of about the given size
+	 */
+	public static byte[] jpeg(final int size) {
+		return jpeg(size, new Random(size));
+	}
+
+	private static byte[] record(final int frameSize) throws IOException {
+		final Random random = new Random(frameSize);
+		final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		for (int i = 0; i < FRAMES; i++) {
+			final byte[] jpeg = jpeg(frameSize, random);
+			stream.write(("--" + BOUNDARY + "\r\nContent-Type: image/jpeg\r\nContent-Length: " + jpeg.length
+					+ "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+			stream.write(jpeg);
+			stream.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+		}
+		return stream.toByteArray();
+	}
+
+	private static byte[] jpeg(final int size, final Random random) {
+		// noise hardly compresses, so the encoded size grows with the number of pixels
+		final int probeSide = 64;
+		final int probeSize = encode(probeSide, random).length;
+		final int side = (int) Math.max(8, probeSide * Math.sqrt((double) size / probeSize));
+		return encode(side, random);
+	}
+
+	private static byte[] encode(final int side, final Random random) {
+		final BufferedImage image = new BufferedImage(side, side, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < side; y++) {
+			for (int x = 0; x < side; x++) {
+				image.setRGB(x, y, random.nextInt(0x1000000));
+			}
+		}
+		try {
+			final ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+			ImageIO.write(image, "jpg", jpeg);
+			return jpeg.toByteArray();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+}
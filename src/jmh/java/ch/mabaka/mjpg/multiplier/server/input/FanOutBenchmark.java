@@ -0,0 +1,81 @@
+package ch.mabaka.mjpg.multiplier.server.input;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.mabaka.mjpg.multiplier.server.input.data.Frame;
+import ch.mabaka.mjpg.multiplier.server.input.data.FrameBufferPool;
+
+/**
+ * Fan-out through {@link FrameFanOut}: publishing a frame, and publishing it and handing it to every
+ * subscriber, without the socket writes. One operation is one frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FanOutBenchmark {
+
+	private static final int FRAME_SIZE = 100_000;
+
+	@Param({ "1", "10", "100", "1000" })
+	int subscribers;
+
+	private FrameBufferPool pool;
+
+	private FrameFanOut fanOut;
+
+	private final List<FrameSubscription> subscriptions = new ArrayList<>();
+
+	@Setup
+	public void setUp() {
+		pool = new FrameBufferPool(64L * 1024 * 1024);
+		fanOut = new FrameFanOut(32);
+		for (int i = 0; i < subscribers; i++) {
+			subscriptions.add(fanOut.subscribe());
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		fanOut.shutdown();
+	}
+
+	/**
+	 * Cost for the ingest thread, which does not depend on the number of subscribers.
+	 */
+	@Benchmark
+	public void publish() {
+		fanOut.publish(pool.allocate(FRAME_SIZE));
+	}
+
+	@Benchmark
+	public long publishAndDeliver() {
+		fanOut.publish(pool.allocate(FRAME_SIZE));
+		long delivered = 0;
+		for (FrameSubscription subscription : subscriptions) {
+			final Frame frame = subscription.poll();
+			if (frame != null) {
+				delivered += frame.getPartLength();
+				frame.release();
+			}
+		}
+		return delivered;
+	}
+}
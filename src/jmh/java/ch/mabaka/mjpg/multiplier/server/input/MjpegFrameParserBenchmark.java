@@ -0,0 +1,67 @@
+package ch.mabaka.mjpg.multiplier.server.input;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.mabaka.mjpg.multiplier.server.benchmark.MjpegFixtures;
+import ch.mabaka.mjpg.multiplier.server.input.data.Frame;
+import ch.mabaka.mjpg.multiplier.server.input.data.FrameBufferPool;
+
+/**
+ * Ingest path: parsing a fixture stream into pooled frames, fed in chunks as the reader thread gets them from the
+ * socket. One operation is a pass over the whole fixture.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MjpegFrameParserBenchmark {
+
+	@Param({ "20000", "100000", "1000000" })
+	int frameSize;
+
+	/**
+	 * Typical read sizes: a single TCP segment, the reader's buffer and a large socket read.
+	 */
+	@Param({ "1460", "16384", "65536" })
+	int chunkSize;
+
+	private byte[] fixture;
+
+	private MjpegFrameParser parser;
+
+	private long frames;
+
+	@Setup
+	public void setUp() {
+		fixture = MjpegFixtures.load(frameSize);
+		parser = new MjpegFrameParser(new FrameBufferPool(64L * 1024 * 1024), this::consume);
+	}
+
+	@Benchmark
+	public long parse() {
+		frames = 0;
+		for (int offset = 0; offset < fixture.length; offset += chunkSize) {
+			parser.feed(fixture, offset, Math.min(chunkSize, fixture.length - offset));
+		}
+		return frames;
+	}
+
+	private void consume(final Frame frame) {
+		frames++;
+		frame.release();
+	}
+}
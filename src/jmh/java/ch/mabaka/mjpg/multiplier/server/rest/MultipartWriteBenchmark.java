@@ -0,0 +1,125 @@
+package ch.mabaka.mjpg.multiplier.server.rest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.mabaka.mjpg.multiplier.server.benchmark.MjpegFixtures;
+import ch.mabaka.mjpg.multiplier.server.input.data.Frame;
+import ch.mabaka.mjpg.multiplier.server.input.data.FrameBufferPool;
+
+/**
+ * Multipart serialization: encoding a frame into its pre-encoded part once on ingest, writing the part for a viewer,
+ * and as baseline building the part headers for every viewer and frame.
+ * <p>
+ * The sink is a plain output stream, so {@link FrameWriter} moves the part through its transfer array. Tomcat's
+ * output stream takes the direct buffer without that extra copy, which makes {@code writePart} a pessimistic figure.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MultipartWriteBenchmark {
+
+	@Param({ "20000", "100000", "1000000" })
+	int frameSize;
+
+	private final OutputStream sink = new SocketBufferSink();
+
+	private FrameBufferPool pool;
+
+	private byte[] jpeg;
+
+	private Frame frame;
+
+	private FrameWriter frameWriter;
+
+	@Setup
+	public void setUp() {
+		pool = new FrameBufferPool(64L * 1024 * 1024);
+		jpeg = MjpegFixtures.jpeg(frameSize);
+		frame = pool.allocate(jpeg.length);
+		frame.put(0, jpeg, 0, jpeg.length);
+		frameWriter = new FrameWriter(sink);
+	}
+
+	@TearDown
+	public void tearDown() {
+		frame.release();
+	}
+
+	/**
+	 * Once per frame on the ingest thread.
+	 */
+	@Benchmark
+	public void encodePart() {
+		final Frame encoded = pool.allocate(jpeg.length);
+		encoded.put(0, jpeg, 0, jpeg.length);
+		encoded.release();
+	}
+
+	/**
+	 * Once per frame and viewer.
+	 */
+	@Benchmark
+	public void writePart() throws IOException {
+		frameWriter.write(frame.getPart());
+	}
+
+	/**
+	 * Once per frame and viewer when the headers are not pre-encoded.
+	 */
+	@Benchmark
+	public void writeHeadersPerFrame() throws IOException {
+		sink.write(("--" + Frame.BOUNDARY + "\r\n").getBytes(StandardCharsets.US_ASCII));
+		sink.write("Content-Type: image/jpeg\r\n".getBytes(StandardCharsets.US_ASCII));
+		sink.write(("Content-Length: " + jpeg.length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+		sink.write(jpeg);
+		sink.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+	}
+
+	/**
+	 * Copies everything into a fixed buffer like a socket send buffer, so both write paths pay for moving the bytes.
+	 */
+	private static final class SocketBufferSink extends OutputStream {
+
+		private final byte[] buffer = new byte[64 * 1024];
+
+		private int position;
+
+		@Override
+		public void write(final int b) {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(final byte[] data, final int offset, final int length) {
+			int written = 0;
+			while (written < length) {
+				if (position == buffer.length) {
+					position = 0;
+				}
+				final int count = Math.min(length - written, buffer.length - position);
+				System.arraycopy(data, offset + written, buffer, position, count);
+				position += count;
+				written += count;
+			}
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package ch.mabaka.mjpg.multiplier.server.util;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.mabaka.mjpg.multiplier.server.benchmark.MjpegFixtures;
+
+/**
+ * {@link MjpegInputStream#readFrame()}, which scans for the markers and decodes every frame. It accepts frames up to
+ * 100 KB only, so it runs against the small fixture. One operation is a pass over the whole fixture.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MjpegInputStreamBenchmark {
+
+	private static final int FRAME_SIZE = 20_000;
+
+	private byte[] fixture;
+
+	@Setup
+	public void setUp() {
+		fixture = MjpegFixtures.load(FRAME_SIZE);
+	}
+
+	@Benchmark
+	public int readFrames() throws IOException {
+		int frames = 0;
+		try (MjpegInputStream stream = new MjpegInputStream(new ByteArrayInputStream(fixture))) {
+			for (int i = 0; i < MjpegFixtures.FRAMES; i++) {
+				final BufferedImage image = stream.readFrame();
+				if (image != null) {
+					frames++;
+				}
+			}
+		}
+		return frames;
+	}
+}
@@ -0,0 +1,206 @@
+package ch.mabaka.mjpg.multiplier.server.loadtest;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Synthetic MJPEG camera serving {@code /stream.mjpg} on a local port.
+ * <p>
+ * Every frame is a real JPEG of the configured resolution. Right after the start of image marker a comment segment
+ * carries the {@link System#nanoTime()} at which the frame was sent, as {@value #TIMESTAMP_LENGTH} hex digits at
+ * offset {@value #TIMESTAMP_OFFSET}, so viewers in the same JVM can measure the end-to-end latency. Further comment
+ * segments pad the frame to the requested size.
+ */
+public class FakeMjpegCamera implements AutoCloseable {
+
+	static final int TIMESTAMP_OFFSET = 6;
+
+	static final int TIMESTAMP_LENGTH = 16;
+
+	private static final String BOUNDARY = "FRAME";
+
+	/**
+	 * Payload of a padding segment, small enough that its length field never contains an end of image marker.
+	 */
+	private static final int MAX_SEGMENT_PAYLOAD = 0xFE00;
+
+	/**
+	 * Order of the part headers; {@code TYPE_ONLY} omits the content length so the server has to search the end of
+	 * image marker.
+	 */
+	public enum HeaderOrder {
+		TYPE_LENGTH, LENGTH_TYPE, TYPE_ONLY
+	}
+
+	private final byte[] frameTemplate;
+
+	private final long frameIntervalNanos;
+
+	private final long jitterNanos;
+
+	private final HeaderOrder headerOrder;
+
+	private final HttpServer server;
+
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+
+	private volatile boolean running = true;
+
+	public FakeMjpegCamera(final int port, final int width, final int height, final int frameSize, final double fps,
+			final int jitterMillis, final HeaderOrder headerOrder) throws IOException {
+		this.frameTemplate = buildFrame(width, height, frameSize);
+		this.frameIntervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / fps);
+		this.jitterNanos = TimeUnit.MILLISECONDS.toNanos(jitterMillis);
+		this.headerOrder = headerOrder;
+		this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+		server.createContext("/stream.mjpg", this::stream);
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	public String getUrl() {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + "/stream.mjpg";
+	}
+
+	public int getFrameSize() {
+		return frameTemplate.length;
+	}
+
+	@Override
+	public void close() {
+		running = false;
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	private void stream(final HttpExchange exchange) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", "multipart/x-mixed-replace; boundary=" + BOUNDARY);
+		exchange.sendResponseHeaders(200, 0);
+		final byte[] frame = frameTemplate.clone();
+		final byte[] header = partHeader(frame.length);
+		final byte[] trailer = "\r\n".getBytes(StandardCharsets.US_ASCII);
+		final Random random = new Random();
+		long due = System.nanoTime();
+		try (OutputStream out = exchange.getResponseBody()) {
+			while (running) {
+				final long jitter = jitterNanos == 0 ? 0 : (long) ((random.nextDouble() * 2 - 1) * jitterNanos);
+				sleepUntil(due + jitter);
+				writeTimestamp(frame, System.nanoTime());
+				out.write(header);
+				out.write(frame);
+				out.write(trailer);
+				out.flush();
+				due += frameIntervalNanos;
+			}
+		} catch (IOException e) {
+			// the server disconnected
+		}
+	}
+
+	private byte[] partHeader(final int length) {
+		final String type = "Content-Type: image/jpeg\r\n";
+		final String contentLength = "Content-Length: " + length + "\r\n";
+		final String headers;
+		switch (headerOrder) {
+		case LENGTH_TYPE:
+			headers = contentLength + type;
+			break;
+		case TYPE_ONLY:
+			headers = type;
+			break;
+		default:
+			headers = type + contentLength;
+			break;
+		}
+		return ("--" + BOUNDARY + "\r\n" + headers + "\r\n").getBytes(StandardCharsets.US_ASCII);
+	}
+
+	static long readTimestamp(final byte[] jpeg) {
+		return Long.parseUnsignedLong(new String(jpeg, TIMESTAMP_OFFSET, TIMESTAMP_LENGTH, StandardCharsets.US_ASCII),
+				16);
+	}
+
+	private static void writeTimestamp(final byte[] frame, final long nanos) {
+		final String hex = String.format("%016x", nanos);
+		for (int i = 0; i < TIMESTAMP_LENGTH; i++) {
+			frame[TIMESTAMP_OFFSET + i] = (byte) hex.charAt(i);
+		}
+	}
+
+	private static void sleepUntil(final long nanos) {
+		long remaining;
+		while ((remaining = nanos - System.nanoTime()) > 0) {
+			try {
+				TimeUnit.NANOSECONDS.sleep(remaining);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * SOI, timestamp comment, padding comments up to the frame size, then the encoded image without its SOI.
+	 */
+	private static byte[] buildFrame(final int width, final int height, final int frameSize) {
+		final byte[] image = encode(width, height);
+		final ByteArrayOutputStream frame = new ByteArrayOutputStream();
+		frame.write(0xFF);
+		frame.write(0xD8);
+		writeComment(frame, TIMESTAMP_LENGTH);
+		int padding = frameSize - frame.size() - (image.length - 2);
+		while (padding > 4) {
+			final int payload = Math.min(MAX_SEGMENT_PAYLOAD, padding - 4);
+			writeComment(frame, payload);
+			padding -= payload + 4;
+		}
+		frame.write(image, 2, image.length - 2);
+		return frame.toByteArray();
+	}
+
+	private static void writeComment(final ByteArrayOutputStream frame, final int payload) {
+		frame.write(0xFF);
+		frame.write(0xFE);
+		frame.write((payload + 2) >> 8);
+		frame.write((payload + 2) & 0xFF);
+		for (int i = 0; i < payload; i++) {
+			frame.write('0');
+		}
+	}
+
+	private static byte[] encode(final int width, final int height) {
+		final BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		final Graphics2D graphics = image.createGraphics();
+		graphics.setPaint(new GradientPaint(0, 0, Color.DARK_GRAY, width, height, Color.ORANGE));
+		graphics.fillRect(0, 0, width, height);
+		graphics.dispose();
+		final Random random = new Random(width * 31L + height);
+		for (int i = 0; i < width * height / 16; i++) {
+			image.setRGB(random.nextInt(width), random.nextInt(height), random.nextInt(0x1000000));
+		}
+		try {
+			final ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+			ImageIO.write(image, "jpg", jpeg);
+			return jpeg.toByteArray();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+}
@@ -0,0 +1,208 @@
+package ch.mabaka.mjpg.multiplier.server.loadtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end load test on a single machine: a {@link FakeMjpegCamera} feeds the server under test, which is either
+ * started from a jar or already running, and {@link SimulatedViewer}s watch its stream. Reports frame latency
+ * percentiles, delivered frame rates per viewer and heap, GC and CPU of the server. Fails if any viewer has not
+ * received a single frame.
+ * <p>
+ * Options are passed as {@code --name=value}:
+ * <ul>
+ * <li>{@code server-jar}: jar to start, {@code server-args}: comma separated additional arguments for it,
+ * {@code server-port}</li>
+ * <li>{@code server}: base URL of an already running server instead, which must read from the camera URL</li>
+ * <li>{@code camera-port}, {@code width}, {@code height}, {@code frame-size} (0 for the encoded size), {@code fps},
+ * {@code jitter-ms}, {@code headers} (type-length, length-type or type-only)</li>
+ * <li>{@code viewers}, {@code slow-viewers}, {@code slow-rate} (bytes per second), {@code path}, {@code warmup} and
+ * {@code duration} in seconds</li>
+ * </ul>
+ */
+public final class LoadTest {
+
+	private static final Map<String, String> DEFAULTS = Map.ofEntries(Map.entry("server-port", "18180"),
+			Map.entry("server-args", ""), Map.entry("camera-port", "18181"), Map.entry("width", "1280"),
+			Map.entry("height", "720"), Map.entry("frame-size", "0"), Map.entry("fps", "15"),
+			Map.entry("jitter-ms", "0"), Map.entry("headers", "type-length"), Map.entry("viewers", "200"),
+			Map.entry("slow-viewers", "0"), Map.entry("slow-rate", "65536"), Map.entry("path", "/api/stream.mjpg"),
+			Map.entry("warmup", "5"), Map.entry("duration", "60"));
+
+	private final Map<String, String> options;
+
+	private LoadTest(final Map<String, String> options) {
+		this.options = options;
+	}
+
+	public static void main(final String[] args) throws Exception {
+		final Map<String, String> options = new HashMap<>(DEFAULTS);
+		for (String arg : args) {
+			final int separator = arg.indexOf('=');
+			if (!arg.startsWith("--") || separator < 0) {
+				throw new IllegalArgumentException("Expected --name=value: " + arg);
+			}
+			options.put(arg.substring(2, separator), arg.substring(separator + 1));
+		}
+		new LoadTest(options).run();
+		System.exit(0);
+	}
+
+	private void run() throws Exception {
+		final FakeMjpegCamera.HeaderOrder headerOrder = FakeMjpegCamera.HeaderOrder
+				.valueOf(option("headers").toUpperCase().replace('-', '_'));
+		try (FakeMjpegCamera camera = new FakeMjpegCamera(intOption("camera-port"), intOption("width"),
+				intOption("height"), intOption("frame-size"), Double.parseDouble(option("fps")),
+				intOption("jitter-ms"), headerOrder)) {
+			System.out.printf("Camera %s: %d bytes per frame at %s fps%n", camera.getUrl(), camera.getFrameSize(),
+					option("fps"));
+			Process server = null;
+			String baseUrl = options.get("server");
+			if (baseUrl == null) {
+				server = startServer(camera.getUrl());
+				baseUrl = "http://127.0.0.1:" + option("server-port");
+			}
+			try {
+				awaitStream(baseUrl);
+				runViewers(URI.create(baseUrl));
+			} finally {
+				if (server != null) {
+					server.destroy();
+					server.waitFor(10, TimeUnit.SECONDS);
+				}
+			}
+		}
+	}
+
+	private Process startServer(final String cameraUrl) throws IOException {
+		final String jar = options.get("server-jar");
+		if (jar == null) {
+			throw new IllegalArgumentException("Either --server-jar or --server is required");
+		}
+		final String java = ProcessHandle.current().info().command().orElse("java");
+		final List<String> command = new ArrayList<>(List.of(java, "-jar", jar, "--server.port=" + option("server-port"),
+				"--stream.url=" + cameraUrl, "--stream.sources=", "--stream.lazyConnect=false"));
+		if (!option("server-args").isBlank()) {
+			command.addAll(Arrays.asList(option("server-args").split(",")));
+		}
+		final File log = new File("target", "loadtest-server.log");
+		System.out.printf("Starting %s, log in %s%n", String.join(" ", command), log);
+		return new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(log).start();
+	}
+
+	/**
+	 * Wait until the server reports the camera stream as available.
+	 */
+	private static void awaitStream(final String baseUrl) throws InterruptedException {
+		final HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(1)).build();
+		final HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + "/api/status")).build();
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+		while (System.nanoTime() < deadline) {
+			try {
+				final HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+				if (response.statusCode() == 200 && response.body().contains("true")) {
+					return;
+				}
+			} catch (IOException e) {
+				// not started yet
+			}
+			Thread.sleep(500);
+		}
+		throw new IllegalStateException("Server at " + baseUrl + " did not connect to the camera within 60 seconds");
+	}
+
+	private void runViewers(final URI baseUri) throws Exception {
+		final int viewerCount = intOption("viewers");
+		final int slowViewerCount = intOption("slow-viewers");
+		final long warmupNanos = TimeUnit.SECONDS.toNanos(intOption("warmup"));
+		final long measureFrom = System.nanoTime() + warmupNanos;
+		final List<SimulatedViewer> viewers = new ArrayList<>();
+		final List<Thread> threads = new ArrayList<>();
+		for (int i = 0; i < viewerCount + slowViewerCount; i++) {
+			final long rate = i < viewerCount ? 0 : Long.parseLong(option("slow-rate"));
+			final SimulatedViewer viewer = new SimulatedViewer(baseUri.getHost(), baseUri.getPort(), option("path"),
+					rate, measureFrom);
+			// small stacks, there may be thousands of viewers
+			final Thread thread = new Thread(null, viewer, "viewer-" + i, 256 * 1024);
+			thread.setDaemon(true);
+			viewers.add(viewer);
+			threads.add(thread);
+			thread.start();
+		}
+		System.out.printf("%d viewers and %d slow viewers connected, warming up for %s s%n", viewerCount,
+				slowViewerCount, option("warmup"));
+		TimeUnit.NANOSECONDS.sleep(warmupNanos);
+
+		try (ServerSampler sampler = new ServerSampler(baseUri.toString())) {
+			sampler.start();
+			System.out.printf("Measuring for %s s%n", option("duration"));
+			TimeUnit.SECONDS.sleep(intOption("duration"));
+			viewers.forEach(SimulatedViewer::stop);
+			for (Thread thread : threads) {
+				thread.join(TimeUnit.SECONDS.toMillis(5));
+			}
+			System.out.println();
+			report("Viewers", viewers.subList(0, viewerCount));
+			report("Slow viewers", viewers.subList(viewerCount, viewers.size()));
+			System.out.println("Server");
+			System.out.println(sampler.report());
+		}
+		final long starved = viewers.stream().filter(viewer -> viewer.getFrames() == 0).count();
+		if (starved > 0) {
+			// e.g. viewers queued behind a too small pool of streaming threads
+			throw new IllegalStateException(starved + " of " + viewers.size() + " viewers received no frame");
+		}
+	}
+
+	private static void report(final String title, final List<SimulatedViewer> viewers) {
+		if (viewers.isEmpty()) {
+			return;
+		}
+		long failed = viewers.stream().filter(viewer -> viewer.getError() != null).count();
+		final long[] latencies = viewers.stream().map(SimulatedViewer::getLatencies).flatMapToLong(Arrays::stream)
+				.sorted().toArray();
+		final double[] framesPerSecond = viewers.stream().mapToDouble(SimulatedViewer::getFramesPerSecond).sorted()
+				.toArray();
+		System.out.printf("%s: %d, %d failed%n", title, viewers.size(), failed);
+		viewers.stream().filter(viewer -> viewer.getError() != null).limit(3)
+				.forEach(viewer -> System.out.println("  error: " + viewer.getError()));
+		if (latencies.length == 0) {
+			System.out.println("  no frames received");
+			return;
+		}
+		System.out.printf("  latency ms    p50 %.1f, p90 %.1f, p99 %.1f, p99.9 %.1f, max %.1f (%d frames)%n",
+				millis(percentile(latencies, 0.5)), millis(percentile(latencies, 0.9)),
+				millis(percentile(latencies, 0.99)), millis(percentile(latencies, 0.999)),
+				millis(latencies[latencies.length - 1]), latencies.length);
+		System.out.printf("  fps / viewer  min %.1f, p10 %.1f, p50 %.1f, max %.1f%n", framesPerSecond[0],
+				framesPerSecond[(int) (framesPerSecond.length * 0.1)], framesPerSecond[framesPerSecond.length / 2],
+				framesPerSecond[framesPerSecond.length - 1]);
+	}
+
+	private static long percentile(final long[] sorted, final double percentile) {
+		return sorted[Math.min(sorted.length - 1, (int) (sorted.length * percentile))];
+	}
+
+	private static double millis(final long nanos) {
+		return nanos / 1e6;
+	}
+
+	private String option(final String name) {
+		return options.get(name);
+	}
+
+	private int intOption(final String name) {
+		return Integer.parseInt(option(name));
+	}
+}
@@ -0,0 +1,124 @@
+package ch.mabaka.mjpg.multiplier.server.loadtest;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Samples heap, garbage collection and CPU of the server under test once per second through its actuator metrics.
+ */
+class ServerSampler implements AutoCloseable {
+
+	private final HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(2)).build();
+
+	private final ObjectMapper objectMapper = new ObjectMapper();
+
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+	private final String baseUrl;
+
+	private int samples;
+
+	private double heapSum;
+
+	private double heapMax;
+
+	private double cpuSum;
+
+	private double cpuMax;
+
+	private double gcCountStart = Double.NaN;
+
+	private double gcCount;
+
+	private double gcTimeStart = Double.NaN;
+
+	private double gcTime;
+
+	private double gcMaxPause;
+
+	ServerSampler(final String baseUrl) {
+		this.baseUrl = baseUrl;
+	}
+
+	void start() {
+		scheduler.scheduleAtFixedRate(this::sample, 0, 1, TimeUnit.SECONDS);
+	}
+
+	@Override
+	public void close() {
+		scheduler.shutdownNow();
+	}
+
+	synchronized String report() {
+		if (samples == 0) {
+			return "  no samples from " + baseUrl + "/actuator/metrics";
+		}
+		return String.format("  heap used     avg %.1f MB, max %.1f MB%n"
+				+ "  gc            %.0f collections, %.0f ms paused, longest pause %.0f ms%n"
+				+ "  process cpu   avg %.1f %%, max %.1f %% (%d samples)",
+				heapSum / samples / 1e6, heapMax / 1e6, gcCount - gcCountStart, (gcTime - gcTimeStart) * 1000,
+				gcMaxPause * 1000, cpuSum / samples * 100, cpuMax * 100, samples);
+	}
+
+	private void sample() {
+		try {
+			final double heap = measurement("jvm.memory.used?tag=area:heap", "VALUE");
+			final double cpu = measurement("process.cpu.usage", "VALUE");
+			final JsonNode gc = metric("jvm.gc.pause");
+			synchronized (this) {
+				samples++;
+				heapSum += heap;
+				heapMax = Math.max(heapMax, heap);
+				cpuSum += cpu;
+				cpuMax = Math.max(cpuMax, cpu);
+				if (gc != null) {
+					gcCount = measurement(gc, "COUNT");
+					gcTime = measurement(gc, "TOTAL_TIME");
+					gcMaxPause = Math.max(gcMaxPause, measurement(gc, "MAX"));
+					if (Double.isNaN(gcCountStart)) {
+						gcCountStart = gcCount;
+						gcTimeStart = gcTime;
+					}
+				}
+			}
+		} catch (IOException e) {
+			// server not reachable, skip this sample
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private double measurement(final String metric, final String statistic) throws IOException, InterruptedException {
+		final JsonNode node = metric(metric);
+		return node == null ? 0 : measurement(node, statistic);
+	}
+
+	private static double measurement(final JsonNode metric, final String statistic) {
+		for (JsonNode measurement : metric.path("measurements")) {
+			if (statistic.equals(measurement.path("statistic").asText())) {
+				return measurement.path("value").asDouble();
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * @return the metric or null if the server does not have it (yet)
+	 */
+	private JsonNode metric(final String metric) throws IOException, InterruptedException {
+		final HttpResponse<String> response = client.send(
+				HttpRequest.newBuilder(URI.create(baseUrl + "/actuator/metrics/" + metric)).build(),
+				HttpResponse.BodyHandlers.ofString());
+		return response.statusCode() == 200 ? objectMapper.readTree(response.body()) : null;
+	}
+}
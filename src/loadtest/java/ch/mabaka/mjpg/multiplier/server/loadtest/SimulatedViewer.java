@@ -0,0 +1,198 @@
+package ch.mabaka.mjpg.multiplier.server.loadtest;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A viewer reading {@code multipart/x-mixed-replace} over a plain socket, on its own thread.
+ * <p>
+ * For every frame the latency since the {@link FakeMjpegCamera} sent it is recorded. A slow viewer limits its read
+ * rate and uses a small receive buffer, like a client on a bad mobile link.
+ */
+class SimulatedViewer implements Runnable {
+
+	private static final int MAX_LINE_LENGTH = 1024;
+
+	private final String host;
+
+	private final int port;
+
+	private final String path;
+
+	private final long maxBytesPerSecond;
+
+	private final long measureFromNanos;
+
+	private volatile boolean running = true;
+
+	private volatile Socket socket;
+
+	private long[] latencies = new long[1024];
+
+	private int latencyCount;
+
+	private volatile long frames;
+
+	private volatile long firstFrameNanos;
+
+	private volatile long lastFrameNanos;
+
+	private volatile String error;
+
+	/**
+	 * @param maxBytesPerSecond read rate limit, 0 to read as fast as possible
+	 * @param measureFromNanos frames received before this {@link System#nanoTime()} are not recorded
+	 */
+	SimulatedViewer(final String host, final int port, final String path, final long maxBytesPerSecond,
+			final long measureFromNanos) {
+		this.host = host;
+		this.port = port;
+		this.path = path;
+		this.maxBytesPerSecond = maxBytesPerSecond;
+		this.measureFromNanos = measureFromNanos;
+	}
+
+	@Override
+	public void run() {
+		try (Socket connection = new Socket()) {
+			socket = connection;
+			if (maxBytesPerSecond > 0) {
+				connection.setReceiveBufferSize(16 * 1024);
+			}
+			connection.connect(new InetSocketAddress(host, port));
+			final OutputStream out = connection.getOutputStream();
+			// HTTP/1.0 keeps the response free of chunked transfer encoding
+			out.write(("GET " + path + " HTTP/1.0\r\nHost: " + host + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+			out.flush();
+			readStream(new BufferedInputStream(connection.getInputStream(), 64 * 1024));
+		} catch (IOException e) {
+			if (running) {
+				error = e.toString();
+			}
+		}
+	}
+
+	void stop() {
+		running = false;
+		final Socket connection = socket;
+		if (connection != null) {
+			try {
+				connection.close();
+			} catch (IOException e) {
+				// closing anyway
+			}
+		}
+	}
+
+	boolean isSlow() {
+		return maxBytesPerSecond > 0;
+	}
+
+	long getFrames() {
+		return frames;
+	}
+
+	/**
+	 * @return frames per second between the first and the last frame recorded
+	 */
+	double getFramesPerSecond() {
+		final long count = frames;
+		if (count < 2) {
+			return 0;
+		}
+		return (count - 1) * (double) TimeUnit.SECONDS.toNanos(1) / (lastFrameNanos - firstFrameNanos);
+	}
+
+	String getError() {
+		return error;
+	}
+
+	/**
+	 * Only valid after the viewer thread has ended.
+	 */
+	long[] getLatencies() {
+		return Arrays.copyOf(latencies, latencyCount);
+	}
+
+	private void readStream(final InputStream in) throws IOException {
+		final String status = readLine(in);
+		if (status == null || !status.contains(" 200")) {
+			throw new IOException("Unexpected response: " + status);
+		}
+		while (!readLine(in).isEmpty()) {
+			// skip response headers
+		}
+		final byte[] head = new byte[FakeMjpegCamera.TIMESTAMP_OFFSET + FakeMjpegCamera.TIMESTAMP_LENGTH];
+		final long start = System.nanoTime();
+		long bytes = 0;
+		while (running) {
+			int contentLength = -1;
+			String line;
+			while ((line = readLine(in)) != null && (line.isEmpty() || line.startsWith("--"))) {
+				// boundary and blank lines between the parts
+			}
+			while (line != null && !line.isEmpty()) {
+				if (line.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+					contentLength = Integer.parseInt(line.substring(15).trim());
+				}
+				line = readLine(in);
+			}
+			if (line == null || contentLength < head.length) {
+				throw new IOException("Unexpected part, content length " + contentLength);
+			}
+			in.readNBytes(head, 0, head.length);
+			in.skipNBytes(contentLength - head.length);
+			final long now = System.nanoTime();
+			recordFrame(now, now - FakeMjpegCamera.readTimestamp(head));
+			bytes += contentLength;
+			if (maxBytesPerSecond > 0) {
+				final long due = start + bytes * TimeUnit.SECONDS.toNanos(1) / maxBytesPerSecond;
+				final long delay = due - System.nanoTime();
+				if (delay > 0) {
+					try {
+						TimeUnit.NANOSECONDS.sleep(delay);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		}
+	}
+
+	private void recordFrame(final long now, final long latency) {
+		if (now - measureFromNanos < 0) {
+			return;
+		}
+		if (latencyCount == latencies.length) {
+			latencies = Arrays.copyOf(latencies, latencies.length * 2);
+		}
+		latencies[latencyCount++] = latency;
+		if (frames == 0) {
+			firstFrameNanos = now;
+		}
+		lastFrameNanos = now;
+		frames++;
+	}
+
+	private static String readLine(final InputStream in) throws IOException {
+		final StringBuilder line = new StringBuilder();
+		int b;
+		while ((b = in.read()) != -1) {
+			if (b == '\n') {
+				final int length = line.length();
+				return length > 0 && line.charAt(length - 1) == '\r' ? line.substring(0, length - 1) : line.toString();
+			}
+			if (line.length() < MAX_LINE_LENGTH) {
+				line.append((char) b);
+			}
+		}
+		return line.length() > 0 ? line.toString() : null;
+	}
+}
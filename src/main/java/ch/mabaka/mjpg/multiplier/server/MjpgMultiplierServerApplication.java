@@ -2,8 +2,10 @@ package ch.mabaka.mjpg.multiplier.server;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.context.properties.ConfigurationPropertiesScan;
 
 @SpringBootApplication
+@ConfigurationPropertiesScan
 public class MjpgMultiplierServerApplication {
 
 	public static void main(String[] args) {
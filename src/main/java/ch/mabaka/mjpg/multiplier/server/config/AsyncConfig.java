@@ -1,13 +1,47 @@
 package ch.mabaka.mjpg.multiplier.server.config;
 
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
+import jakarta.annotation.PreDestroy;
+
 @Configuration
 public class AsyncConfig implements WebMvcConfigurer {
+
+    /**
+     * Writes the streaming responses, one thread per blocking viewer for as long as it is connected. Spring's default
+     * executor has 8 threads and queues everything beyond, so a ninth viewer would wait forever. Requests beyond the
+     * limit are rejected with 503 Service Unavailable instead of being queued.
+     */
+    private final ThreadPoolTaskExecutor streamingExecutor = new ThreadPoolTaskExecutor();
+
+    public AsyncConfig(@Value("${stream.maxBlockingStreams:500}") int maxBlockingStreams) {
+        streamingExecutor.setThreadNamePrefix("mjpg-stream-");
+        streamingExecutor.setCorePoolSize(maxBlockingStreams);
+        streamingExecutor.setMaxPoolSize(maxBlockingStreams);
+        streamingExecutor.setQueueCapacity(0);
+        streamingExecutor.setAllowCoreThreadTimeOut(true);
+        streamingExecutor.initialize();
+    }
+
+    /**
+     * @return the executor of the streaming responses, also for viewers handed over after a replay
+     */
+    public ThreadPoolTaskExecutor getStreamingExecutor() {
+        return streamingExecutor;
+    }
+
     @Override
     public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
         configurer.setDefaultTimeout(Long.MAX_VALUE); // Practically infinite timeout
+        configurer.setTaskExecutor(streamingExecutor);
+    }
+
+    @PreDestroy
+    void shutdown() {
+        streamingExecutor.shutdown();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,48 @@
+package ch.mabaka.mjpg.multiplier.server.config;
+
+import java.time.Duration;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * Marking of unchanged frames, which viewers asking for {@code skipUnchanged} do not get.
+ */
+@ConfigurationProperties(prefix = "stream.gating")
+public class GatingProperties {
+
+	private boolean enabled;
+
+	private double maxSizeDelta = 0.005;
+
+	private Duration keepAliveInterval = Duration.ofSeconds(1);
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/**
+	 * @return relative difference of the JPEG size up to which a frame is unchanged
+	 */
+	public double getMaxSizeDelta() {
+		return maxSizeDelta;
+	}
+
+	public void setMaxSizeDelta(double maxSizeDelta) {
+		this.maxSizeDelta = maxSizeDelta;
+	}
+
+	/**
+	 * @return time after which viewers skipping unchanged frames get one anyway
+	 */
+	public Duration getKeepAliveInterval() {
+		return keepAliveInterval;
+	}
+
+	public void setKeepAliveInterval(Duration keepAliveInterval) {
+		this.keepAliveInterval = keepAliveInterval;
+	}
+}
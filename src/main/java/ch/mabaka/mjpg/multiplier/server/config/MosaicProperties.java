@@ -0,0 +1,102 @@
+package ch.mabaka.mjpg.multiplier.server.config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * The composite stream served on {@code /api/mosaic.mjpg}, which shows the latest frames of several sources as tiles
+ * of a grid.
+ */
+@ConfigurationProperties(prefix = "stream.mosaic")
+public class MosaicProperties {
+
+	private List<String> sources = new ArrayList<>();
+
+	private int columns;
+
+	private int tileWidth = 320;
+
+	private int tileHeight = 180;
+
+	private double fps = 2;
+
+	private float quality = 0.75f;
+
+	private int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+	/**
+	 * @return names of the sources shown, in the order of the tiles; empty for all sources
+	 */
+	public List<String> getSources() {
+		return sources;
+	}
+
+	public void setSources(List<String> sources) {
+		this.sources = sources;
+	}
+
+	/**
+	 * @return columns of the grid, 0 for a grid as square as possible
+	 */
+	public int getColumns() {
+		return columns;
+	}
+
+	public void setColumns(int columns) {
+		this.columns = columns;
+	}
+
+	/**
+	 * @return width of a tile in pixels, the pictures are scaled to fit and keep their aspect ratio
+	 */
+	public int getTileWidth() {
+		return tileWidth;
+	}
+
+	public void setTileWidth(int tileWidth) {
+		this.tileWidth = tileWidth;
+	}
+
+	public int getTileHeight() {
+		return tileHeight;
+	}
+
+	public void setTileHeight(int tileHeight) {
+		this.tileHeight = tileHeight;
+	}
+
+	/**
+	 * @return how often the grid is rendered, it is only encoded again if a tile has changed
+	 */
+	public double getFps() {
+		return fps;
+	}
+
+	public void setFps(double fps) {
+		this.fps = fps;
+	}
+
+	/**
+	 * @return JPEG quality between 0 and 1
+	 */
+	public float getQuality() {
+		return quality;
+	}
+
+	public void setQuality(float quality) {
+		this.quality = quality;
+	}
+
+	/**
+	 * @return threads decoding and scaling the tiles in parallel
+	 */
+	public int getThreads() {
+		return threads;
+	}
+
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+}
@@ -0,0 +1,91 @@
+package ch.mabaka.mjpg.multiplier.server.config;
+
+import java.time.Duration;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * Motion detection on the brightness of the 8x8 blocks of the frames, run by the {@code motion} frame stage in a
+ * processed output.
+ */
+@ConfigurationProperties(prefix = "stream.motion")
+public class MotionProperties {
+
+	private double threshold = 12;
+
+	private double minScore = 0.005;
+
+	private double adaptation = 0.05;
+
+	private Duration holdTime = Duration.ofSeconds(2);
+
+	private Duration eventInterval = Duration.ofSeconds(1);
+
+	private Duration keepAliveInterval = Duration.ofSeconds(5);
+
+	/**
+	 * @return difference in brightness, between 0 and 255, from the background above which a block has changed
+	 */
+	public double getThreshold() {
+		return threshold;
+	}
+
+	public void setThreshold(double threshold) {
+		this.threshold = threshold;
+	}
+
+	/**
+	 * @return share of changed blocks from which a frame shows motion
+	 */
+	public double getMinScore() {
+		return minScore;
+	}
+
+	public void setMinScore(double minScore) {
+		this.minScore = minScore;
+	}
+
+	/**
+	 * @return weight of each frame in the running average of the background, higher values forget movements faster
+	 */
+	public double getAdaptation() {
+		return adaptation;
+	}
+
+	public void setAdaptation(double adaptation) {
+		this.adaptation = adaptation;
+	}
+
+	/**
+	 * @return time without motion after which the motion has ended
+	 */
+	public Duration getHoldTime() {
+		return holdTime;
+	}
+
+	public void setHoldTime(Duration holdTime) {
+		this.holdTime = holdTime;
+	}
+
+	/**
+	 * @return time between two events while the motion goes on
+	 */
+	public Duration getEventInterval() {
+		return eventInterval;
+	}
+
+	public void setEventInterval(Duration eventInterval) {
+		this.eventInterval = eventInterval;
+	}
+
+	/**
+	 * @return time after which viewers only watching motion get a frame anyway
+	 */
+	public Duration getKeepAliveInterval() {
+		return keepAliveInterval;
+	}
+
+	public void setKeepAliveInterval(Duration keepAliveInterval) {
+		this.keepAliveInterval = keepAliveInterval;
+	}
+}
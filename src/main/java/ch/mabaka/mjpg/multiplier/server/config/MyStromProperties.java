@@ -0,0 +1,50 @@
+package ch.mabaka.mjpg.multiplier.server.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * The myStrom switch powering the camera of {@code stream.url} and the API paths of all switches.
+ */
+@ConfigurationProperties(prefix = "mystrom")
+public class MyStromProperties {
+
+	private String baseUrl = "http://192.168.5.134";
+
+	private String statePath = "/report";
+
+	private String actionPath = "/power_cycle?time=10";
+
+	private String setRelayPath = "/relay";
+
+	public String getBaseUrl() {
+		return baseUrl;
+	}
+
+	public void setBaseUrl(String baseUrl) {
+		this.baseUrl = baseUrl;
+	}
+
+	public String getStatePath() {
+		return statePath;
+	}
+
+	public void setStatePath(String statePath) {
+		this.statePath = statePath;
+	}
+
+	public String getActionPath() {
+		return actionPath;
+	}
+
+	public void setActionPath(String actionPath) {
+		this.actionPath = actionPath;
+	}
+
+	public String getSetRelayPath() {
+		return setRelayPath;
+	}
+
+	public void setSetRelayPath(String setRelayPath) {
+		this.setRelayPath = setRelayPath;
+	}
+}
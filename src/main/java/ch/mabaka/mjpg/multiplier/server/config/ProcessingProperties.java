@@ -0,0 +1,93 @@
+package ch.mabaka.mjpg.multiplier.server.config;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * Processed outputs of every stream, e.g. {@code stream.processing.outputs.public.stages=privacy-mask,watermark} for
+ * {@code /api/stream.mjpg?output=public}. The stages are the beans implementing
+ * {@link ch.mabaka.mjpg.multiplier.server.input.FrameStage}, named by their {@code getName()}. The outputs of all
+ * sources share one pool of worker threads.
+ */
+@ConfigurationProperties(prefix = "stream.processing")
+public class ProcessingProperties {
+
+	private int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+	private int maxInFlight = 8;
+
+	private float quality = 0.85f;
+
+	private Map<String, Output> outputs = new LinkedHashMap<>();
+
+	public int getThreads() {
+		return threads;
+	}
+
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	/**
+	 * @return frames of an output processed at the same time, further frames are skipped
+	 */
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+	public void setMaxInFlight(int maxInFlight) {
+		this.maxInFlight = maxInFlight;
+	}
+
+	/**
+	 * @return JPEG quality between 0 and 1 for pictures changed by a stage
+	 */
+	public float getQuality() {
+		return quality;
+	}
+
+	public void setQuality(float quality) {
+		this.quality = quality;
+	}
+
+	public Map<String, Output> getOutputs() {
+		return outputs;
+	}
+
+	public void setOutputs(Map<String, Output> outputs) {
+		this.outputs = outputs;
+	}
+
+	public static class Output {
+
+		private List<String> stages = new ArrayList<>();
+
+		private boolean alwaysActive;
+
+		/**
+		 * @return names of the stages in the order they run
+		 */
+		public List<String> getStages() {
+			return stages;
+		}
+
+		public void setStages(List<String> stages) {
+			this.stages = stages;
+		}
+
+		/**
+		 * @return true to process the frames also while the output has no viewers, e.g. for analytics
+		 */
+		public boolean isAlwaysActive() {
+			return alwaysActive;
+		}
+
+		public void setAlwaysActive(boolean alwaysActive) {
+			this.alwaysActive = alwaysActive;
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package ch.mabaka.mjpg.multiplier.server.config;
+
+import java.time.Duration;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * Recording of all streams to disk, played back with {@code /api/recordings.mjpg}. Each stream is recorded into
+ * segment files of a fixed size in a directory of its own, the retention limits apply per stream.
+ */
+@ConfigurationProperties(prefix = "stream.recording")
+public class RecordingProperties {
+
+	private boolean enabled;
+
+	private String directory = "recordings";
+
+	private DataSize segmentSize = DataSize.ofMegabytes(64);
+
+	private DataSize maxBytes = DataSize.ofGigabytes(1);
+
+	private Duration maxAge = Duration.ofDays(1);
+
+	private Duration syncInterval = Duration.ofSeconds(5);
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	public String getDirectory() {
+		return directory;
+	}
+
+	public void setDirectory(String directory) {
+		this.directory = directory;
+	}
+
+	public DataSize getSegmentSize() {
+		return segmentSize;
+	}
+
+	public void setSegmentSize(DataSize segmentSize) {
+		this.segmentSize = segmentSize;
+	}
+
+	/**
+	 * @return size of the recordings of a stream beyond which the oldest segments are deleted
+	 */
+	public DataSize getMaxBytes() {
+		return maxBytes;
+	}
+
+	public void setMaxBytes(DataSize maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * @return age after which segments are deleted
+	 */
+	public Duration getMaxAge() {
+		return maxAge;
+	}
+
+	public void setMaxAge(Duration maxAge) {
+		this.maxAge = maxAge;
+	}
+
+	/**
+	 * @return how often the recorded frames are forced to disk, they may be lost in a crash until then
+	 */
+	public Duration getSyncInterval() {
+		return syncInterval;
+	}
+
+	public void setSyncInterval(Duration syncInterval) {
+		this.syncInterval = syncInterval;
+	}
+}
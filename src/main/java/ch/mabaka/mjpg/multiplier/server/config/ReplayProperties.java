@@ -0,0 +1,36 @@
+package ch.mabaka.mjpg.multiplier.server.config;
+
+import java.time.Duration;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * The frames of the last seconds of every stream kept in memory for {@code /api/replay.mjpg}.
+ */
+@ConfigurationProperties(prefix = "stream.replay")
+public class ReplayProperties {
+
+	private Duration duration = Duration.ofSeconds(30);
+
+	private DataSize maxBytes = DataSize.ofMegabytes(32);
+
+	/**
+	 * @return time the frames are kept, zero disables replay
+	 */
+	public Duration getDuration() {
+		return duration;
+	}
+
+	public void setDuration(Duration duration) {
+		this.duration = duration;
+	}
+
+	public DataSize getMaxBytes() {
+		return maxBytes;
+	}
+
+	public void setMaxBytes(DataSize maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+}
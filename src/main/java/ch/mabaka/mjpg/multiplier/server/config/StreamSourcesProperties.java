@@ -0,0 +1,238 @@
+package ch.mabaka.mjpg.multiplier.server.config;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import ch.mabaka.mjpg.multiplier.server.input.UpstreamClient;
+
+/**
+ * The camera sources served by this instance.
+ * <p>
+ * {@code stream.url} configures the source named {@value #DEFAULT_SOURCE}, which is powered by the switch configured
+ * with the {@code mystrom.*} properties. Further sources are listed under {@code stream.sources}, each with its own
+ * name, URL and optional myStrom switch. Every source may list fallback URLs of the same camera, e.g. another
+ * address or port, which are tried when the URL fails.
+ * <p>
+ * A source marked as relay is the {@code /api/stream.mjpg} of another multiplier instead of a camera, see
+ * {@code relay}.
+ * <p>
+ * All sources are read with the same {@code upstreamClient}, timeouts and reconnect backoff.
+ */
+@ConfigurationProperties(prefix = "stream")
+public class StreamSourcesProperties {
+
+	public static final String DEFAULT_SOURCE = "default";
+
+	private String url;
+
+	private List<String> fallbackUrls = new ArrayList<>();
+
+	private boolean relay;
+
+	private List<Source> sources = new ArrayList<>();
+
+	private int ringBufferSize = 32;
+
+	private boolean lazyConnect;
+
+	private Duration lazyConnectLinger = Duration.ofSeconds(30);
+
+	private UpstreamClient upstreamClient = UpstreamClient.HTTP_CLIENT;
+
+	private Duration connectTimeout = Duration.ofSeconds(2);
+
+	private Duration readTimeout = Duration.ofSeconds(5);
+
+	private Reconnect reconnect = new Reconnect();
+
+	public String getUrl() {
+		return url;
+	}
+
+	public void setUrl(String url) {
+		this.url = url;
+	}
+
+	public List<String> getFallbackUrls() {
+		return fallbackUrls;
+	}
+
+	public void setFallbackUrls(List<String> fallbackUrls) {
+		this.fallbackUrls = fallbackUrls;
+	}
+
+	/**
+	 * @return true if {@code stream.url} is the stream of another multiplier, whose timing headers are taken over
+	 */
+	public boolean isRelay() {
+		return relay;
+	}
+
+	public void setRelay(boolean relay) {
+		this.relay = relay;
+	}
+
+	public List<Source> getSources() {
+		return sources;
+	}
+
+	public void setSources(List<Source> sources) {
+		this.sources = sources;
+	}
+
+	/**
+	 * @return frames kept for the viewers of each stream
+	 */
+	public int getRingBufferSize() {
+		return ringBufferSize;
+	}
+
+	public void setRingBufferSize(int ringBufferSize) {
+		this.ringBufferSize = ringBufferSize;
+	}
+
+	/**
+	 * @return true to only read a camera while somebody is watching
+	 */
+	public boolean isLazyConnect() {
+		return lazyConnect;
+	}
+
+	public void setLazyConnect(boolean lazyConnect) {
+		this.lazyConnect = lazyConnect;
+	}
+
+	/**
+	 * @return time a lazily connected camera is still read after the last viewer has gone
+	 */
+	public Duration getLazyConnectLinger() {
+		return lazyConnectLinger;
+	}
+
+	public void setLazyConnectLinger(Duration lazyConnectLinger) {
+		this.lazyConnectLinger = lazyConnectLinger;
+	}
+
+	public UpstreamClient getUpstreamClient() {
+		return upstreamClient;
+	}
+
+	public void setUpstreamClient(UpstreamClient upstreamClient) {
+		this.upstreamClient = upstreamClient;
+	}
+
+	public Duration getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	public void setConnectTimeout(Duration connectTimeout) {
+		this.connectTimeout = connectTimeout;
+	}
+
+	/**
+	 * @return time without data after which a camera is reconnected
+	 */
+	public Duration getReadTimeout() {
+		return readTimeout;
+	}
+
+	public void setReadTimeout(Duration readTimeout) {
+		this.readTimeout = readTimeout;
+	}
+
+	public Reconnect getReconnect() {
+		return reconnect;
+	}
+
+	public void setReconnect(Reconnect reconnect) {
+		this.reconnect = reconnect;
+	}
+
+	/**
+	 * The exponential backoff between the reconnects once all URLs of a source have failed.
+	 */
+	public static class Reconnect {
+
+		private Duration initialBackoff = Duration.ofMillis(100);
+
+		private Duration maxBackoff = Duration.ofSeconds(10);
+
+		public Duration getInitialBackoff() {
+			return initialBackoff;
+		}
+
+		public void setInitialBackoff(Duration initialBackoff) {
+			this.initialBackoff = initialBackoff;
+		}
+
+		public Duration getMaxBackoff() {
+			return maxBackoff;
+		}
+
+		public void setMaxBackoff(Duration maxBackoff) {
+			this.maxBackoff = maxBackoff;
+		}
+	}
+
+	public static class Source {
+
+		private String name;
+
+		private String url;
+
+		private List<String> fallbackUrls = new ArrayList<>();
+
+		private String mystromBaseUrl;
+
+		private boolean relay;
+
+		public String getName() {
+			return name;
+		}
+
+		public void setName(String name) {
+			this.name = name;
+		}
+
+		public String getUrl() {
+			return url;
+		}
+
+		public void setUrl(String url) {
+			this.url = url;
+		}
+
+		public List<String> getFallbackUrls() {
+			return fallbackUrls;
+		}
+
+		public void setFallbackUrls(List<String> fallbackUrls) {
+			this.fallbackUrls = fallbackUrls;
+		}
+
+		/**
+		 * @return base URL of the myStrom switch powering the camera, null if the camera cannot be power-cycled
+		 */
+		public String getMystromBaseUrl() {
+			return mystromBaseUrl;
+		}
+
+		public void setMystromBaseUrl(String mystromBaseUrl) {
+			this.mystromBaseUrl = mystromBaseUrl;
+		}
+
+		/**
+		 * @return true if the URL is the stream of another multiplier, whose timing headers are taken over
+		 */
+		public boolean isRelay() {
+			return relay;
+		}
+
+		public void setRelay(boolean relay) {
+			this.relay = relay;
+		}
+	}
+}
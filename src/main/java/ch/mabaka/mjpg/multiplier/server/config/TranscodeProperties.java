@@ -0,0 +1,77 @@
+package ch.mabaka.mjpg.multiplier.server.config;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * Output profiles served as scaled and re-encoded versions of every stream, e.g.
+ * {@code stream.transcode.profiles.thumb.width=320} for {@code /api/stream.mjpg?profile=thumb}. The profiles of all
+ * sources share one bounded pool of worker threads.
+ */
+@ConfigurationProperties(prefix = "stream.transcode")
+public class TranscodeProperties {
+
+	private int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+	private int queueSize = 16;
+
+	private Map<String, Profile> profiles = new LinkedHashMap<>();
+
+	public int getThreads() {
+		return threads;
+	}
+
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	/**
+	 * @return frames waiting for a worker across all profiles, further frames are skipped
+	 */
+	public int getQueueSize() {
+		return queueSize;
+	}
+
+	public void setQueueSize(int queueSize) {
+		this.queueSize = queueSize;
+	}
+
+	public Map<String, Profile> getProfiles() {
+		return profiles;
+	}
+
+	public void setProfiles(Map<String, Profile> profiles) {
+		this.profiles = profiles;
+	}
+
+	public static class Profile {
+
+		private int width;
+
+		private float quality = 0.75f;
+
+		/**
+		 * @return width of the frames in pixels, keeping the aspect ratio; 0 or wider than the source keeps the size
+		 */
+		public int getWidth() {
+			return width;
+		}
+
+		public void setWidth(int width) {
+			this.width = width;
+		}
+
+		/**
+		 * @return JPEG quality between 0 and 1
+		 */
+		public float getQuality() {
+			return quality;
+		}
+
+		public void setQuality(float quality) {
+			this.quality = quality;
+		}
+	}
+}
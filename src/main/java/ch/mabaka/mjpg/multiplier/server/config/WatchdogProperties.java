@@ -0,0 +1,65 @@
+package ch.mabaka.mjpg.multiplier.server.config;
+
+import java.time.Duration;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * The stall watchdog of every stream, which counts the frames missed since the last one by the learned frame interval
+ * of the camera.
+ */
+@ConfigurationProperties(prefix = "stream.watchdog")
+public class WatchdogProperties {
+
+	private int degradedMissedFrames = 3;
+
+	private int maxMissedFrames = 10;
+
+	private Duration minStallTime = Duration.ofSeconds(2);
+
+	private int powerCycleAfterStalls = 3;
+
+	/**
+	 * @return missed frames after which the stream is degraded
+	 */
+	public int getDegradedMissedFrames() {
+		return degradedMissedFrames;
+	}
+
+	public void setDegradedMissedFrames(int degradedMissedFrames) {
+		this.degradedMissedFrames = degradedMissedFrames;
+	}
+
+	/**
+	 * @return missed frames after which the stream is stalled and reconnected
+	 */
+	public int getMaxMissedFrames() {
+		return maxMissedFrames;
+	}
+
+	public void setMaxMissedFrames(int maxMissedFrames) {
+		this.maxMissedFrames = maxMissedFrames;
+	}
+
+	/**
+	 * @return time without a frame before a stream counts as stalled, however short its frame interval
+	 */
+	public Duration getMinStallTime() {
+		return minStallTime;
+	}
+
+	public void setMinStallTime(Duration minStallTime) {
+		this.minStallTime = minStallTime;
+	}
+
+	/**
+	 * @return stalls in a row without a frame after which the camera is power-cycled
+	 */
+	public int getPowerCycleAfterStalls() {
+		return powerCycleAfterStalls;
+	}
+
+	public void setPowerCycleAfterStalls(int powerCycleAfterStalls) {
+		this.powerCycleAfterStalls = powerCycleAfterStalls;
+	}
+}
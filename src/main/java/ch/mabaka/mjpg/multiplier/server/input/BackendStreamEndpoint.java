@@ -0,0 +1,31 @@
+package ch.mabaka.mjpg.multiplier.server.input;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+/**
+ * Actuator endpoint reporting for each stream source whether its backend stream is available.
+ */
+@Component
+@Endpoint(id = "backendStream")
+public class BackendStreamEndpoint {
+
+	private final StreamRegistry streamRegistry;
+
+	public BackendStreamEndpoint(StreamRegistry streamRegistry) {
+		this.streamRegistry = streamRegistry;
+	}
+
+	@ReadOperation
+	public Map<String, Boolean> backendStreamAvailable() {
+		final Map<String, Boolean> availability = new LinkedHashMap<>();
+		for (StreamPipeline pipeline : streamRegistry.getPipelines()) {
+			availability.put(pipeline.getName(), pipeline.getReader().isBackendStreamAvailable());
+		}
+		return availability;
+	}
+}
@@ -1,24 +1,62 @@
 package ch.mabaka.mjpg.multiplier.server.input;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 import org.springframework.boot.actuate.health.Health;
 import org.springframework.boot.actuate.health.HealthIndicator;
 import org.springframework.stereotype.Component;
 
+/**
+ * Reports each stream source as idle, unavailable, stalled, degraded or up. The application is down while a connected
+ * source is unavailable or stalled, a degraded source which misses frames but still delivers is reported as a detail
+ * only.
+ * <p>
+ * Sources relaying another multiplier are listed in the {@code relay} detail as well, with the latency behind the
+ * origin, the frames missed from the upstream and whether the upstream sends the timing headers.
+ */
 @Component
 public class BackendStreamHealthIndicator implements HealthIndicator {
-    private final MjpegInputStreamReaderComponent mjpegInputStreamReaderComponent;
+    private final StreamRegistry streamRegistry;
 
-    public BackendStreamHealthIndicator(MjpegInputStreamReaderComponent mjpegInputStreamReaderComponent) {
-        this.mjpegInputStreamReaderComponent = mjpegInputStreamReaderComponent;
+    public BackendStreamHealthIndicator(StreamRegistry streamRegistry) {
+        this.streamRegistry = streamRegistry;
     }
 
     @Override
     public Health health() {
-        boolean available = mjpegInputStreamReaderComponent.isBackendStreamAvailable();
-        if (available) {
-            return Health.up().withDetail("backendStreamAvailable", true).build();
+        boolean allAvailable = true;
+        Health.Builder builder = Health.unknown();
+        Map<String, Object> relays = new LinkedHashMap<>();
+        for (StreamPipeline pipeline : streamRegistry.getPipelines()) {
+            MjpegStreamReader reader = pipeline.getReader();
+            RelayMonitor relayMonitor = reader.getRelayMonitor();
+            if (relayMonitor != null) {
+                Map<String, Object> relay = new LinkedHashMap<>();
+                relay.put("timingHeaders", relayMonitor.hasTimingHeaders());
+                if (relayMonitor.hasTimingHeaders()) {
+                    relay.put("latencyMillis", relayMonitor.getLatencyMillis());
+                }
+                relay.put("upstreamSkippedFrames", relayMonitor.getSkippedFrames());
+                relays.put(pipeline.getName(), relay);
+            }
+            if (pipeline.isLazyConnect() && reader.isIdle()) {
+                // not connected because nobody is watching
+                builder.withDetail(pipeline.getName(), "idle");
+                continue;
+            }
+            boolean available = reader.isBackendStreamAvailable();
+            allAvailable &= available;
+            builder.withDetail(pipeline.getName(), available ? reader.getWatchdog().getState().name().toLowerCase()
+                    : reader.getWatchdog().getState() == StreamWatchdog.State.STALLED ? "stalled" : "unavailable");
+        }
+        if (!relays.isEmpty()) {
+            builder.withDetail("relay", relays);
+        }
+        if (allAvailable) {
+            return builder.up().withDetail("backendStreamAvailable", true).build();
         } else {
-            return Health.down().withDetail("backendStreamAvailable", false).build();
+            return builder.down().withDetail("backendStreamAvailable", false).build();
         }
     }
 }
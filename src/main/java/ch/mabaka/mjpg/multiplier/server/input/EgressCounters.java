@@ -0,0 +1,25 @@
+package ch.mabaka.mjpg.multiplier.server.input;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Totals over all viewers of one stream, updated by the {@link FrameSubscription}s while they deliver frames.
+ */
+final class EgressCounters {
+
+	final LongAdder decimatedBytes = new LongAdder();
+
+	final LongAdder droppedFrames = new LongAdder();
+
+	final LongAdder unchangedFrames = new LongAdder();
+
+	final LongAdder unchangedBytes = new LongAdder();
+
+	final LongAdder filteredFrames = new LongAdder();
+
+	final LongAdder filteredBytes = new LongAdder();
+
+	final LongAdder writtenBytes = new LongAdder();
+
+	final LongAdder evictedSubscribers = new LongAdder();
+}
@@ -0,0 +1,77 @@
+package ch.mabaka.mjpg.multiplier.server.input;
+
+import java.util.zip.CRC32C;
+
+import ch.mabaka.mjpg.multiplier.server.input.data.Frame;
+
+/**
+ * Marks frames which show the same picture as the last changed frame, so viewers asking for it can skip them.
+ * <p>
+ * The check is cheap enough for every frame and does not decode the JPEG: a frame is unchanged if its JPEG data is
+ * identical to the reference frame, compared by CRC32C, or if its size differs by no more than the size threshold.
+ * The JPEG size of a static scene varies only a little with sensor noise, while movement and light changes alter it
+ * noticeably. The reference is the last changed frame and not the previous one, so a slow drift is noticed as well.
+ * <p>
+ * Used by the reader thread only.
+ */
+public class FrameChangeDetector {
+
+	private final boolean enabled;
+
+	private final double maxSizeDelta;
+
+	private final CRC32C crc = new CRC32C();
+
+	private boolean hasReference;
+
+	private long referenceChecksum;
+
+	private int referenceLength;
+
+	/**
+	 * @param maxSizeDelta JPEG size difference relative to the reference frame up to which a frame counts as
+	 *            unchanged, 0 to only treat identical frames as unchanged
+	 */
+	public FrameChangeDetector(final boolean enabled, final double maxSizeDelta) {
+		this.enabled = enabled;
+		this.maxSizeDelta = maxSizeDelta;
+	}
+
+	/**
+	 * Classify the frame and mark it with {@link Frame#setUnchanged(boolean)}.
+	 */
+	void check(final Frame frame) {
+		if (!enabled) {
+			return;
+		}
+		final int length = frame.getJpegLength();
+		crc.reset();
+		crc.update(frame.getJpeg());
+		final long checksum = crc.getValue();
+		final boolean unchanged = hasReference && (isIdentical(checksum, length) || isWithinSizeDelta(length));
+		if (!unchanged) {
+			hasReference = true;
+			referenceChecksum = checksum;
+			referenceLength = length;
+		}
+		frame.setUnchanged(unchanged);
+	}
+
+	private boolean isIdentical(final long checksum, final int length) {
+		return checksum == referenceChecksum && length == referenceLength;
+	}
+
+	/**
+	 * @return false if the size threshold is 0, then only identical frames are unchanged
+	 */
+	private boolean isWithinSizeDelta(final int length) {
+		return maxSizeDelta > 0 && Math.abs(length - referenceLength) <= referenceLength * maxSizeDelta;
+	}
+
+	/**
+	 * Forget the reference, the next frame counts as changed. Called on every new connection to the camera.
+	 */
+	void reset() {
+		hasReference = false;
+	}
+}
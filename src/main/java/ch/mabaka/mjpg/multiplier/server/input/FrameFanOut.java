@@ -0,0 +1,254 @@
+package ch.mabaka.mjpg.multiplier.server.input;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongConsumer;
+
+import ch.mabaka.mjpg.multiplier.server.input.data.Frame;
+
+/**
+ * Fans the frames out to all viewers. Every frame is published once into a shared {@link FrameRingBuffer}, each
+ * viewer reads it through its own {@link FrameSubscription}. There is one instance per stream source.
+ * <p>
+ * The latest frame is additionally kept in a snapshot which is swapped atomically on every publish, so single images
+ * can be served without subscribing.
+ */
+public class FrameFanOut {
+
+	private final ExecutorService notificationExecutor = Executors.newSingleThreadExecutor();
+
+	private final FrameRingBuffer<Frame> ringBuffer;
+
+	private final Set<FrameSubscription> subscriptions = ConcurrentHashMap.newKeySet();
+
+	private final SlowConsumerPolicy slowConsumerPolicy;
+
+	private final EgressCounters counters = new EgressCounters();
+
+	private volatile LongConsumer writeLatencyRecorder = latencyNanos -> {
+	};
+
+	private final AtomicReference<FrameSnapshot> latestSnapshot = new AtomicReference<>();
+
+	private final long epoch = System.currentTimeMillis();
+
+	private SubscriberListener subscriberListener;
+
+	/**
+	 * Notified when the first viewer subscribes and when the last one leaves.
+	 */
+	public interface SubscriberListener {
+		void onFirstSubscriber();
+
+		void onLastSubscriberGone();
+	}
+
+	public FrameFanOut(int ringBufferSize) {
+		this(ringBufferSize, SlowConsumerPolicy.DEFAULT);
+	}
+
+	public FrameFanOut(int ringBufferSize, SlowConsumerPolicy slowConsumerPolicy) {
+		this.ringBuffer = new FrameRingBuffer<>(ringBufferSize, Frame::release, notificationExecutor);
+		this.slowConsumerPolicy = slowConsumerPolicy;
+	}
+
+	/**
+	 * Publish a frame to all viewers, taking over the caller's reference.
+	 */
+	public void publish(Frame frame) {
+		// single producer, the frame gets the next sequence of the ring buffer
+		frame.stampPublished(ringBuffer.getCursor() + 1);
+		// the snapshot holds its own reference, the ring buffer takes over the caller's. The snapshot is replaced
+		// first, so the callbacks woken by the publish find the new frame in it
+		frame.retain();
+		replaceSnapshot(new FrameSnapshot(frame));
+		ringBuffer.publish(frame);
+	}
+
+	/**
+	 * @return the most recently published frame or null if there is none yet. The frame of the snapshot has been
+	 *         retained for the caller, which has to release it when done.
+	 */
+	public FrameSnapshot acquireSnapshot() {
+		while (true) {
+			final FrameSnapshot snapshot = latestSnapshot.get();
+			if (snapshot == null || snapshot.getFrame().retain()) {
+				return snapshot;
+			}
+			// replaced and released in between, the next read sees the newer snapshot
+		}
+	}
+
+	/**
+	 * Run the callback once the frame with the given sequence has been published, without subscribing. The callback
+	 * runs on the notification thread or, if the frame is already available, right away.
+	 */
+	public void onPublish(long sequence, Runnable callback) {
+		ringBuffer.onPublish(sequence, callback);
+	}
+
+	public void cancelOnPublish(Runnable callback) {
+		ringBuffer.removePublishCallback(callback);
+	}
+
+	/**
+	 * @param writeLatencyRecorder receives the nanoseconds from receiving a frame until it has been written to a
+	 *            viewer, for every frame and viewer
+	 */
+	public void setWriteLatencyRecorder(LongConsumer writeLatencyRecorder) {
+		this.writeLatencyRecorder = writeLatencyRecorder;
+	}
+
+	public void setSubscriberListener(SubscriberListener subscriberListener) {
+		this.subscriberListener = subscriberListener;
+	}
+
+	/**
+	 * Register a viewer. The subscription starts with the most recently published frame, so the viewer gets an image
+	 * immediately even while the upstream connection is being (re-)established.
+	 */
+	public FrameSubscription subscribe() {
+		return subscribe(slowConsumerPolicy);
+	}
+
+	/**
+	 * Register a subscriber which is treated according to its own slow consumer policy, e.g. one which must never be
+	 * disconnected.
+	 */
+	public synchronized FrameSubscription subscribe(SlowConsumerPolicy policy) {
+		final FrameSubscription subscription = new FrameSubscription(ringBuffer, policy, counters,
+				this::recordWriteLatency);
+		subscriptions.add(subscription);
+		if (subscriptions.size() == 1 && subscriberListener != null) {
+			subscriberListener.onFirstSubscriber();
+		}
+		return subscription;
+	}
+
+	public synchronized void unsubscribe(FrameSubscription subscription) {
+		if (!subscriptions.remove(subscription)) {
+			return;
+		}
+		if (subscription.isEvicted()) {
+			counters.evictedSubscribers.increment();
+		}
+		if (subscriptions.isEmpty() && subscriberListener != null) {
+			subscriberListener.onLastSubscriberGone();
+		}
+	}
+
+	/**
+	 * @return time the instance was created in milliseconds since the epoch. The sequence numbers start over with
+	 *         every instance, i.e. on every restart of the process or the stream, the epoch tells them apart.
+	 */
+	public long getEpoch() {
+		return epoch;
+	}
+
+	public int getSubscriberCount() {
+		return subscriptions.size();
+	}
+
+	/**
+	 * @return the currently subscribed viewers
+	 */
+	public Set<FrameSubscription> getSubscriptions() {
+		return Collections.unmodifiableSet(subscriptions);
+	}
+
+	/**
+	 * Evict the viewers lagging behind by more frames than the slow consumer policy allows.
+	 */
+	public void evictLaggingSubscribers() {
+		if (slowConsumerPolicy.getMaxLagFrames() > 0) {
+			subscriptions.forEach(FrameSubscription::evictIfLagging);
+		}
+	}
+
+	/**
+	 * @return number of viewers disconnected by the slow consumer policy
+	 */
+	public long getEvictedSubscribers() {
+		return counters.evictedSubscribers.sum();
+	}
+
+	/**
+	 * @return bytes not sent to viewers because their frame rate was limited
+	 */
+	public long getDecimatedBytes() {
+		return counters.decimatedBytes.sum();
+	}
+
+	/**
+	 * @return unchanged frames skipped by viewers which asked for it
+	 */
+	public long getUnchangedSkippedFrames() {
+		return counters.unchangedFrames.sum();
+	}
+
+	/**
+	 * @return bytes of the unchanged frames skipped by viewers which asked for it
+	 */
+	public long getUnchangedSkippedBytes() {
+		return counters.unchangedBytes.sum();
+	}
+
+	/**
+	 * @return frames skipped by viewers whose frame filter rejected them
+	 */
+	public long getFilteredFrames() {
+		return counters.filteredFrames.sum();
+	}
+
+	/**
+	 * @return bytes of the frames skipped by viewers whose frame filter rejected them
+	 */
+	public long getFilteredBytes() {
+		return counters.filteredBytes.sum();
+	}
+
+	/**
+	 * @return frames viewers have skipped because they fell behind
+	 */
+	public long getDroppedFrames() {
+		return counters.droppedFrames.sum();
+	}
+
+	/**
+	 * @return bytes written to all viewers of the stream
+	 */
+	public long getWrittenBytes() {
+		return counters.writtenBytes.sum();
+	}
+
+	/**
+	 * @return lag in frames of the viewer furthest behind, 0 without viewers
+	 */
+	public long getMaxSubscriberLag() {
+		long maxLag = 0;
+		for (FrameSubscription subscription : subscriptions) {
+			maxLag = Math.max(maxLag, subscription.getLag());
+		}
+		return maxLag;
+	}
+
+	public void shutdown() {
+		notificationExecutor.shutdown();
+		replaceSnapshot(null);
+	}
+
+	private void recordWriteLatency(long latencyNanos) {
+		writeLatencyRecorder.accept(latencyNanos);
+	}
+
+	private void replaceSnapshot(FrameSnapshot snapshot) {
+		final FrameSnapshot previous = latestSnapshot.getAndSet(snapshot);
+		if (previous != null) {
+			previous.getFrame().release();
+		}
+	}
+}
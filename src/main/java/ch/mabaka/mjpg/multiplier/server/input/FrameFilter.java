@@ -0,0 +1,25 @@
+package ch.mabaka.mjpg.multiplier.server.input;
+
+import ch.mabaka.mjpg.multiplier.server.input.data.Frame;
+
+/**
+ * Decides which frames a {@link FrameSubscription} delivers, e.g. only the frames showing motion. A filter may not be
+ * able to decide on the latest frames yet, because the analysis it relies on runs behind the stream. The subscription
+ * holds these frames back and asks again shortly after, so the frames are judged one by one and none is dropped for
+ * being delivered before the analysis has looked at it.
+ */
+public interface FrameFilter {
+
+	/**
+	 * @return false while the filter cannot decide on the frame yet, a frame is never held back again once a later
+	 *         frame has been decided
+	 */
+	default boolean isDecided(final Frame frame) {
+		return true;
+	}
+
+	/**
+	 * @return true to deliver the frame, only asked for decided frames
+	 */
+	boolean accept(Frame frame);
+}
@@ -0,0 +1,175 @@
+package ch.mabaka.mjpg.multiplier.server.input;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Single producer, multi consumer broadcast ring buffer.
+ * <p>
+ * The ingest thread publishes every frame exactly once. Consumers never remove anything; each keeps its own sequence
+ * cursor (see {@link FrameSubscription}) and reads the slots lock free. Slots are overwritten once the producer has
+ * wrapped around, a consumer which has fallen behind by more than the capacity detects this by the sequence number
+ * stored in the slot. The lock is only taken when at least one consumer is blocked waiting for the next frame.
+ * Non-blocking consumers register a one shot callback instead, the callbacks are run on the callback executor so the
+ * producer only pays for a single hand-off per frame.
+ * <p>
+ * The ring buffer owns the published frames, a frame is handed to the overwrite callback when its slot is reused.
+ *
+ * @param <T> type of the published frames
+ */
+public class FrameRingBuffer<T> {
+
+	private static final class Slot<T> {
+		private final long sequence;
+		private final T value;
+
+		private Slot(final long sequence, final T value) {
+			this.sequence = sequence;
+			this.value = value;
+		}
+	}
+
+	private final AtomicReferenceArray<Slot<T>> slots;
+
+	private final int mask;
+
+	private final Consumer<T> overwriteCallback;
+
+	private final Executor callbackExecutor;
+
+	private final Queue<Runnable> publishCallbacks = new ConcurrentLinkedQueue<>();
+
+	private volatile long cursor = -1;
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private final Condition published = lock.newCondition();
+
+	private final AtomicInteger waitingConsumers = new AtomicInteger();
+
+	/**
+	 * @param capacity minimum number of frames kept, rounded up to the next power of two
+	 * @param overwriteCallback invoked with each frame whose slot has been reused
+	 * @param callbackExecutor runs the callbacks registered with {@link #onPublish(long, Runnable)}
+	 */
+	public FrameRingBuffer(final int capacity, final Consumer<T> overwriteCallback, final Executor callbackExecutor) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+		}
+		final int size = Integer.highestOneBit(capacity) == capacity ? capacity : Integer.highestOneBit(capacity) << 1;
+		this.slots = new AtomicReferenceArray<>(size);
+		this.mask = size - 1;
+		this.overwriteCallback = overwriteCallback;
+		this.callbackExecutor = callbackExecutor;
+	}
+
+	/**
+	 * Publish the next frame. Must only be called from a single producer thread.
+	 *
+	 * @return the sequence number assigned to the frame
+	 */
+	public long publish(final T value) {
+		final long sequence = cursor + 1;
+		final Slot<T> overwritten = slots.getAndSet(index(sequence), new Slot<>(sequence, value));
+		cursor = sequence;
+		if (overwritten != null) {
+			overwriteCallback.accept(overwritten.value);
+		}
+		if (waitingConsumers.get() > 0) {
+			lock.lock();
+			try {
+				published.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+		if (!publishCallbacks.isEmpty()) {
+			callbackExecutor.execute(this::runPublishCallbacks);
+		}
+		return sequence;
+	}
+
+	/**
+	 * @return sequence of the most recently published frame, -1 if nothing has been published yet
+	 */
+	public long getCursor() {
+		return cursor;
+	}
+
+	public int getCapacity() {
+		return mask + 1;
+	}
+
+	/**
+	 * @return the frame with the given sequence or null if it has not been published yet or was already overwritten
+	 */
+	public T get(final long sequence) {
+		final Slot<T> slot = slots.get(index(sequence));
+		return slot != null && slot.sequence == sequence ? slot.value : null;
+	}
+
+	/**
+	 * Block until the frame with the given sequence has been published.
+	 *
+	 * @return the current cursor, which is smaller than the requested sequence if the timeout elapsed
+	 */
+	public long waitFor(final long sequence, final long timeout, final TimeUnit unit) throws InterruptedException {
+		long current = cursor;
+		if (current >= sequence) {
+			return current;
+		}
+		long remaining = unit.toNanos(timeout);
+		waitingConsumers.incrementAndGet();
+		lock.lock();
+		try {
+			while ((current = cursor) < sequence && remaining > 0) {
+				remaining = published.awaitNanos(remaining);
+			}
+			return current;
+		} finally {
+			lock.unlock();
+			waitingConsumers.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Run the callback once the frame with the given sequence has been published, without blocking the caller. The
+	 * callback is run right away if the frame is already available.
+	 */
+	public void onPublish(final long sequence, final Runnable callback) {
+		if (cursor >= sequence) {
+			callback.run();
+			return;
+		}
+		publishCallbacks.add(callback);
+		// the producer may have published in between without seeing the callback
+		if (cursor >= sequence && publishCallbacks.remove(callback)) {
+			callback.run();
+		}
+	}
+
+	/**
+	 * Remove a callback registered with {@link #onPublish(long, Runnable)} which is no longer needed.
+	 */
+	public void removePublishCallback(final Runnable callback) {
+		publishCallbacks.remove(callback);
+	}
+
+	private void runPublishCallbacks() {
+		Runnable callback;
+		while ((callback = publishCallbacks.poll()) != null) {
+			callback.run();
+		}
+	}
+
+	private int index(final long sequence) {
+		return (int) (sequence & mask);
+	}
+}
@@ -0,0 +1,34 @@
+package ch.mabaka.mjpg.multiplier.server.input;
+
+import ch.mabaka.mjpg.multiplier.server.input.data.Frame;
+
+/**
+ * The most recently published frame of a stream, as kept by {@link FrameFanOut} for still image
+ * requests.
+ */
+public final class FrameSnapshot {
+
+	private final Frame frame;
+
+	FrameSnapshot(final Frame frame) {
+		this.frame = frame;
+	}
+
+	public Frame getFrame() {
+		return frame;
+	}
+
+	/**
+	 * @return position of the frame in the stream, increases with every published frame
+	 */
+	public long getSequence() {
+		return frame.getSequence();
+	}
+
+	/**
+	 * @return time the frame was received in milliseconds since the epoch
+	 */
+	public long getTimestamp() {
+		return frame.getTimestampMicros() / 1000;
+	}
+}
@@ -0,0 +1,42 @@
+package ch.mabaka.mjpg.multiplier.server.input;
+
+/**
+ * A stage of frame processing, e.g. a watermark, a privacy mask or an analytics tap. Stages are Spring beans, referred
+ * to by their name in the stages of a processed output, see {@link ProcessedStream}. The frames of the camera are
+ * never changed, a stage changing the picture only changes what the viewers of its output see.
+ * <p>
+ * The declarations decide how a {@link ProcessedStream} runs the stage:
+ * <ul>
+ * <li>A synchronous stage runs on the thread handing the frame over, which for a first stage is the notification
+ * thread of the source, so it has to be cheap. An asynchronous stage runs on the shared processing workers.</li>
+ * <li>The picture is only decoded, once per frame and on a worker, if a stage needs the image.</li>
+ * <li>A parallel stage may process several frames of an output at the same time. Any other stage gets the frames of
+ * an output one at a time and in order, e.g. to compare a frame with the one before. The same bean may still be
+ * called for several outputs and streams at the same time, state has to be kept per
+ * {@link StageContext#getStreamName() stream}.</li>
+ * </ul>
+ */
+public interface FrameStage {
+
+	/**
+	 * @return name of the stage as listed in {@code stream.processing.outputs.<name>.stages}
+	 */
+	String getName();
+
+	default boolean isAsynchronous() {
+		return false;
+	}
+
+	default boolean needsImage() {
+		return false;
+	}
+
+	default boolean isParallel() {
+		return false;
+	}
+
+	/**
+	 * Process a frame. An exception drops the frame from the output, so a failing privacy mask never leaks a picture.
+	 */
+	void process(StageContext context) throws Exception;
+}
@@ -0,0 +1,445 @@
+package ch.mabaka.mjpg.multiplier.server.input;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+
+import ch.mabaka.mjpg.multiplier.server.input.data.Frame;
+
+/**
+ * Read cursor of a single viewer on the shared {@link FrameRingBuffer}. Not thread safe, each subscription is
+ * consumed by one writer. The statistics may be read from other threads.
+ * <p>
+ * A subscription may be limited to a maximum frame rate. Frames are then picked on a time based schedule: once the
+ * next frame is due the latest published frame is delivered and the frames in between are skipped by moving the
+ * cursor, so they cost nothing.
+ * <p>
+ * Without a frame rate limit the {@link SlowConsumerPolicy} decides which frames a viewer drops when it falls behind.
+ * A viewer exceeding the disconnect thresholds of the policy is evicted: {@link #poll()} returns no more frames and
+ * the writer is expected to close the connection.
+ * <p>
+ * A subscription may skip the frames marked unchanged by the {@link FrameChangeDetector}. One is still delivered
+ * once the keep-alive interval has passed since the last delivered frame, so the viewer sees the stream is alive. A
+ * {@link FrameFilter}, e.g. to only watch motion, skips frames the same way. Frames the filter cannot decide on yet
+ * are held back and {@link #poll()} is retried shortly after.
+ */
+public class FrameSubscription {
+
+	private static final double FRAME_INTERVAL_SMOOTHING = 0.1;
+
+	private static final long UNDECIDED_RETRY_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+	private final FrameRingBuffer<Frame> ringBuffer;
+
+	private final SlowConsumerPolicy policy;
+
+	private final EgressCounters counters;
+
+	private final LongConsumer writeLatencyRecorder;
+
+	private final long connectedSince = System.currentTimeMillis();
+
+	private volatile String client;
+
+	private volatile long nextSequence;
+
+	private volatile long skippedFrames;
+
+	private volatile long deliveredFrames;
+
+	private volatile long writtenBytes;
+
+	private long consecutiveDrops;
+
+	private volatile String evictionReason;
+
+	private volatile Runnable evictionListener;
+
+	private volatile long minFrameIntervalNanos;
+
+	private volatile long unchangedKeepAliveNanos = -1;
+
+	private volatile FrameFilter frameFilter;
+
+	private volatile long filterKeepAliveNanos;
+
+	private volatile long lastDeliveryNanos;
+
+	private volatile long averageFrameIntervalNanos;
+
+	private boolean delivered;
+
+	private boolean heldBack;
+
+	FrameSubscription(final FrameRingBuffer<Frame> ringBuffer, final SlowConsumerPolicy policy,
+			final EgressCounters counters, final LongConsumer writeLatencyRecorder) {
+		this.ringBuffer = ringBuffer;
+		this.policy = policy;
+		this.counters = counters;
+		this.writeLatencyRecorder = writeLatencyRecorder;
+		this.nextSequence = Math.max(ringBuffer.getCursor(), 0);
+	}
+
+	/**
+	 * Limit the frames delivered to this subscription.
+	 *
+	 * @param framesPerSecond maximum frame rate, 0 for no limit
+	 */
+	public void setMaxFrameRate(final double framesPerSecond) {
+		minFrameIntervalNanos = framesPerSecond > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / framesPerSecond) : 0;
+	}
+
+	/**
+	 * Start after a frame the viewer has got already, e.g. from a replay, instead of with the latest frame.
+	 */
+	public void startAfter(final long sequence) {
+		nextSequence = Math.max(nextSequence, sequence + 1);
+	}
+
+	/**
+	 * Skip the frames showing the same picture as the frames before.
+	 *
+	 * @param keepAliveInterval time after the last delivered frame after which an unchanged frame is delivered anyway
+	 */
+	public void setSkipUnchanged(final Duration keepAliveInterval) {
+		unchangedKeepAliveNanos = keepAliveInterval.toNanos();
+	}
+
+	/**
+	 * Only deliver the frames the filter accepts.
+	 *
+	 * @param keepAliveInterval time after the last delivered frame after which a rejected frame is delivered anyway
+	 */
+	public void setFrameFilter(final FrameFilter filter, final Duration keepAliveInterval) {
+		filterKeepAliveNanos = keepAliveInterval.toNanos();
+		frameFilter = filter;
+	}
+
+	/**
+	 * @return nanoseconds until the next frame may be delivered according to the maximum frame rate, or until a frame
+	 *         held back for the frame filter is asked for again, 0 if a frame is due now
+	 */
+	public long getNanosUntilDue() {
+		final long nanosUntilDue = getNanosUntilRateAllows();
+		return heldBack ? Math.max(nanosUntilDue, UNDECIDED_RETRY_NANOS) : nanosUntilDue;
+	}
+
+	/**
+	 * @return the next frame or null if no new frame has been published yet or the subscription has been evicted. The
+	 *         returned frame has been retained for the caller, which has to release it after writing.
+	 */
+	public Frame poll() {
+		if (isEvicted() || minFrameIntervalNanos > 0 && getNanosUntilRateAllows() > 0) {
+			return null;
+		}
+		boolean dropped = false;
+		while (true) {
+			final long published = ringBuffer.getCursor();
+			final long cursor = getDecidedCursor(published);
+			heldBack = cursor < published;
+			if (nextSequence > cursor) {
+				return null;
+			}
+			if (minFrameIntervalNanos > 0) {
+				decimateTo(cursor);
+			} else {
+				dropped |= applyPolicy(cursor);
+				if (isEvicted()) {
+					return null;
+				}
+			}
+			final Frame frame = ringBuffer.get(nextSequence);
+			if (frame != null && frame.retain()) {
+				nextSequence++;
+				if (skipIfUnchanged(frame) || skipIfFiltered(frame)) {
+					frame.release();
+					continue;
+				}
+				recordDelivery(dropped);
+				return frame;
+			}
+			// overwritten while we were reading, skip ahead to the latest frame
+			dropped |= skipTo(ringBuffer.getCursor());
+		}
+	}
+
+	/**
+	 * Wait until the next frame is available. The returned frame has to be released by the caller.
+	 *
+	 * @return the next frame or null if the subscription has been evicted
+	 */
+	public Frame take() throws InterruptedException {
+		Frame frame;
+		while ((frame = poll()) == null) {
+			if (isEvicted()) {
+				return null;
+			}
+			final long nanosUntilDue = getNanosUntilDue();
+			if (nanosUntilDue > 0) {
+				TimeUnit.NANOSECONDS.sleep(nanosUntilDue);
+			} else {
+				ringBuffer.waitFor(nextSequence, 1, TimeUnit.SECONDS);
+			}
+		}
+		return frame;
+	}
+
+	/**
+	 * Run the callback as soon as {@link #poll()} may return a new frame.
+	 */
+	public void onNextFrame(final Runnable callback) {
+		ringBuffer.onPublish(nextSequence, callback);
+	}
+
+	/**
+	 * @param client description of the viewer, e.g. its remote address, used in the statistics
+	 */
+	public void setClient(final String client) {
+		this.client = client;
+	}
+
+	public String getClient() {
+		return client;
+	}
+
+	/**
+	 * @return connection time in milliseconds since the epoch
+	 */
+	public long getConnectedSince() {
+		return connectedSince;
+	}
+
+	/**
+	 * @return number of frames this subscriber missed because it fell behind the producer
+	 */
+	public long getSkippedFrames() {
+		return skippedFrames;
+	}
+
+	public long getDeliveredFrames() {
+		return deliveredFrames;
+	}
+
+	/**
+	 * Account a frame written to the viewer, together with its latency since it was received.
+	 */
+	public void recordWritten(final Frame frame) {
+		final int bytes = frame.getPartLength();
+		writtenBytes += bytes;
+		counters.writtenBytes.add(bytes);
+		writeLatencyRecorder.accept(System.nanoTime() - frame.getReceivedNanos());
+	}
+
+	public long getWrittenBytes() {
+		return writtenBytes;
+	}
+
+	/**
+	 * @return number of published frames the viewer has not received yet
+	 */
+	public long getLag() {
+		return Math.max(0, ringBuffer.getCursor() - nextSequence + 1);
+	}
+
+	/**
+	 * @return frames per second recently delivered to the viewer, decaying while no frame is delivered
+	 */
+	public double getEffectiveFrameRate() {
+		final long averageInterval = averageFrameIntervalNanos;
+		if (averageInterval == 0) {
+			return 0;
+		}
+		final long sinceLastDelivery = System.nanoTime() - lastDeliveryNanos;
+		return (double) TimeUnit.SECONDS.toNanos(1) / Math.max(averageInterval, sinceLastDelivery);
+	}
+
+	/**
+	 * @param evictionListener notified when the viewer is evicted by {@link #evictIfLagging()}, which runs outside of
+	 *            the writer, e.g. to close a connection stalled in a write
+	 */
+	public void setEvictionListener(final Runnable evictionListener) {
+		this.evictionListener = evictionListener;
+	}
+
+	/**
+	 * Evict the viewer if it lags behind by more frames than the policy allows. Meant to be called periodically from
+	 * another thread, so viewers stalled in a write are evicted as well. Viewers with a frame rate limit lag behind on
+	 * purpose and are left alone.
+	 */
+	public void evictIfLagging() {
+		final long lag = getLag();
+		if (policy.getMaxLagFrames() > 0 && minFrameIntervalNanos == 0 && lag > policy.getMaxLagFrames() && !isEvicted()) {
+			evictionReason = "lagging behind by " + lag + " frames";
+			final Runnable listener = evictionListener;
+			if (listener != null) {
+				listener.run();
+			}
+		}
+	}
+
+	public boolean isEvicted() {
+		return evictionReason != null;
+	}
+
+	/**
+	 * @return why the viewer has been evicted, null while it is connected
+	 */
+	public String getEvictionReason() {
+		return evictionReason;
+	}
+
+	private long getNanosUntilRateAllows() {
+		if (minFrameIntervalNanos == 0 || !delivered) {
+			return 0;
+		}
+		return Math.max(0, lastDeliveryNanos + minFrameIntervalNanos - System.nanoTime());
+	}
+
+	/**
+	 * @return the latest frame up to the cursor the frame filter has decided on, the frames after it are held back
+	 */
+	private long getDecidedCursor(final long cursor) {
+		final FrameFilter filter = frameFilter;
+		if (filter == null || isFilterKeepAliveDue()) {
+			return cursor;
+		}
+		long sequence = cursor;
+		for (; sequence >= nextSequence; sequence--) {
+			final Frame frame = ringBuffer.get(sequence);
+			// an overwritten frame is skipped anyway
+			if (frame == null || filter.isDecided(frame)) {
+				break;
+			}
+		}
+		return sequence;
+	}
+
+	/**
+	 * Apply the slow consumer policy before delivering the frame at the cursor.
+	 *
+	 * @return true if frames have been dropped
+	 */
+	private boolean applyPolicy(final long cursor) {
+		final long lag = cursor - nextSequence + 1;
+		if (policy.getMaxLagFrames() > 0 && lag > policy.getMaxLagFrames()) {
+			evictionReason = "lagging behind by " + lag + " frames";
+			return false;
+		}
+		final boolean dropped;
+		switch (policy.getMode()) {
+		case LATEST_ONLY:
+			dropped = skipTo(cursor);
+			break;
+		case BOUNDED_BYTES:
+			dropped = skipTo(oldestWithinByteBudget(cursor));
+			break;
+		default:
+			dropped = cursor - nextSequence >= ringBuffer.getCapacity() && skipTo(cursor);
+			break;
+		}
+		if (policy.getMaxConsecutiveDrops() > 0 && consecutiveDrops >= policy.getMaxConsecutiveDrops()) {
+			evictionReason = "dropped " + consecutiveDrops + " frames without catching up";
+		}
+		return dropped;
+	}
+
+	/**
+	 * @return the oldest sequence from which on all frames up to the cursor fit into the byte budget, at least the
+	 *         cursor itself
+	 */
+	private long oldestWithinByteBudget(final long cursor) {
+		final long oldest = Math.max(nextSequence, cursor - ringBuffer.getCapacity() + 1);
+		long bytes = 0;
+		for (long sequence = cursor; sequence >= oldest; sequence--) {
+			final Frame frame = ringBuffer.get(sequence);
+			if (frame == null) {
+				// overwritten, everything older is gone as well
+				return sequence + 1;
+			}
+			bytes += frame.getPartLength();
+			if (bytes > policy.getMaxLagBytes()) {
+				return Math.min(sequence + 1, cursor);
+			}
+		}
+		return oldest;
+	}
+
+	/**
+	 * @return true if the frame is not delivered because it is unchanged and no keep-alive frame is due yet
+	 */
+	private boolean skipIfUnchanged(final Frame frame) {
+		final long keepAliveNanos = unchangedKeepAliveNanos;
+		if (keepAliveNanos < 0 || !frame.isUnchanged() || !delivered
+				|| System.nanoTime() - lastDeliveryNanos >= keepAliveNanos) {
+			return false;
+		}
+		counters.unchangedFrames.increment();
+		counters.unchangedBytes.add(frame.getPartLength());
+		return true;
+	}
+
+	/**
+	 * @return true if the frame is rejected by the frame filter and no keep-alive frame is due yet
+	 */
+	private boolean skipIfFiltered(final Frame frame) {
+		final FrameFilter filter = frameFilter;
+		if (filter == null || isFilterKeepAliveDue() || filter.accept(frame)) {
+			return false;
+		}
+		counters.filteredFrames.increment();
+		counters.filteredBytes.add(frame.getPartLength());
+		return true;
+	}
+
+	/**
+	 * @return true if a frame is delivered regardless of the frame filter
+	 */
+	private boolean isFilterKeepAliveDue() {
+		return !delivered || System.nanoTime() - lastDeliveryNanos >= filterKeepAliveNanos;
+	}
+
+	private void recordDelivery(final boolean dropped) {
+		if (!dropped) {
+			consecutiveDrops = 0;
+		}
+		final long now = System.nanoTime();
+		if (delivered) {
+			final long interval = now - lastDeliveryNanos;
+			averageFrameIntervalNanos = averageFrameIntervalNanos == 0 ? interval
+					: (long) (averageFrameIntervalNanos * (1 - FRAME_INTERVAL_SMOOTHING)
+							+ interval * FRAME_INTERVAL_SMOOTHING);
+		}
+		delivered = true;
+		lastDeliveryNanos = now;
+		deliveredFrames++;
+	}
+
+	/**
+	 * Skip the frames published since the last delivery, accounting them as saved by the frame rate limit.
+	 */
+	private void decimateTo(final long sequence) {
+		final long first = Math.max(nextSequence, sequence - ringBuffer.getCapacity() + 1);
+		for (long skipped = first; skipped < sequence; skipped++) {
+			final Frame frame = ringBuffer.get(skipped);
+			if (frame != null) {
+				counters.decimatedBytes.add(frame.getPartLength());
+			}
+		}
+		nextSequence = Math.max(nextSequence, sequence);
+	}
+
+	/**
+	 * @return true if frames have been skipped
+	 */
+	private boolean skipTo(final long sequence) {
+		if (sequence > nextSequence) {
+			final long skipped = sequence - nextSequence;
+			skippedFrames += skipped;
+			consecutiveDrops += skipped;
+			counters.droppedFrames.add(skipped);
+			nextSequence = sequence;
+			return true;
+		}
+		return false;
+	}
+}
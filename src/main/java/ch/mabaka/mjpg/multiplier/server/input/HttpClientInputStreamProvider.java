@@ -0,0 +1,196 @@
+package ch.mabaka.mjpg.multiplier.server.input;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import ch.mabaka.mjpg.multiplier.server.mystrom.MyStromClient;
+
+/**
+ * Connects to a camera with {@link HttpClient}, trying the URLs of the camera in turn.
+ * <p>
+ * The client is kept for the lifetime of the source, so a reconnect reuses idle connections and TLS sessions and
+ * host names come from the JVM's address cache, without a separate probe connection. When a connection attempt fails
+ * the next URL is tried right away. Once all URLs have failed the reader backs off exponentially with jitter, from
+ * the initial to the maximum backoff. A stream which breaks after it has been connected is retried on the same URL
+ * after the initial backoff.
+ * <p>
+ * {@link HttpClient} has no read timeout for response bodies, a stream without data for the read timeout is closed so
+ * the reader reconnects. Only the reader thread calls {@link #getInputStream()} and {@link #getRetryDelay()}.
+ */
+public class HttpClientInputStreamProvider implements IInputStreamProvider {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(HttpClientInputStreamProvider.class);
+
+	private static final String USER_AGENT = "Mozilla/5.0 (compatible; mjpg-multiplier/1.0)";
+
+	private static final ScheduledExecutorService READ_TIMEOUT_SCHEDULER = Executors
+			.newSingleThreadScheduledExecutor(daemonThreadFactory());
+
+	private final List<URI> urls;
+
+	private final MyStromClient myStromClient;
+
+	private final HttpClient httpClient;
+
+	private final Duration connectTimeout;
+
+	private final Duration readTimeout;
+
+	private final Duration initialBackoff;
+
+	private final Duration maxBackoff;
+
+	private int urlIndex;
+
+	private int consecutiveFailures;
+
+	/**
+	 * @param urls URLs of the same camera, the first one is tried first
+	 * @param myStromClient switch powering the camera, null if the source has no power-cycle binding
+	 */
+	public HttpClientInputStreamProvider(final List<String> urls, final MyStromClient myStromClient,
+			final Duration connectTimeout, final Duration readTimeout, final Duration initialBackoff,
+			final Duration maxBackoff) {
+		if (urls.isEmpty()) {
+			throw new IllegalArgumentException("At least one URL is required");
+		}
+		this.urls = urls.stream().map(URI::create).toList();
+		this.myStromClient = myStromClient;
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+		this.initialBackoff = initialBackoff;
+		this.maxBackoff = maxBackoff;
+		this.httpClient = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).connectTimeout(connectTimeout)
+				.followRedirects(HttpClient.Redirect.NORMAL).build();
+	}
+
+	@Override
+	public InputStream getInputStream() throws Exception {
+		final URI uri = urls.get(urlIndex);
+		// the request timeout ends once the response headers have arrived
+		final HttpRequest request = HttpRequest.newBuilder(uri).timeout(connectTimeout)
+				.header("User-Agent", USER_AGENT).GET().build();
+		LOGGER.info("Connecting to stream URL: {}", uri);
+		try {
+			final HttpResponse<InputStream> response = httpClient.send(request,
+					HttpResponse.BodyHandlers.ofInputStream());
+			if (response.statusCode() != 200) {
+				response.body().close();
+				throw new IOException("Failed to connect. HTTP response code: " + response.statusCode());
+			}
+			consecutiveFailures = 0;
+			LOGGER.info("Connected to stream {}", uri);
+			return new ReadTimeoutInputStream(response.body(), uri);
+		} catch (IOException e) {
+			onFailure(uri, e);
+			throw e;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw e;
+		}
+	}
+
+	@Override
+	public Duration getRetryDelay() {
+		if (consecutiveFailures % urls.size() != 0) {
+			// fail over to the next URL right away
+			return Duration.ZERO;
+		}
+		final int rounds = consecutiveFailures / urls.size();
+		final long backoff = Math.min(maxBackoff.toMillis(), initialBackoff.toMillis() << Math.min(rounds, 20));
+		// at least half of the backoff, so the retries of several sources spread out
+		return Duration.ofMillis(backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1));
+	}
+
+	private void onFailure(final URI uri, final Exception e) {
+		consecutiveFailures++;
+		LOGGER.warn("Connecting to stream {} failed: {}", uri, e.toString());
+		urlIndex = (urlIndex + 1) % urls.size();
+		if (consecutiveFailures % urls.size() != 0 || myStromClient == null) {
+			return;
+		}
+		// every URL failed, power-cycle the camera if it seems to be down
+		if (HttpInputStreamProvider.isUnreachable(e)) {
+			try {
+				if (myStromClient.tryPowerCycleIfAllowed()) {
+					LOGGER.info("Triggered myStrom powerCycle because no URL of the camera is reachable");
+				}
+			} catch (Exception ex) {
+				LOGGER.error("Error while attempting myStrom powerCycle: {}", ex.toString(), ex);
+			}
+		}
+	}
+
+	private static CustomizableThreadFactory daemonThreadFactory() {
+		final CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("mjpg-upstream-timeout-");
+		threadFactory.setDaemon(true);
+		return threadFactory;
+	}
+
+	/**
+	 * Closes the stream when no data has been read for the read timeout, which makes the pending read fail.
+	 */
+	private final class ReadTimeoutInputStream extends FilterInputStream {
+
+		private final URI uri;
+
+		private final ScheduledFuture<?> check;
+
+		private volatile long lastReadNanos = System.nanoTime();
+
+		private ReadTimeoutInputStream(final InputStream in, final URI uri) {
+			super(in);
+			this.uri = uri;
+			final long interval = Math.max(1, readTimeout.toMillis() / 2);
+			this.check = READ_TIMEOUT_SCHEDULER.scheduleWithFixedDelay(this::closeIfIdle, interval, interval,
+					TimeUnit.MILLISECONDS);
+		}
+
+		@Override
+		public int read() throws IOException {
+			final int b = super.read();
+			lastReadNanos = System.nanoTime();
+			return b;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+			final int count = super.read(b, off, len);
+			lastReadNanos = System.nanoTime();
+			return count;
+		}
+
+		@Override
+		public void close() throws IOException {
+			check.cancel(false);
+			super.close();
+		}
+
+		private void closeIfIdle() {
+			if (System.nanoTime() - lastReadNanos > readTimeout.toNanos()) {
+				LOGGER.warn("No data from stream {} for {} ms; reconnecting", uri, readTimeout.toMillis());
+				try {
+					close();
+				} catch (IOException e) {
+					// the reader notices the closed stream
+				}
+			}
+		}
+	}
+}
@@ -10,13 +10,10 @@ import java.net.Socket;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.beans.factory.annotation.Value;
-import org.springframework.stereotype.Component;
 import ch.mabaka.mjpg.multiplier.server.mystrom.MyStromClient;
 
 import ch.mabaka.mjpg.multiplier.server.rest.StreamController;
 
-@Component
 public class HttpInputStreamProvider implements IInputStreamProvider {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(StreamController.class);
@@ -24,7 +21,10 @@ public class HttpInputStreamProvider implements IInputStreamProvider {
     private final String url;
     private final MyStromClient myStromClient;
 
-    public HttpInputStreamProvider(@Value("${stream.url}") String url, MyStromClient myStromClient) {
+    /**
+     * @param myStromClient switch powering the camera, null if the source has no power-cycle binding
+     */
+    public HttpInputStreamProvider(String url, MyStromClient myStromClient) {
         this.url = url;
         this.myStromClient = myStromClient;
     }
@@ -52,7 +52,9 @@ public class HttpInputStreamProvider implements IInputStreamProvider {
             LOGGER.error("DNS or socket connection failed for {}:{} - {}", host, port, e.toString(), e);
             // Only trigger powerCycle if the exception indicates the camera is not reachable
             try {
-                if (isUnreachable(e)) {
+                if (myStromClient == null) {
+                    LOGGER.debug("No myStrom switch configured for {}; skipping powerCycle", host);
+                } else if (isUnreachable(e)) {
                     boolean triggered = myStromClient.tryPowerCycleIfAllowed();
                     if (triggered) {
                         LOGGER.info("Triggered myStrom powerCycle due to socket/DNS failure for {}", host);
@@ -97,7 +99,9 @@ public class HttpInputStreamProvider implements IInputStreamProvider {
             }
             // Try power cycle if allowed, but only when the exception indicates the camera is unreachable
             try {
-                if (isUnreachable(e)) {
+                if (myStromClient == null) {
+                    LOGGER.debug("No myStrom switch configured for URL {}; skipping powerCycle", url);
+                } else if (isUnreachable(e)) {
                     boolean triggered = myStromClient.tryPowerCycleIfAllowed();
                     if (triggered) {
                         LOGGER.info("Triggered myStrom powerCycle due to stream connection failure for URL {}", url);
@@ -113,7 +117,7 @@ public class HttpInputStreamProvider implements IInputStreamProvider {
     }
 
     // Inspect exception and its causes to determine if it represents an unreachable device
-    private static boolean isUnreachable(Throwable t) {
+    static boolean isUnreachable(Throwable t) {
         Throwable cur = t;
         while (cur != null) {
             if (cur instanceof java.net.UnknownHostException
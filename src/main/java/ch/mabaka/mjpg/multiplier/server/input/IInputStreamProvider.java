@@ -1,7 +1,16 @@
 package ch.mabaka.mjpg.multiplier.server.input;
 
 import java.io.InputStream;
+import java.time.Duration;
 
 public interface IInputStreamProvider {
     InputStream getInputStream() throws Exception;
-}
\ No newline at end of file
+
+    /**
+     * @return how long the reader waits before calling {@link #getInputStream()} again after the connection failed or
+     *         the stream broke
+     */
+    default Duration getRetryDelay() {
+        return Duration.ofSeconds(1);
+    }
+}
@@ -0,0 +1,139 @@
+package ch.mabaka.mjpg.multiplier.server.input;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+import ch.mabaka.mjpg.multiplier.server.input.data.Frame;
+import ch.mabaka.mjpg.multiplier.server.input.data.FrameBufferPool;
+
+/**
+ * Scales and re-encodes a JPEG frame for an output profile. A frame much larger than the profile is decoded with
+ * subsampling, which skips most of the decoding work, and then scaled to the final width with bilinear interpolation.
+ * Thread safe, the image readers and writers are kept per thread.
+ */
+class JpegTranscoder {
+
+	private static final ThreadLocal<ImageReader> READERS = ThreadLocal.withInitial(() -> first(
+			ImageIO.getImageReadersByFormatName("jpeg")));
+
+	private static final ThreadLocal<ImageWriter> WRITERS = ThreadLocal.withInitial(() -> first(
+			ImageIO.getImageWritersByFormatName("jpeg")));
+
+	private final int width;
+
+	private final float quality;
+
+	private final FrameBufferPool frameBufferPool;
+
+	/**
+	 * @param width width of the result, 0 to keep the width of the source
+	 * @param quality JPEG quality between 0 and 1
+	 */
+	JpegTranscoder(final int width, final float quality, final FrameBufferPool frameBufferPool) {
+		if (quality < 0 || quality > 1) {
+			throw new IllegalArgumentException("JPEG quality must be between 0 and 1: " + quality);
+		}
+		this.width = width;
+		this.quality = quality;
+		this.frameBufferPool = frameBufferPool;
+	}
+
+	/**
+	 * @return a new frame with the timestamps and change mark of the source, owned by the caller
+	 */
+	Frame transcode(final Frame source) throws IOException {
+		final Frame frame = encode(decodeScaled(source));
+		frame.setReceived(source.getTimestampMicros(), source.getReceivedNanos());
+		frame.setParsed(source.getParsedNanos());
+		frame.setUnchanged(source.isUnchanged());
+		return frame;
+	}
+
+	/**
+	 * @return the picture of the frame scaled to the width of the transcoder
+	 */
+	BufferedImage decodeScaled(final Frame source) throws IOException {
+		final byte[] jpeg = new byte[source.getJpegLength()];
+		source.getJpeg().get(jpeg);
+		return scale(decode(jpeg));
+	}
+
+	/**
+	 * @return a new frame with the picture encoded with the quality of the transcoder, owned by the caller
+	 */
+	Frame encode(final BufferedImage image) throws IOException {
+		final byte[] encoded = encodeJpeg(image);
+		final Frame frame = frameBufferPool.allocate(encoded.length);
+		frame.put(0, encoded, 0, encoded.length);
+		return frame;
+	}
+
+	private BufferedImage decode(final byte[] jpeg) throws IOException {
+		final ImageReader reader = READERS.get();
+		try (MemoryCacheImageInputStream input = new MemoryCacheImageInputStream(new ByteArrayInputStream(jpeg))) {
+			reader.setInput(input, true, true);
+			final ImageReadParam param = reader.getDefaultReadParam();
+			final int sourceWidth = reader.getWidth(0);
+			// decode at no less than twice the target width, the final scaling smooths the result
+			final int subsampling = width > 0 ? Math.max(1, sourceWidth / (2 * width)) : 1;
+			if (subsampling > 1) {
+				param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+			}
+			return reader.read(0, param);
+		} finally {
+			reader.setInput(null);
+		}
+	}
+
+	private BufferedImage scale(final BufferedImage image) {
+		if (width <= 0 || width >= image.getWidth()) {
+			return image;
+		}
+		final int height = Math.max(1, Math.round((float) image.getHeight() * width / image.getWidth()));
+		final BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		final Graphics2D graphics = scaled.createGraphics();
+		try {
+			graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			graphics.drawImage(image, 0, 0, width, height, null);
+		} finally {
+			graphics.dispose();
+		}
+		return scaled;
+	}
+
+	private byte[] encodeJpeg(final BufferedImage image) throws IOException {
+		final ImageWriter writer = WRITERS.get();
+		final ImageWriteParam param = writer.getDefaultWriteParam();
+		param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+		param.setCompressionQuality(quality);
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream(image.getWidth() * image.getHeight() / 4);
+		try (MemoryCacheImageOutputStream output = new MemoryCacheImageOutputStream(bytes)) {
+			writer.setOutput(output);
+			writer.write(null, new IIOImage(image, null, null), param);
+		} finally {
+			writer.setOutput(null);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static <T> T first(final Iterator<T> iterator) {
+		if (!iterator.hasNext()) {
+			throw new IllegalStateException("No JPEG codec available");
+		}
+		return iterator.next();
+	}
+}
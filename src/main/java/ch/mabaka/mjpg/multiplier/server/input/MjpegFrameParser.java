@@ -0,0 +1,542 @@
+package ch.mabaka.mjpg.multiplier.server.input;
+
+import java.io.ByteArrayOutputStream;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ch.mabaka.mjpg.multiplier.server.input.data.Frame;
+import ch.mabaka.mjpg.multiplier.server.input.data.FrameBufferPool;
+
+/**
+ * Incremental parser for multipart MJPEG streams which works on raw bytes.
+ * <p>
+ * Data is fed in arbitrarily sized chunks. Every byte of the part headers is inspected exactly once, the parser
+ * remembers where its scan stopped between calls. Part headers may come in any order; when a
+ * {@code Content-Length} header is present the frame body is copied straight from the read chunks into the
+ * pooled, pre-encoded {@link Frame} without being scanned. Parts without {@code Content-Length} are delimited by the JPEG
+ * end of image marker. The marker segments of such a part are skipped by their length, so the end of image marker of
+ * an embedded thumbnail, e.g. in the EXIF data, does not end the frame early.
+ * <p>
+ * Each frame is stamped with the time its first header line was received and the time it was complete.
+ * <p>
+ * When reading from another multiplier the {@link Frame#TIMESTAMP_HEADER} and {@link Frame#SEQUENCE_HEADER} part
+ * headers written by the upstream are parsed as well. The frame then keeps the receive time of the upstream, so the
+ * timestamp sent to the viewers is the one of the origin, and the upstream values of the frame being passed to the
+ * frame consumer are available from {@link #getUpstreamSequence()} and {@link #getUpstreamLatencyMicros()}.
+ */
+public class MjpegFrameParser {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(MjpegFrameParser.class);
+
+	/**
+	 * Longest header line which is inspected. Longer lines are skipped.
+	 */
+	private static final int MAX_LINE_LENGTH = 1024;
+
+	/**
+	 * Largest frame accepted (32 MB). Larger parts are considered a corrupted stream.
+	 */
+	private static final int MAX_FRAME_LENGTH = 32 * 1024 * 1024;
+
+	private static final byte[] CONTENT_LENGTH = "content-length:".getBytes();
+
+	private static final byte[] TIMESTAMP = (Frame.TIMESTAMP_HEADER.toLowerCase() + ":").getBytes();
+
+	private static final byte[] SEQUENCE = (Frame.SEQUENCE_HEADER.toLowerCase() + ":").getBytes();
+
+	private static final int EOI_MARKER = 0xD9;
+
+	private static final int SOS_MARKER = 0xDA;
+
+	private enum State {
+		HEADER, BODY, BODY_UNTIL_EOI
+	}
+
+	/**
+	 * Position in the marker structure of a JPEG read until its end of image marker.
+	 */
+	private enum JpegState {
+		/** between marker segments, waiting for the next marker prefix */
+		MARKER,
+		/** after a marker prefix */
+		MARKER_CODE,
+		LENGTH_HIGH,
+		LENGTH_LOW,
+		/** skipping the payload of a marker segment */
+		SEGMENT,
+		/** entropy coded data of a scan, where only stuffed bytes and restart markers follow a marker prefix */
+		ENTROPY,
+		ENTROPY_MARKER_CODE
+	}
+
+	private final FrameBufferPool bufferPool;
+
+	private final Consumer<Frame> frameConsumer;
+
+	private final boolean upstreamTiming;
+
+	private final byte[] line = new byte[MAX_LINE_LENGTH];
+
+	private State state = State.HEADER;
+
+	private int lineLength;
+
+	private boolean lineOverflow;
+
+	private int headerLineCount;
+
+	private long partTimestampMicros;
+
+	private long partReceivedNanos;
+
+	private int contentLength = -1;
+
+	private long partUpstreamTimestampMicros = -1;
+
+	private long partUpstreamSequence = -1;
+
+	private long upstreamTimestampMicros = -1;
+
+	private long upstreamSequence = -1;
+
+	private long upstreamLatencyMicros = Long.MIN_VALUE;
+
+	private Frame frame;
+
+	private int bodyPosition;
+
+	private final EoiBuffer untilEoiBuffer = new EoiBuffer();
+
+	private JpegState jpegState = JpegState.MARKER;
+
+	private int segmentMarker;
+
+	private int segmentRemaining;
+
+	private long scannedBytes;
+
+	private long copiedBytes;
+
+	private long frameCount;
+
+	/**
+	 * @param frameConsumer receives each completed frame together with its initial reference
+	 */
+	public MjpegFrameParser(final FrameBufferPool bufferPool, final Consumer<Frame> frameConsumer) {
+		this(bufferPool, frameConsumer, false);
+	}
+
+	/**
+	 * @param frameConsumer receives each completed frame together with its initial reference
+	 * @param upstreamTiming true to take over the timing headers of an upstream multiplier
+	 */
+	public MjpegFrameParser(final FrameBufferPool bufferPool, final Consumer<Frame> frameConsumer,
+			final boolean upstreamTiming) {
+		this.bufferPool = bufferPool;
+		this.frameConsumer = frameConsumer;
+		this.upstreamTiming = upstreamTiming;
+	}
+
+	/**
+	 * Feed the next chunk of the stream. Completed frames are passed to the frame consumer before this method returns.
+	 */
+	public void feed(final byte[] data, final int offset, final int length) {
+		int position = offset;
+		final int end = offset + length;
+		while (position < end) {
+			switch (state) {
+			case HEADER:
+				position = scanHeader(data, position, end);
+				break;
+			case BODY:
+				position = copyBody(data, position, end);
+				break;
+			case BODY_UNTIL_EOI:
+				position = scanUntilEoi(data, position, end);
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Discard any partially parsed frame, e.g. after the upstream connection has been re-established.
+	 */
+	public void reset() {
+		state = State.HEADER;
+		resetHeader();
+		if (frame != null) {
+			frame.release();
+			frame = null;
+		}
+		untilEoiBuffer.reset();
+		jpegState = JpegState.MARKER;
+	}
+
+	/**
+	 * @return number of bytes inspected while searching for header lines and end of image markers
+	 */
+	public long getScannedBytes() {
+		return scannedBytes;
+	}
+
+	/**
+	 * @return number of JPEG bytes copied into frames
+	 */
+	public long getCopiedBytes() {
+		return copiedBytes;
+	}
+
+	public long getFrameCount() {
+		return frameCount;
+	}
+
+	/**
+	 * @return the {@link Frame#SEQUENCE_HEADER} of the frame being passed to the frame consumer, -1 if the upstream
+	 *         sent none
+	 */
+	public long getUpstreamSequence() {
+		return upstreamSequence;
+	}
+
+	/**
+	 * @return microseconds from the time in the {@link Frame#TIMESTAMP_HEADER} of the frame being passed to the frame
+	 *         consumer until its first header line was received here, {@link Long#MIN_VALUE} if the upstream sent no
+	 *         timestamp
+	 */
+	public long getUpstreamLatencyMicros() {
+		return upstreamLatencyMicros;
+	}
+
+	private int scanHeader(final byte[] data, final int start, final int end) {
+		int position = start;
+		while (position < end) {
+			final byte b = data[position++];
+			scannedBytes++;
+			if (b == '\n') {
+				if (headerLineCompleted()) {
+					return position;
+				}
+			} else if (lineLength < MAX_LINE_LENGTH) {
+				line[lineLength++] = b;
+			} else {
+				lineOverflow = true;
+			}
+		}
+		return position;
+	}
+
+	/**
+	 * @return true when the blank line terminating the part headers has been seen
+	 */
+	private boolean headerLineCompleted() {
+		int length = lineLength;
+		if (length > 0 && line[length - 1] == '\r') {
+			length--;
+		}
+		final boolean overflow = lineOverflow;
+		lineLength = 0;
+		lineOverflow = false;
+
+		if (length == 0 && !overflow) {
+			if (headerLineCount == 0) {
+				// CRLF trailing the previous part or preamble
+				return false;
+			}
+			startBody();
+			return true;
+		}
+		if (headerLineCount == 0) {
+			partReceivedNanos = System.nanoTime();
+			partTimestampMicros = Frame.currentTimeMicros();
+		}
+		headerLineCount++;
+		if (overflow) {
+			return false;
+		}
+		if (startsWithIgnoreCase(line, length, CONTENT_LENGTH)) {
+			contentLength = parseContentLength(line, CONTENT_LENGTH.length, length);
+		} else if (upstreamTiming && startsWithIgnoreCase(line, length, TIMESTAMP)) {
+			partUpstreamTimestampMicros = parseTimestampMicros(line, TIMESTAMP.length, length);
+		} else if (upstreamTiming && startsWithIgnoreCase(line, length, SEQUENCE)) {
+			partUpstreamSequence = parseSequence(line, SEQUENCE.length, length);
+		}
+		return false;
+	}
+
+	private void startBody() {
+		upstreamTimestampMicros = partUpstreamTimestampMicros;
+		upstreamSequence = partUpstreamSequence;
+		if (contentLength > 0 && contentLength <= MAX_FRAME_LENGTH) {
+			frame = bufferPool.allocate(contentLength);
+			stampReceived(frame);
+			bodyPosition = 0;
+			state = State.BODY;
+		} else {
+			if (contentLength > MAX_FRAME_LENGTH) {
+				LOGGER.warn("Content length {} exceeds maximum frame length; searching end of image instead",
+						contentLength);
+			}
+			untilEoiBuffer.reset();
+			jpegState = JpegState.MARKER;
+			state = State.BODY_UNTIL_EOI;
+		}
+		resetHeader();
+	}
+
+	private int copyBody(final byte[] data, final int start, final int end) {
+		final int count = Math.min(frame.getJpegLength() - bodyPosition, end - start);
+		frame.put(bodyPosition, data, start, count);
+		bodyPosition += count;
+		copiedBytes += count;
+		if (bodyPosition == frame.getJpegLength()) {
+			final Frame completed = frame;
+			frame = null;
+			state = State.HEADER;
+			emit(completed);
+		}
+		return start + count;
+	}
+
+	private int scanUntilEoi(final byte[] data, final int start, final int end) {
+		int position = start;
+		while (position < end) {
+			if (jpegState == JpegState.SEGMENT) {
+				// the payload of a segment is not inspected
+				final int skipped = Math.min(segmentRemaining, end - position);
+				position += skipped;
+				segmentRemaining -= skipped;
+				if (segmentRemaining == 0) {
+					endSegment();
+				}
+				continue;
+			}
+			final int b = data[position++] & 0xFF;
+			scannedBytes++;
+			if (nextJpegByte(b)) {
+				untilEoiBuffer.write(data, start, position - start);
+				final Frame completed = bufferPool.allocate(untilEoiBuffer.size());
+				stampReceived(completed);
+				untilEoiBuffer.writeTo(completed);
+				copiedBytes += untilEoiBuffer.size();
+				untilEoiBuffer.reset();
+				jpegState = JpegState.MARKER;
+				state = State.HEADER;
+				emit(completed);
+				return position;
+			}
+		}
+		untilEoiBuffer.write(data, start, end - start);
+		if (untilEoiBuffer.size() > MAX_FRAME_LENGTH) {
+			LOGGER.warn("No end of image marker found within {} bytes; discarding data", MAX_FRAME_LENGTH);
+			reset();
+		}
+		return end;
+	}
+
+	/**
+	 * Follow the marker structure of the JPEG by one byte.
+	 *
+	 * @return true if the byte completes the end of image marker
+	 */
+	private boolean nextJpegByte(final int b) {
+		switch (jpegState) {
+		case MARKER:
+			if (b == 0xFF) {
+				jpegState = JpegState.MARKER_CODE;
+			}
+			return false;
+		case MARKER_CODE:
+		case ENTROPY_MARKER_CODE:
+			return markerCode(b);
+		case LENGTH_HIGH:
+			segmentRemaining = b << 8;
+			jpegState = JpegState.LENGTH_LOW;
+			return false;
+		case LENGTH_LOW:
+			// the length includes its own two bytes
+			segmentRemaining = (segmentRemaining | b) - 2;
+			if (segmentRemaining > 0) {
+				jpegState = JpegState.SEGMENT;
+			} else {
+				endSegment();
+			}
+			return false;
+		case ENTROPY:
+			if (b == 0xFF) {
+				jpegState = JpegState.ENTROPY_MARKER_CODE;
+			}
+			return false;
+		default:
+			return false;
+		}
+	}
+
+	private boolean markerCode(final int b) {
+		final boolean entropy = jpegState == JpegState.ENTROPY_MARKER_CODE;
+		if (b == 0xFF) {
+			// fill byte, the marker code is still to come
+			return false;
+		}
+		if (b == EOI_MARKER) {
+			return true;
+		}
+		if (b == 0x00 || b >= 0xD0 && b <= 0xD7) {
+			// stuffed byte or restart marker within the scan
+			jpegState = entropy ? JpegState.ENTROPY : JpegState.MARKER;
+			return false;
+		}
+		if (b == 0xD8 || b == 0x01) {
+			// markers without a segment
+			jpegState = JpegState.MARKER;
+			return false;
+		}
+		segmentMarker = b;
+		jpegState = JpegState.LENGTH_HIGH;
+		return false;
+	}
+
+	private void endSegment() {
+		jpegState = segmentMarker == SOS_MARKER ? JpegState.ENTROPY : JpegState.MARKER;
+	}
+
+	private void stampReceived(final Frame target) {
+		if (upstreamTimestampMicros >= 0) {
+			target.setReceived(upstreamTimestampMicros, partReceivedNanos);
+			upstreamLatencyMicros = partTimestampMicros - upstreamTimestampMicros;
+		} else {
+			target.setReceived(partTimestampMicros, partReceivedNanos);
+			upstreamLatencyMicros = Long.MIN_VALUE;
+		}
+	}
+
+	private void emit(final Frame completed) {
+		completed.setParsed(System.nanoTime());
+		frameCount++;
+		frameConsumer.accept(completed);
+	}
+
+	private void resetHeader() {
+		lineLength = 0;
+		lineOverflow = false;
+		headerLineCount = 0;
+		contentLength = -1;
+		partUpstreamTimestampMicros = -1;
+		partUpstreamSequence = -1;
+	}
+
+	private static boolean startsWithIgnoreCase(final byte[] line, final int length, final byte[] lowerCasePrefix) {
+		if (length < lowerCasePrefix.length) {
+			return false;
+		}
+		for (int i = 0; i < lowerCasePrefix.length; i++) {
+			byte b = line[i];
+			if (b >= 'A' && b <= 'Z') {
+				b += 'a' - 'A';
+			}
+			if (b != lowerCasePrefix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int parseContentLength(final byte[] line, final int start, final int end) {
+		long value = 0;
+		boolean digits = false;
+		for (int i = start; i < end; i++) {
+			final byte b = line[i];
+			if (b == ' ' || b == '\t') {
+				if (digits) {
+					break;
+				}
+				continue;
+			}
+			if (b < '0' || b > '9') {
+				break;
+			}
+			digits = true;
+			value = value * 10 + (b - '0');
+			if (value > Integer.MAX_VALUE) {
+				LOGGER.warn("Could not parse content length: value too large");
+				return -1;
+			}
+		}
+		if (!digits) {
+			LOGGER.warn("Could not parse content length: " + new String(line, start, end - start));
+			return -1;
+		}
+		return (int) value;
+	}
+
+	/**
+	 * Parse seconds since the epoch with up to six decimals, e.g. {@code 1700000000.123456}.
+	 *
+	 * @return microseconds since the epoch, -1 if the value cannot be parsed
+	 */
+	private static long parseTimestampMicros(final byte[] line, final int start, final int end) {
+		long micros = -1;
+		int decimals = -1;
+		for (int i = start; i < end; i++) {
+			final byte b = line[i];
+			if (b == ' ' || b == '\t') {
+				if (micros >= 0) {
+					break;
+				}
+			} else if (b == '.' && decimals < 0 && micros >= 0) {
+				decimals = 0;
+			} else if (b >= '0' && b <= '9' && micros < Long.MAX_VALUE / 100) {
+				if (decimals < 6) {
+					micros = Math.max(micros, 0) * 10 + (b - '0');
+					if (decimals >= 0) {
+						decimals++;
+					}
+				}
+			} else {
+				return -1;
+			}
+		}
+		if (micros < 0) {
+			return -1;
+		}
+		for (int i = Math.max(decimals, 0); i < 6; i++) {
+			micros *= 10;
+		}
+		return micros;
+	}
+
+	/**
+	 * @return the sequence number, -1 if the value cannot be parsed
+	 */
+	private static long parseSequence(final byte[] line, final int start, final int end) {
+		long value = -1;
+		for (int i = start; i < end; i++) {
+			final byte b = line[i];
+			if (b == ' ' || b == '\t') {
+				if (value >= 0) {
+					break;
+				}
+			} else if (b >= '0' && b <= '9' && value < Long.MAX_VALUE / 10) {
+				value = Math.max(value, 0) * 10 + (b - '0');
+			} else {
+				return -1;
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * Accumulates parts without content length until the end of image marker shows up.
+	 */
+	private static final class EoiBuffer extends ByteArrayOutputStream {
+
+		private EoiBuffer() {
+			super(64 * 1024);
+		}
+
+		private void writeTo(final Frame target) {
+			target.put(0, buf, 0, count);
+		}
+	}
+}
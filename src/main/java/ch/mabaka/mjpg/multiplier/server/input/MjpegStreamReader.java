@@ -0,0 +1,242 @@
+package ch.mabaka.mjpg.multiplier.server.input;
+
+import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import ch.mabaka.mjpg.multiplier.server.input.data.Frame;
+import ch.mabaka.mjpg.multiplier.server.input.data.FrameBufferPool;
+
+/**
+ * Reads the MJPEG stream of one source on its own thread and publishes the frames to the source's
+ * {@link FrameFanOut}. Connections and frames are reported to the {@link StreamWatchdog}, which may
+ * force a reconnect with {@link #reconnect()}. Before a frame is published the {@link FrameChangeDetector} marks it if
+ * it shows the same picture as the frames before, after publishing the frame is kept in the {@link ReplayBuffer}.
+ * <p>
+ * A source which is another multiplier is read with a {@link RelayMonitor}: the frames keep the timestamps of the
+ * upstream and the relay latency and gaps are reported to the monitor.
+ */
+public class MjpegStreamReader {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(MjpegStreamReader.class);
+
+	private static final int READ_BUFFER_SIZE = 16 * 1024;
+	
+	private final String streamName;
+
+	private final IInputStreamProvider inputStreamProvider;
+
+	private final FrameFanOut fanOut;
+
+	private final MjpegFrameParser frameParser;
+
+	private final StreamMetrics metrics;
+
+	private final StreamWatchdog watchdog;
+
+	private final FrameChangeDetector changeDetector;
+
+	private final ReplayBuffer replayBuffer;
+
+	private final RelayMonitor relayMonitor;
+
+	private final ExecutorService executorService;
+
+	private boolean keepReading;
+
+	private boolean reading;
+
+	private volatile InputStream currentInputStream;
+
+	private volatile boolean isBackendStreamAvailable = false;
+
+	private int framesInChunk;
+
+	private long publishNanosInChunk;
+
+	public MjpegStreamReader(final String streamName, final IInputStreamProvider inputStreamProvider,
+			final FrameFanOut fanOut, final FrameBufferPool frameBufferPool,
+			final StreamMetrics metrics, final StreamWatchdog watchdog, final FrameChangeDetector changeDetector,
+			final ReplayBuffer replayBuffer, final RelayMonitor relayMonitor) {
+		this.streamName = streamName;
+		this.inputStreamProvider = inputStreamProvider;
+		this.fanOut = fanOut;
+		this.frameParser = new MjpegFrameParser(frameBufferPool, this::publish, relayMonitor != null);
+		this.metrics = metrics;
+		this.watchdog = watchdog;
+		this.changeDetector = changeDetector;
+		this.replayBuffer = replayBuffer;
+		this.relayMonitor = relayMonitor;
+		this.executorService = Executors
+				.newSingleThreadExecutor(new CustomizableThreadFactory("mjpg-reader-" + streamName + "-"));
+	}
+
+	public void init() {
+		startReading();
+	}
+
+	/**
+	 * Start reading the upstream stream unless it is read already. Reading continues, reconnecting on errors, until
+	 * {@link #pauseReading()} or {@link #stopReading()} is called.
+	 */
+	public synchronized void startReading() {
+		keepReading = true;
+		if (!reading) {
+			reading = true;
+			executorService.submit(this::readUntilPaused);
+		}
+	}
+
+	/**
+	 * Disconnect from the upstream stream. The frames published so far stay available to the viewers.
+	 */
+	public void pauseReading() {
+		synchronized (this) {
+			keepReading = false;
+		}
+		closeQuietly(currentInputStream);
+	}
+
+	private synchronized boolean continueReading() {
+		if (!keepReading) {
+			reading = false;
+			isBackendStreamAvailable = false;
+		}
+		return keepReading;
+	}
+
+	/**
+	 * Drop the current connection, the reader connects again right away unless it has been paused.
+	 */
+	public void reconnect() {
+		closeQuietly(currentInputStream);
+	}
+
+	private synchronized boolean isPaused() {
+		return !keepReading;
+	}
+
+	private void readUntilPaused() {
+		boolean connectedBefore = false;
+		while (continueReading()) {
+			try (InputStream inputStream = inputStreamProvider.getInputStream()) {
+				currentInputStream = inputStream;
+				if (isPaused()) {
+					continue;
+				}
+				if (connectedBefore) {
+					metrics.recordReconnect();
+				}
+				connectedBefore = true;
+				final byte[] readBuffer = new byte[READ_BUFFER_SIZE];
+				int bytesRead;
+				long parseNanos = 0;
+				isBackendStreamAvailable = true;
+				watchdog.onConnected(System.nanoTime());
+				frameParser.reset();
+				changeDetector.reset();
+				if (relayMonitor != null) {
+					relayMonitor.onConnected();
+				}
+				while ((bytesRead = inputStream.read(readBuffer)) != -1) {
+					metrics.recordBytesRead(bytesRead);
+					framesInChunk = 0;
+					publishNanosInChunk = 0;
+					final long start = System.nanoTime();
+					frameParser.feed(readBuffer, 0, bytesRead);
+					parseNanos += System.nanoTime() - start - publishNanosInChunk;
+					if (framesInChunk > 0) {
+						// the parse time of the chunks since the last frame is split among the completed frames
+						for (int i = 0; i < framesInChunk; i++) {
+							metrics.recordParseTime(parseNanos / framesInChunk);
+						}
+						parseNanos = 0;
+					}
+				}
+			} catch (Exception e) {
+				isBackendStreamAvailable = false;
+				if (isPaused()) {
+					LOGGER.info("Stopped reading stream {}", streamName);
+					continue;
+				}
+				LOGGER.error("Error reading from InputStream of stream " + streamName + ": " + e.getClass().getName()
+						+ " " + e.getMessage());
+				LOGGER.debug("Stack trace: ", e);
+				try {
+					Thread.sleep(inputStreamProvider.getRetryDelay().toMillis());
+				} catch (InterruptedException interruptedException) {
+					Thread.currentThread().interrupt();
+					LOGGER.error("Thread interrupted: " + interruptedException.getMessage());
+					return;
+				}
+			} finally {
+				watchdog.onDisconnected();
+				currentInputStream = null;
+			}
+		}
+	}
+
+	private void publish(final Frame frame) {
+		changeDetector.check(frame);
+		final long start = System.nanoTime();
+		watchdog.onFrame(start);
+		if (relayMonitor != null) {
+			relayMonitor.onFrame(frameParser.getUpstreamSequence(), frameParser.getUpstreamLatencyMicros());
+		}
+		fanOut.publish(frame);
+		final long publishNanos = System.nanoTime() - start;
+		// still referenced by the snapshot, which is only replaced by the next publish
+		replayBuffer.add(frame);
+		metrics.recordFrame(frame, publishNanos);
+		framesInChunk++;
+		publishNanosInChunk += publishNanos;
+	}
+
+	private static void closeQuietly(final InputStream inputStream) {
+		if (inputStream != null) {
+			try {
+				inputStream.close();
+			} catch (Exception e) {
+				// ignore, the reader thread notices the closed stream
+			}
+		}
+	}
+
+	/**
+	 * @return true while the reader is not connected because nobody asked for the stream
+	 */
+	public synchronized boolean isIdle() {
+		return !keepReading;
+	}
+
+	public String getStreamName() {
+		return streamName;
+	}
+
+	/**
+	 * @return true while connected to the camera and receiving frames
+	 */
+	public boolean isBackendStreamAvailable() {
+		return isBackendStreamAvailable && watchdog.getState() != StreamWatchdog.State.STALLED;
+	}
+
+	public StreamWatchdog getWatchdog() {
+		return watchdog;
+	}
+
+	/**
+	 * @return the monitor of the upstream multiplier, null if the source is a camera
+	 */
+	public RelayMonitor getRelayMonitor() {
+		return relayMonitor;
+	}
+
+	public void stopReading() {
+		pauseReading();
+		executorService.shutdownNow();
+	}
+}
\ No newline at end of file
@@ -0,0 +1,291 @@
+package ch.mabaka.mjpg.multiplier.server.input;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.util.unit.DataSize;
+
+import ch.mabaka.mjpg.multiplier.server.config.MosaicProperties;
+import ch.mabaka.mjpg.multiplier.server.input.data.Frame;
+import ch.mabaka.mjpg.multiplier.server.input.data.FrameBufferPool;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Composite of several sources rendered into one grid, e.g. for a control room wall. The grid is rendered at a fixed
+ * frame rate and published to a ring buffer of its own, which all viewers of the mosaic share.
+ * <p>
+ * Each tile reads its source with a subscription which always delivers the latest frame. On every tick the tiles with
+ * a new frame are decoded and scaled in parallel on a fork-join pool, a frame marked unchanged by the
+ * {@link FrameChangeDetector} is not decoded at all. Only the changed tiles are drawn into the grid, and the grid is
+ * only encoded and published if at least one tile has changed. Like an output profile the mosaic subscribes to its
+ * sources only while it has viewers.
+ * <p>
+ * The subscriptions are only used by the render thread, which also starts and stops rendering.
+ */
+public class MosaicStream implements FrameFanOut.SubscriberListener {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(MosaicStream.class);
+
+	private static final SlowConsumerPolicy LATEST_ONLY = new SlowConsumerPolicy(SlowConsumerPolicy.Mode.LATEST_ONLY,
+			DataSize.ofMegabytes(8), 0, 0);
+
+	private final List<Tile> tiles = new ArrayList<>();
+
+	private final FrameFanOut fanOut;
+
+	private final JpegTranscoder transcoder;
+
+	private final int columns;
+
+	private final int tileWidth;
+
+	private final int tileHeight;
+
+	private final long frameIntervalNanos;
+
+	private final BufferedImage grid;
+
+	private final ScheduledExecutorService renderer = Executors
+			.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("mjpg-mosaic-render-"));
+
+	private final ForkJoinPool decoders;
+
+	private final Timer renderTime;
+
+	private final Counter renderedFrames;
+
+	private final Counter unchangedTicks;
+
+	private ScheduledFuture<?> rendering;
+
+	private boolean published;
+
+	/**
+	 * @param sources the ring buffers of the sources by name, in the order of the tiles
+	 */
+	MosaicStream(final Map<String, FrameFanOut> sources, final FrameFanOut fanOut,
+			final MosaicProperties properties, final FrameBufferPool frameBufferPool, final MeterRegistry registry) {
+		if (sources.isEmpty()) {
+			throw new IllegalArgumentException("A mosaic needs at least one source");
+		}
+		if (properties.getTileWidth() <= 0 || properties.getTileHeight() <= 0 || !(properties.getFps() > 0)) {
+			throw new IllegalArgumentException("Mosaic tile size and frame rate must be positive");
+		}
+		sources.forEach((name, source) -> tiles.add(new Tile(name, source)));
+		this.fanOut = fanOut;
+		this.transcoder = new JpegTranscoder(properties.getTileWidth(), properties.getQuality(), frameBufferPool);
+		this.columns = properties.getColumns() > 0 ? Math.min(properties.getColumns(), tiles.size())
+				: (int) Math.ceil(Math.sqrt(tiles.size()));
+		this.tileWidth = properties.getTileWidth();
+		this.tileHeight = properties.getTileHeight();
+		this.frameIntervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / properties.getFps());
+		final int rows = (tiles.size() + columns - 1) / columns;
+		this.grid = new BufferedImage(columns * tileWidth, rows * tileHeight, BufferedImage.TYPE_INT_RGB);
+		this.decoders = new ForkJoinPool(Math.max(1, properties.getThreads()), MosaicStream::newDecoderThread, null,
+				false);
+
+		renderTime = Timer.builder("mjpg.mosaic.render.time")
+				.description("Time to decode the changed tiles and encode the grid")
+				.publishPercentiles(StreamMetrics.getPercentiles()).register(registry);
+		renderedFrames = Counter.builder("mjpg.mosaic.frames").description("Grids encoded and published")
+				.baseUnit("frames").register(registry);
+		unchangedTicks = Counter.builder("mjpg.mosaic.unchanged")
+				.description("Ticks without a changed tile, which were not encoded").baseUnit("frames")
+				.register(registry);
+		Gauge.builder("mjpg.mosaic.viewers", fanOut, FrameFanOut::getSubscriberCount)
+				.description("Viewers connected to the mosaic").register(registry);
+		FunctionCounter.builder("mjpg.mosaic.egress.bytes", fanOut,
+				FrameFanOut::getWrittenBytes)
+				.description("Bytes written to viewers of the mosaic").baseUnit("bytes").register(registry);
+	}
+
+	/**
+	 * @return the rendered grids, viewers subscribe here
+	 */
+	public FrameFanOut getFanOut() {
+		return fanOut;
+	}
+
+	void start() {
+		fanOut.setSubscriberListener(this);
+	}
+
+	void stop() {
+		fanOut.setSubscriberListener(null);
+		onLastSubscriberGone();
+		renderer.shutdown();
+		decoders.shutdown();
+		fanOut.shutdown();
+	}
+
+	@Override
+	public void onFirstSubscriber() {
+		runOnRenderer(this::startRendering);
+	}
+
+	@Override
+	public void onLastSubscriberGone() {
+		runOnRenderer(this::stopRendering);
+	}
+
+	private void runOnRenderer(final Runnable task) {
+		try {
+			renderer.execute(task);
+		} catch (RejectedExecutionException e) {
+			// shut down
+		}
+	}
+
+	private void startRendering() {
+		if (rendering != null) {
+			return;
+		}
+		for (Tile tile : tiles) {
+			tile.subscription = tile.source.subscribe(LATEST_ONLY);
+			tile.subscription.setClient("mosaic");
+		}
+		published = false;
+		rendering = renderer.scheduleAtFixedRate(this::renderSafely, 0, frameIntervalNanos, TimeUnit.NANOSECONDS);
+		LOGGER.info("First viewer of the mosaic; rendering {} tiles", tiles.size());
+	}
+
+	private void stopRendering() {
+		if (rendering == null) {
+			return;
+		}
+		rendering.cancel(false);
+		rendering = null;
+		for (Tile tile : tiles) {
+			tile.source.unsubscribe(tile.subscription);
+			tile.subscription = null;
+		}
+		LOGGER.info("No viewer left on the mosaic; stopped rendering");
+	}
+
+	private void renderSafely() {
+		try {
+			render();
+		} catch (IOException | RuntimeException e) {
+			LOGGER.warn("Rendering the mosaic failed: {}", e.toString());
+		}
+	}
+
+	/**
+	 * Decode the tiles with a new frame in parallel, draw them and publish the grid if any of them changed.
+	 */
+	void render() throws IOException {
+		final long start = System.nanoTime();
+		final List<Tile> changed = new ArrayList<>();
+		final List<ForkJoinTask<BufferedImage>> decodes = new ArrayList<>();
+		for (Tile tile : tiles) {
+			final Frame frame = tile.subscription.poll();
+			if (frame == null) {
+				continue;
+			}
+			if (frame.isUnchanged() && tile.image != null) {
+				frame.release();
+				continue;
+			}
+			changed.add(tile);
+			decodes.add(decoders.submit(() -> {
+				try {
+					return transcoder.decodeScaled(frame);
+				} finally {
+					frame.release();
+				}
+			}));
+		}
+		boolean drawn = false;
+		for (int i = 0; i < changed.size(); i++) {
+			final Tile tile = changed.get(i);
+			try {
+				tile.image = decodes.get(i).get();
+				draw(tiles.indexOf(tile), tile.image);
+				drawn = true;
+			} catch (ExecutionException e) {
+				LOGGER.warn("Decoding the frame of {} for the mosaic failed: {}", tile.name, e.getCause().toString());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+		if (!drawn && published) {
+			unchangedTicks.increment();
+			return;
+		}
+		final Frame frame = transcoder.encode(grid);
+		// counted before the viewers can see the grid
+		renderedFrames.increment();
+		fanOut.publish(frame);
+		published = true;
+		renderTime.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Draw the picture centered into its tile, scaled down if it does not fit.
+	 */
+	private void draw(final int index, final BufferedImage image) {
+		final double scale = Math.min(1, Math.min((double) tileWidth / image.getWidth(),
+				(double) tileHeight / image.getHeight()));
+		final int width = Math.max(1, (int) Math.round(image.getWidth() * scale));
+		final int height = Math.max(1, (int) Math.round(image.getHeight() * scale));
+		final int x = index % columns * tileWidth;
+		final int y = index / columns * tileHeight;
+		final Graphics2D graphics = grid.createGraphics();
+		try {
+			graphics.setColor(Color.BLACK);
+			graphics.fillRect(x, y, tileWidth, tileHeight);
+			graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			graphics.drawImage(image, x + (tileWidth - width) / 2, y + (tileHeight - height) / 2, width, height, null);
+		} finally {
+			graphics.dispose();
+		}
+	}
+
+	private static ForkJoinWorkerThread newDecoderThread(final ForkJoinPool pool) {
+		final ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+		thread.setName("mjpg-mosaic-decode-" + thread.getPoolIndex());
+		return thread;
+	}
+
+	private static final class Tile {
+
+		private final String name;
+
+		private final FrameFanOut source;
+
+		private FrameSubscription subscription;
+
+		/**
+		 * The last decoded picture, null until the first frame has been decoded.
+		 */
+		private BufferedImage image;
+
+		private Tile(final String name, final FrameFanOut source) {
+			this.name = name;
+			this.source = source;
+		}
+	}
+}
@@ -0,0 +1,334 @@
+package ch.mabaka.mjpg.multiplier.server.input;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ch.mabaka.mjpg.multiplier.server.input.data.Frame;
+import ch.mabaka.mjpg.multiplier.server.input.data.FrameBufferPool;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * One processed output of a stream source: the frames of the source pass the configured {@link FrameStage}s and are
+ * published to a ring buffer of their own, which all viewers of the output share. Viewers of the source itself are not
+ * affected, they keep getting the frames of the camera as they are.
+ * <p>
+ * The output subscribes to the source only while it has viewers, unless it is always active, e.g. for analytics taps
+ * without viewers. Each frame runs through the stages as a chain of {@link CompletableFuture}s: synchronous stages run
+ * on the thread completing the stage before, asynchronous ones on the shared workers, and a stage which is not parallel
+ * only starts a frame once it has finished the frame before. The picture is decoded before the first stage needing it
+ * and only encoded again if a stage changed it. Frames are published in the order of the source, and once the
+ * configured number of frames is in flight further frames are skipped.
+ */
+public class ProcessedStream implements FrameFanOut.SubscriberListener {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ProcessedStream.class);
+
+	private final String streamName;
+
+	private final String outputName;
+
+	private final List<FrameStage> stages;
+
+	private final boolean alwaysActive;
+
+	private final FrameFanOut source;
+
+	private final FrameFanOut fanOut;
+
+	private final JpegTranscoder codec;
+
+	private final FrameBufferPool frameBufferPool;
+
+	private final Executor workers;
+
+	private final int maxInFlight;
+
+	private final int firstImageStage;
+
+	private final List<Timer> stageTimes = new ArrayList<>();
+
+	private final Timer processTime;
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	private final LongAdder skippedFrames = new LongAdder();
+
+	/**
+	 * Last run of each stage which is not parallel, the next frame waits for it. Only used while draining.
+	 */
+	private final List<CompletableFuture<?>> lastRuns = new ArrayList<>();
+
+	private CompletableFuture<?> lastPublish = CompletableFuture.completedFuture(null);
+
+	private volatile FrameSubscription sourceSubscription;
+
+	/**
+	 * @param alwaysActive true to process the frames also while the output has no viewers
+	 * @param codec decodes the pictures for the stages needing them and encodes changed pictures
+	 * @param maxInFlight frames processed at the same time, further frames are skipped
+	 */
+	ProcessedStream(final String streamName, final String outputName, final List<FrameStage> stages,
+			final boolean alwaysActive, final FrameFanOut source,
+			final FrameFanOut fanOut, final JpegTranscoder codec,
+			final FrameBufferPool frameBufferPool, final Executor workers, final int maxInFlight,
+			final MeterRegistry registry) {
+		this.streamName = streamName;
+		this.outputName = outputName;
+		this.stages = List.copyOf(stages);
+		this.alwaysActive = alwaysActive;
+		this.source = source;
+		this.fanOut = fanOut;
+		this.codec = codec;
+		this.frameBufferPool = frameBufferPool;
+		this.workers = workers;
+		this.maxInFlight = Math.max(1, maxInFlight);
+		int firstImage = -1;
+		for (int i = 0; i < this.stages.size(); i++) {
+			lastRuns.add(CompletableFuture.completedFuture(null));
+			if (firstImage < 0 && this.stages.get(i).needsImage()) {
+				firstImage = i;
+			}
+		}
+		this.firstImageStage = firstImage;
+
+		for (FrameStage stage : this.stages) {
+			stageTimes.add(Timer.builder("mjpg.processing.stage.time").description("Time a stage took for a frame")
+					.publishPercentiles(StreamMetrics.getPercentiles())
+					.tags("stream", streamName, "output", outputName, "stage", stage.getName()).register(registry));
+		}
+		processTime = Timer.builder("mjpg.processing.time")
+				.description("Time from handing a frame to the stages until it was published, including waiting")
+				.publishPercentiles(StreamMetrics.getPercentiles()).tags("stream", streamName, "output", outputName)
+				.register(registry);
+		Gauge.builder("mjpg.processing.inflight", inFlight, AtomicInteger::get)
+				.description("Frames of the output being processed").baseUnit("frames")
+				.tags("stream", streamName, "output", outputName).register(registry);
+		FunctionCounter.builder("mjpg.processing.skipped", skippedFrames, LongAdder::sum)
+				.description("Frames not published because too many were in flight or a stage failed")
+				.baseUnit("frames").tags("stream", streamName, "output", outputName).register(registry);
+		Gauge.builder("mjpg.processing.viewers", fanOut, FrameFanOut::getSubscriberCount)
+				.description("Viewers connected to the output").tags("stream", streamName, "output", outputName)
+				.register(registry);
+		FunctionCounter.builder("mjpg.processing.egress.bytes", fanOut,
+				FrameFanOut::getWrittenBytes)
+				.description("Bytes written to viewers of the output").baseUnit("bytes")
+				.tags("stream", streamName, "output", outputName).register(registry);
+	}
+
+	public String getOutputName() {
+		return outputName;
+	}
+
+	/**
+	 * @return true if the output runs the stage with the given name, also while the output has no viewers
+	 */
+	public boolean isAlwaysRunning(final String stageName) {
+		return alwaysActive && stages.stream().anyMatch(stage -> stage.getName().equals(stageName));
+	}
+
+	/**
+	 * @return the processed frames, viewers subscribe here
+	 */
+	public FrameFanOut getFanOut() {
+		return fanOut;
+	}
+
+	/**
+	 * @return frames handed to the stages and not yet published
+	 */
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	void start() {
+		fanOut.setSubscriberListener(this);
+		if (alwaysActive) {
+			subscribeSource();
+		}
+	}
+
+	void stop() {
+		fanOut.setSubscriberListener(null);
+		unsubscribeSource();
+		fanOut.shutdown();
+	}
+
+	@Override
+	public void onFirstSubscriber() {
+		if (!alwaysActive) {
+			subscribeSource();
+		}
+	}
+
+	@Override
+	public void onLastSubscriberGone() {
+		if (!alwaysActive) {
+			unsubscribeSource();
+		}
+	}
+
+	private synchronized void subscribeSource() {
+		if (sourceSubscription != null) {
+			return;
+		}
+		final FrameSubscription subscription = source.subscribe();
+		subscription.setClient("output " + outputName);
+		sourceSubscription = subscription;
+		LOGGER.info("Processing output {} of stream {} with stages {}", outputName, streamName,
+				stages.stream().map(FrameStage::getName).toList());
+		drain(subscription);
+	}
+
+	private synchronized void unsubscribeSource() {
+		final FrameSubscription subscription = sourceSubscription;
+		if (subscription != null) {
+			sourceSubscription = null;
+			source.unsubscribe(subscription);
+			LOGGER.info("Stopped processing output {} of stream {}", outputName, streamName);
+		}
+	}
+
+	/**
+	 * Hand the available source frames to the stages and wait for the next one. Runs on the notification thread of
+	 * the source, or on the thread subscribing to the source.
+	 */
+	private void drain(final FrameSubscription subscription) {
+		synchronized (subscription) {
+			if (subscription != sourceSubscription) {
+				return;
+			}
+			Frame frame;
+			while ((frame = subscription.poll()) != null) {
+				submit(frame);
+			}
+			if (!subscription.isEvicted()) {
+				subscription.onNextFrame(() -> drain(subscription));
+			}
+		}
+	}
+
+	/**
+	 * Chain the stages for the frame. Only called while draining, so the chains are built in the order of the frames.
+	 */
+	private void submit(final Frame frame) {
+		if (inFlight.get() >= maxInFlight) {
+			skippedFrames.increment();
+			frame.release();
+			return;
+		}
+		inFlight.incrementAndGet();
+		final long start = System.nanoTime();
+		final StageContext context = new StageContext(streamName, outputName, frame);
+		CompletableFuture<StageContext> run = CompletableFuture.completedFuture(context);
+		for (int i = 0; i < stages.size(); i++) {
+			if (i == firstImageStage) {
+				run = run.thenApplyAsync(this::decode, workers);
+			}
+			final FrameStage stage = stages.get(i);
+			final Timer stageTime = stageTimes.get(i);
+			final Function<StageContext, StageContext> step = c -> c == null ? null : runStage(stage, stageTime, c);
+			if (stage.isParallel()) {
+				run = stage.isAsynchronous() ? run.thenApplyAsync(step, workers) : run.thenApply(step);
+			} else {
+				final CompletableFuture<?> previous = lastRuns.get(i);
+				run = stage.isAsynchronous() ? run.thenCombineAsync(previous, (c, ignored) -> step.apply(c), workers)
+						: run.thenCombine(previous, (c, ignored) -> step.apply(c));
+				lastRuns.set(i, run);
+			}
+		}
+		// encoding a changed picture is left to the workers
+		final Function<StageContext, Frame> toOutput = c -> c == null ? null : toOutputFrame(c);
+		final CompletableFuture<Frame> output = firstImageStage >= 0 ? run.thenApplyAsync(toOutput, workers)
+				: run.thenApply(toOutput);
+		lastPublish = lastPublish.thenCombine(output, (ignored, processed) -> {
+			publish(processed, start);
+			return null;
+		}).exceptionally(e -> {
+			LOGGER.error("Processing output {} of stream {} failed", outputName, streamName, e);
+			return null;
+		}).whenComplete((ignored, e) -> {
+			frame.release();
+			inFlight.decrementAndGet();
+		});
+	}
+
+	private StageContext decode(final StageContext context) {
+		try {
+			context.setDecodedImage(codec.decodeScaled(context.getFrame()));
+			return context;
+		} catch (Exception e) {
+			skippedFrames.increment();
+			LOGGER.warn("Decoding frame {} of stream {} for output {} failed: {}", context.getSequence(), streamName,
+					outputName, e.toString());
+			return null;
+		}
+	}
+
+	/**
+	 * @return the context, null if the stage failed and the frame is dropped
+	 */
+	private StageContext runStage(final FrameStage stage, final Timer stageTime, final StageContext context) {
+		final long start = System.nanoTime();
+		try {
+			stage.process(context);
+			return context;
+		} catch (Exception e) {
+			skippedFrames.increment();
+			LOGGER.warn("Stage {} failed on frame {} of stream {} for output {}: {}", stage.getName(),
+					context.getSequence(), streamName, outputName, e.toString());
+			return null;
+		} finally {
+			stageTime.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	/**
+	 * @return the frame to publish, encoded again if a stage changed the picture and a copy of the source frame
+	 *         otherwise; null if nobody is watching the output
+	 */
+	private Frame toOutputFrame(final StageContext context) {
+		if (fanOut.getSubscriberCount() == 0) {
+			return null;
+		}
+		final Frame source = context.getFrame();
+		final Frame frame;
+		if (context.isImageModified()) {
+			try {
+				frame = codec.encode(context.getImage());
+			} catch (Exception e) {
+				skippedFrames.increment();
+				LOGGER.warn("Encoding frame {} of stream {} for output {} failed: {}", context.getSequence(),
+						streamName, outputName, e.toString());
+				return null;
+			}
+		} else {
+			// a published frame must not be changed, the output gets its own copy with its own sequence
+			frame = frameBufferPool.allocate(source.getJpegLength());
+			frame.put(0, source.getJpeg());
+		}
+		frame.setReceived(source.getTimestampMicros(), source.getReceivedNanos());
+		frame.setParsed(source.getParsedNanos());
+		frame.setUnchanged(source.isUnchanged() && !context.isImageModified());
+		return frame;
+	}
+
+	private void publish(final Frame processed, final long start) {
+		if (processed == null) {
+			return;
+		}
+		fanOut.publish(processed);
+		processTime.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+	}
+}
@@ -0,0 +1,84 @@
+package ch.mabaka.mjpg.multiplier.server.input;
+
+import java.util.concurrent.TimeUnit;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Watches a source which is another multiplier, using the timing headers the upstream writes into each part.
+ * <p>
+ * The latency is the time from the origin receiving a frame from the camera until its first bytes arrived here, over
+ * all hops in between. It is only as accurate as the clocks of the nodes are synchronized. Gaps in the sequence
+ * numbers of the upstream are frames this node missed, because the upstream dropped them for this node as a slow
+ * viewer. The sequence starts anew with every connection.
+ * <p>
+ * The reader thread reports the frames, the values may be read from any thread.
+ */
+public class RelayMonitor {
+
+	private final Timer latency;
+
+	private volatile long lastSequence = -1;
+
+	private volatile long lastLatencyMicros = Long.MIN_VALUE;
+
+	private volatile long skippedFrames;
+
+	public RelayMonitor(final String streamName, final MeterRegistry registry) {
+		latency = Timer.builder("mjpg.relay.latency")
+				.description("Time from the origin receiving a frame from the camera until it arrived at this node")
+				.publishPercentiles(StreamMetrics.getPercentiles()).tag("stream", streamName).register(registry);
+		FunctionCounter.builder("mjpg.relay.upstream.skipped", this, RelayMonitor::getSkippedFrames)
+				.description("Frames of the upstream multiplier missing in the sequence received by this node")
+				.baseUnit("frames").tag("stream", streamName).register(registry);
+	}
+
+	/**
+	 * The reader has connected to the upstream, which starts a new sequence.
+	 */
+	void onConnected() {
+		lastSequence = -1;
+	}
+
+	/**
+	 * @param upstreamSequence sequence number sent by the upstream, -1 if it sent none
+	 * @param latencyMicros time since the origin received the frame, {@link Long#MIN_VALUE} if the upstream sent no
+	 *            timestamp
+	 */
+	void onFrame(final long upstreamSequence, final long latencyMicros) {
+		if (upstreamSequence >= 0) {
+			final long previous = lastSequence;
+			if (previous >= 0 && upstreamSequence > previous + 1) {
+				skippedFrames += upstreamSequence - previous - 1;
+			}
+			lastSequence = upstreamSequence;
+		}
+		lastLatencyMicros = latencyMicros;
+		if (latencyMicros != Long.MIN_VALUE) {
+			// clock skew may make the latency negative
+			latency.record(Math.max(0, latencyMicros), TimeUnit.MICROSECONDS);
+		}
+	}
+
+	/**
+	 * @return true if the last frame carried the timing headers, which the upstream only writes with
+	 *         {@code stream.timingHeaders} enabled
+	 */
+	public boolean hasTimingHeaders() {
+		return lastLatencyMicros != Long.MIN_VALUE && lastSequence >= 0;
+	}
+
+	/**
+	 * @return the latency of the last frame in milliseconds, which may be negative if the clocks are not synchronized
+	 */
+	public double getLatencyMillis() {
+		final long micros = lastLatencyMicros;
+		return micros == Long.MIN_VALUE ? Double.NaN : micros / 1000.0;
+	}
+
+	public long getSkippedFrames() {
+		return skippedFrames;
+	}
+}
@@ -0,0 +1,125 @@
+package ch.mabaka.mjpg.multiplier.server.input;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import ch.mabaka.mjpg.multiplier.server.input.data.Frame;
+
+/**
+ * Keeps the frames of the last seconds of a stream for instant replay. The frames are shared with the ring buffer, so
+ * they stay in their off-heap buffers and are not copied.
+ * <p>
+ * The buffer is bounded by the replay duration and by a byte budget. The budget counts the buffers the frames keep
+ * from the pool, which are larger than the frames. Frames older than the duration are released on every added frame
+ * and every replay; if the budget is exceeded the oldest frames are released first. The reader thread only holds the
+ * lock while appending a frame and releasing the evicted ones. A replay retains a few frames at a time under the lock
+ * and writes them without it.
+ */
+public class ReplayBuffer {
+
+	private final long maxAgeNanos;
+
+	private final long maxBytes;
+
+	private final ArrayDeque<Frame> frames = new ArrayDeque<>();
+
+	private long bytes;
+
+	/**
+	 * @param duration how long frames are kept, zero to keep none
+	 * @param maxBytes upper bound for the size of the buffers of the kept frames
+	 */
+	public ReplayBuffer(final Duration duration, final long maxBytes) {
+		this.maxAgeNanos = duration.toNanos();
+		this.maxBytes = maxBytes;
+	}
+
+	public boolean isEnabled() {
+		return maxAgeNanos > 0 && maxBytes > 0;
+	}
+
+	/**
+	 * @return how long frames are kept
+	 */
+	public Duration getDuration() {
+		return Duration.ofNanos(maxAgeNanos);
+	}
+
+	/**
+	 * Keep a published frame. The buffer takes its own reference.
+	 */
+	void add(final Frame frame) {
+		if (!isEnabled() || frame.getBufferCapacity() > maxBytes || !frame.retain()) {
+			return;
+		}
+		synchronized (this) {
+			frames.addLast(frame);
+			bytes += frame.getBufferCapacity();
+			evict(frame.getReceivedNanos());
+		}
+	}
+
+	/**
+	 * Acquire the next frames of a replay. A replay asks for a few frames at a time, so it does not keep the whole
+	 * period from being released; frames released in the meantime are skipped.
+	 *
+	 * @param afterNanos only frames received after this {@link System#nanoTime()}, e.g. the last frame of the previous
+	 *            call
+	 * @param untilNanos only frames received up to this {@link System#nanoTime()}
+	 * @param maxFrames maximum number of frames, the oldest ones are returned
+	 * @return the frames, oldest first. Each frame has been retained for the caller, which has to release them when
+	 *         done.
+	 */
+	public List<Frame> acquire(final long afterNanos, final long untilNanos, final int maxFrames) {
+		final List<Frame> acquired = new ArrayList<>();
+		synchronized (this) {
+			evict(System.nanoTime());
+			for (Frame frame : frames) {
+				if (frame.getReceivedNanos() > untilNanos || acquired.size() == maxFrames) {
+					break;
+				}
+				if (frame.getReceivedNanos() > afterNanos) {
+					// the buffer holds a reference, so retaining cannot fail
+					frame.retain();
+					acquired.add(frame);
+				}
+			}
+		}
+		return acquired;
+	}
+
+	public synchronized int getFrameCount() {
+		return frames.size();
+	}
+
+	/**
+	 * @return size of the buffers of the kept frames
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Release all frames.
+	 */
+	public synchronized void clear() {
+		while (!frames.isEmpty()) {
+			removeOldest();
+		}
+	}
+
+	private void evict(final long now) {
+		while (!frames.isEmpty()
+				&& (bytes > maxBytes || now - frames.peekFirst().getReceivedNanos() > maxAgeNanos)) {
+			removeOldest();
+		}
+	}
+
+	private void removeOldest() {
+		final Frame frame = frames.removeFirst();
+		bytes -= frame.getBufferCapacity();
+		frame.release();
+	}
+}
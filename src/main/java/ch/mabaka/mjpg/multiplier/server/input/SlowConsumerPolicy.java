@@ -0,0 +1,74 @@
+package ch.mabaka.mjpg.multiplier.server.input;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * How a viewer which cannot keep up with the camera is treated. The policy is applied to each viewer individually by
+ * its {@link FrameSubscription}.
+ * <p>
+ * The frames themselves live in the shared ring buffer, so a slow viewer never holds more than the frame it is
+ * currently writing. The policy decides which frames a viewer skips to catch up and when it is disconnected.
+ */
+@Component
+public class SlowConsumerPolicy {
+
+	public enum Mode {
+		/**
+		 * Deliver every frame, skip to the latest only when the viewer has fallen behind by the whole ring buffer.
+		 */
+		RING_BUFFER,
+		/**
+		 * Always deliver the latest frame and drop any older frames not yet sent.
+		 */
+		LATEST_ONLY,
+		/**
+		 * Deliver every frame as long as the frames not yet sent fit into the byte budget, drop the oldest otherwise.
+		 */
+		BOUNDED_BYTES
+	}
+
+	public static final SlowConsumerPolicy DEFAULT = new SlowConsumerPolicy(Mode.RING_BUFFER, DataSize.ofMegabytes(8),
+			0, 0);
+
+	private final Mode mode;
+
+	private final long maxLagBytes;
+
+	private final int maxConsecutiveDrops;
+
+	private final int maxLagFrames;
+
+	/**
+	 * @param maxLagBytes byte budget for the frames not yet sent in {@link Mode#BOUNDED_BYTES}
+	 * @param maxConsecutiveDrops disconnect a viewer after dropping this many frames without catching up in between, 0
+	 *            to never disconnect
+	 * @param maxLagFrames disconnect a viewer lagging behind by more than this many frames, 0 to never disconnect
+	 */
+	public SlowConsumerPolicy(@Value("${stream.slowConsumer.mode:ring-buffer}") Mode mode,
+			@Value("${stream.slowConsumer.maxLagBytes:8MB}") DataSize maxLagBytes,
+			@Value("${stream.slowConsumer.maxConsecutiveDrops:0}") int maxConsecutiveDrops,
+			@Value("${stream.slowConsumer.maxLagFrames:0}") int maxLagFrames) {
+		this.mode = mode;
+		this.maxLagBytes = maxLagBytes.toBytes();
+		this.maxConsecutiveDrops = maxConsecutiveDrops;
+		this.maxLagFrames = maxLagFrames;
+	}
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	public long getMaxLagBytes() {
+		return maxLagBytes;
+	}
+
+	public int getMaxConsecutiveDrops() {
+		return maxConsecutiveDrops;
+	}
+
+	public int getMaxLagFrames() {
+		return maxLagFrames;
+	}
+}
@@ -0,0 +1,103 @@
+package ch.mabaka.mjpg.multiplier.server.input;
+
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+
+import ch.mabaka.mjpg.multiplier.server.input.data.Frame;
+
+/**
+ * A frame passing the stages of a {@link ProcessedStream}. The stages of an output see the same context one after the
+ * other, so it is never used by two threads at the same time.
+ */
+public final class StageContext {
+
+	private final String streamName;
+
+	private final String outputName;
+
+	private final Frame frame;
+
+	private BufferedImage image;
+
+	private boolean imageModified;
+
+	StageContext(final String streamName, final String outputName, final Frame frame) {
+		this.streamName = streamName;
+		this.outputName = outputName;
+		this.frame = frame;
+	}
+
+	public String getStreamName() {
+		return streamName;
+	}
+
+	public String getOutputName() {
+		return outputName;
+	}
+
+	/**
+	 * @return sequence number of the frame in the stream of the camera
+	 */
+	public long getSequence() {
+		return frame.getSequence();
+	}
+
+	/**
+	 * @return wall clock time the frame was received in microseconds since the epoch
+	 */
+	public long getTimestampMicros() {
+		return frame.getTimestampMicros();
+	}
+
+	/**
+	 * @return true if the frame has been found to show the same picture as the frames before
+	 */
+	public boolean isUnchanged() {
+		return frame.isUnchanged();
+	}
+
+	/**
+	 * @return a read only view on the JPEG data as received from the camera
+	 */
+	public ByteBuffer getJpeg() {
+		return frame.getJpeg();
+	}
+
+	/**
+	 * @return the decoded picture, which may be drawn upon after calling {@link #markImageModified()}
+	 * @throws IllegalStateException if no stage of the output needs the image
+	 */
+	public BufferedImage getImage() {
+		if (image == null) {
+			throw new IllegalStateException("The image is only decoded for stages which need it");
+		}
+		return image;
+	}
+
+	/**
+	 * Replace the picture sent to the viewers of the output.
+	 */
+	public void setImage(final BufferedImage image) {
+		this.image = image;
+		this.imageModified = true;
+	}
+
+	/**
+	 * Have the picture encoded again for the viewers of the output after it has been changed in place.
+	 */
+	public void markImageModified() {
+		imageModified = true;
+	}
+
+	boolean isImageModified() {
+		return imageModified;
+	}
+
+	void setDecodedImage(final BufferedImage image) {
+		this.image = image;
+	}
+
+	Frame getFrame() {
+		return frame;
+	}
+}
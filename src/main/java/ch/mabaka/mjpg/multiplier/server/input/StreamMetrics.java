@@ -0,0 +1,170 @@
+package ch.mabaka.mjpg.multiplier.server.input;
+
+import java.util.concurrent.TimeUnit;
+
+import ch.mabaka.mjpg.multiplier.server.input.data.Frame;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Micrometer meters of one stream source, tagged with the stream name.
+ * <p>
+ * The ingest meters are updated by the reader thread for every chunk and frame. Durations are measured with
+ * {@link System#nanoTime()} and recorded as plain values, which does not allocate on the hot path. The fan-out meters
+ * are read from the {@link FrameFanOut} when the registry is scraped.
+ * <p>
+ * The latency of the frames is measured from the moment their first header line was received, up to the end of
+ * parsing, the publication to the viewers and the completed write to each viewer. The stages are distinguished by the
+ * {@code stage} tag of {@code mjpg.frame.latency}.
+ */
+public class StreamMetrics {
+
+	private static final double[] PERCENTILES = { 0.5, 0.95, 0.99 };
+
+	private final Counter ingestFrames;
+
+	private final Counter ingestBytes;
+
+	private final DistributionSummary frameSize;
+
+	private final Timer parseTime;
+
+	private final Timer publishTime;
+
+	private final Counter reconnects;
+
+	private final Counter unchangedFrames;
+
+	private final Timer parsedLatency;
+
+	private final Timer publishedLatency;
+
+	private final Timer writtenLatency;
+
+	private volatile long lastFrameNanos;
+
+	public StreamMetrics(final String streamName, final FrameFanOut fanOut,
+			final StreamWatchdog watchdog, final ReplayBuffer replayBuffer, final MeterRegistry registry) {
+		ingestFrames = Counter.builder("mjpg.ingest.frames").description("Frames received from the camera")
+				.baseUnit("frames").tag("stream", streamName).register(registry);
+		ingestBytes = Counter.builder("mjpg.ingest.bytes").description("Bytes received from the camera")
+				.baseUnit("bytes").tag("stream", streamName).register(registry);
+		frameSize = DistributionSummary.builder("mjpg.ingest.frame.size").description("Size of the received JPEGs")
+				.baseUnit("bytes").publishPercentiles(PERCENTILES).tag("stream", streamName).register(registry);
+		parseTime = Timer.builder("mjpg.ingest.parse.time")
+				.description("Time spent in the parser per frame, without publishing").publishPercentiles(PERCENTILES)
+				.tag("stream", streamName).register(registry);
+		reconnects = Counter.builder("mjpg.ingest.reconnects")
+				.description("Connections to the camera re-established after an error or end of stream")
+				.tag("stream", streamName).register(registry);
+		unchangedFrames = Counter.builder("mjpg.ingest.unchanged")
+				.description("Frames found to show the same picture as the frames before").baseUnit("frames")
+				.tag("stream", streamName).register(registry);
+		FunctionCounter.builder("mjpg.ingest.stalls", watchdog, StreamWatchdog::getStalls)
+				.description("Connections found stalled by the watchdog and reconnected").tag("stream", streamName)
+				.register(registry);
+		Gauge.builder("mjpg.ingest.last.frame.age", this, StreamMetrics::getSecondsSinceLastFrame)
+				.description("Time since the last frame was received, NaN before the first frame").baseUnit("seconds")
+				.tag("stream", streamName).register(registry);
+
+		parsedLatency = latencyTimer(streamName, "parsed", registry);
+		publishedLatency = latencyTimer(streamName, "published", registry);
+		writtenLatency = latencyTimer(streamName, "written", registry);
+		fanOut.setWriteLatencyRecorder(nanos -> writtenLatency.record(nanos, TimeUnit.NANOSECONDS));
+
+		Gauge.builder("mjpg.replay.frames", replayBuffer, ReplayBuffer::getFrameCount)
+				.description("Frames kept for replay").baseUnit("frames").tag("stream", streamName).register(registry);
+		Gauge.builder("mjpg.replay.bytes", replayBuffer, ReplayBuffer::getBytes)
+				.description("Size of the buffers of the frames kept for replay").baseUnit("bytes")
+				.tag("stream", streamName).register(registry);
+
+		publishTime = Timer.builder("mjpg.fanout.publish.time")
+				.description("Time to hand a frame to all viewers").publishPercentiles(PERCENTILES)
+				.tag("stream", streamName).register(registry);
+		Gauge.builder("mjpg.fanout.viewers", fanOut, FrameFanOut::getSubscriberCount)
+				.description("Connected viewers").tag("stream", streamName).register(registry);
+		Gauge.builder("mjpg.fanout.viewer.lag.max", fanOut, FrameFanOut::getMaxSubscriberLag)
+				.description("Frames the slowest viewer has not received yet").baseUnit("frames")
+				.tag("stream", streamName).register(registry);
+		FunctionCounter.builder("mjpg.fanout.dropped", fanOut, FrameFanOut::getDroppedFrames)
+				.description("Frames skipped by viewers which fell behind").baseUnit("frames")
+				.tag("stream", streamName).register(registry);
+		FunctionCounter.builder("mjpg.egress.bytes", fanOut, FrameFanOut::getWrittenBytes)
+				.description("Bytes written to viewers").baseUnit("bytes").tag("stream", streamName)
+				.register(registry);
+		FunctionCounter.builder("mjpg.egress.decimation.saved", fanOut,
+				FrameFanOut::getDecimatedBytes)
+				.description("Bytes not sent to viewers because of their requested frame rate").baseUnit("bytes")
+				.tag("stream", streamName).register(registry);
+		FunctionCounter.builder("mjpg.egress.unchanged.frames", fanOut,
+				FrameFanOut::getUnchangedSkippedFrames)
+				.description("Unchanged frames not sent to viewers which skip them").baseUnit("frames")
+				.tag("stream", streamName).register(registry);
+		FunctionCounter.builder("mjpg.egress.unchanged.bytes", fanOut,
+				FrameFanOut::getUnchangedSkippedBytes)
+				.description("Bytes of unchanged frames not sent to viewers which skip them").baseUnit("bytes")
+				.tag("stream", streamName).register(registry);
+		FunctionCounter.builder("mjpg.egress.filtered.frames", fanOut,
+				FrameFanOut::getFilteredFrames)
+				.description("Frames not sent to viewers which only watch motion").baseUnit("frames")
+				.tag("stream", streamName).register(registry);
+		FunctionCounter.builder("mjpg.egress.filtered.bytes", fanOut,
+				FrameFanOut::getFilteredBytes)
+				.description("Bytes of frames not sent to viewers which only watch motion").baseUnit("bytes")
+				.tag("stream", streamName).register(registry);
+		FunctionCounter.builder("mjpg.egress.slow.consumer.evictions", fanOut,
+				FrameFanOut::getEvictedSubscribers)
+				.description("Viewers disconnected because they could not keep up with the stream")
+				.tag("stream", streamName).register(registry);
+	}
+
+	/**
+	 * @return the percentiles published by the timers and distribution summaries of all meters of the multiplier
+	 */
+	public static double[] getPercentiles() {
+		return PERCENTILES.clone();
+	}
+
+	void recordBytesRead(final int bytes) {
+		ingestBytes.increment(bytes);
+	}
+
+	/**
+	 * @param frame the frame just published
+	 * @param publishNanos time {@link FrameFanOut#publish} took for the frame
+	 */
+	void recordFrame(final Frame frame, final long publishNanos) {
+		ingestFrames.increment();
+		if (frame.isUnchanged()) {
+			unchangedFrames.increment();
+		}
+		frameSize.record(frame.getJpegLength());
+		publishTime.record(publishNanos, TimeUnit.NANOSECONDS);
+		parsedLatency.record(frame.getParsedNanos() - frame.getReceivedNanos(), TimeUnit.NANOSECONDS);
+		publishedLatency.record(frame.getPublishedNanos() - frame.getReceivedNanos(), TimeUnit.NANOSECONDS);
+		lastFrameNanos = System.nanoTime();
+	}
+
+	void recordParseTime(final long nanos) {
+		parseTime.record(nanos, TimeUnit.NANOSECONDS);
+	}
+
+	void recordReconnect() {
+		reconnects.increment();
+	}
+
+	private static Timer latencyTimer(final String streamName, final String stage, final MeterRegistry registry) {
+		return Timer.builder("mjpg.frame.latency")
+				.description("Time from receiving the first bytes of a frame until the stage has been reached")
+				.publishPercentiles(PERCENTILES).tags("stream", streamName, "stage", stage).register(registry);
+	}
+
+	private double getSecondsSinceLastFrame() {
+		final long last = lastFrameNanos;
+		return last == 0 ? Double.NaN : (System.nanoTime() - last) / (double) TimeUnit.SECONDS.toNanos(1);
+	}
+}
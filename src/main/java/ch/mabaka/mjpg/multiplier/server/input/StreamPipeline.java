@@ -0,0 +1,246 @@
+package ch.mabaka.mjpg.multiplier.server.input;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.TaskScheduler;
+
+import ch.mabaka.mjpg.multiplier.server.mystrom.MyStromClient;
+import ch.mabaka.mjpg.multiplier.server.recording.FrameRecorder;
+
+/**
+ * Ingest and fan-out of one named camera source: upstream provider, reader thread, frame ring buffer, replay buffer
+ * and the optional myStrom switch used to power-cycle the camera.
+ * <p>
+ * With lazy connect the camera is only read while at least one viewer is subscribed. The first viewer starts the
+ * reader, after the last viewer has left the reader keeps running for the linger period before it disconnects. The
+ * last frame stays in the ring buffer and is served right away to the next viewer.
+ * <p>
+ * A stream found stalled by the {@link StreamWatchdog} is reconnected. If it keeps stalling without delivering a
+ * frame, the camera is power-cycled through its myStrom switch.
+ * <p>
+ * The output profiles of the source are {@link TranscodedStream}s and its processed outputs are
+ * {@link ProcessedStream}s, which subscribe to the frames of the pipeline while they have viewers themselves.
+ */
+public class StreamPipeline implements FrameFanOut.SubscriberListener {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(StreamPipeline.class);
+
+	private final String name;
+
+	private final IInputStreamProvider inputStreamProvider;
+
+	private final FrameFanOut fanOut;
+
+	private final MjpegStreamReader reader;
+
+	private final ReplayBuffer replayBuffer;
+
+	private final FrameRecorder recorder;
+
+	private final MyStromClient myStromClient;
+
+	private final TaskScheduler taskScheduler;
+
+	private final Duration lazyConnectLinger;
+
+	private final int powerCycleAfterStalls;
+
+	private final Map<String, TranscodedStream> profiles;
+
+	private final Map<String, ProcessedStream> outputs;
+
+	private ScheduledFuture<?> pendingDisconnect;
+
+	/**
+	 * @param recorder records the stream to disk, null if recording is disabled
+	 * @param lazyConnectLinger how long to keep reading after the last viewer left, null to read continuously
+	 * @param powerCycleAfterStalls consecutive stalls after which the camera is power-cycled, 0 to never power-cycle
+	 *            because of stalls
+	 * @param profiles the output profiles by name
+	 * @param outputs the processed outputs by name
+	 */
+	public StreamPipeline(String name, IInputStreamProvider inputStreamProvider,
+			FrameFanOut fanOut, MjpegStreamReader reader,
+			ReplayBuffer replayBuffer, FrameRecorder recorder, MyStromClient myStromClient,
+			TaskScheduler taskScheduler, Duration lazyConnectLinger, int powerCycleAfterStalls,
+			Map<String, TranscodedStream> profiles, Map<String, ProcessedStream> outputs) {
+		this.name = name;
+		this.inputStreamProvider = inputStreamProvider;
+		this.fanOut = fanOut;
+		this.reader = reader;
+		this.replayBuffer = replayBuffer;
+		this.recorder = recorder;
+		this.myStromClient = myStromClient;
+		this.taskScheduler = taskScheduler;
+		this.lazyConnectLinger = lazyConnectLinger;
+		this.powerCycleAfterStalls = powerCycleAfterStalls;
+		this.profiles = profiles;
+		this.outputs = outputs;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public IInputStreamProvider getInputStreamProvider() {
+		return inputStreamProvider;
+	}
+
+	public FrameFanOut getFanOut() {
+		return fanOut;
+	}
+
+	public MjpegStreamReader getReader() {
+		return reader;
+	}
+
+	public ReplayBuffer getReplayBuffer() {
+		return replayBuffer;
+	}
+
+	/**
+	 * @return the recorder of the stream or null if recording is disabled
+	 */
+	public FrameRecorder getRecorder() {
+		return recorder;
+	}
+
+	/**
+	 * @return the switch powering the camera or null
+	 */
+	public MyStromClient getMyStromClient() {
+		return myStromClient;
+	}
+
+	/**
+	 * @return the output profile with the given name or null if there is no such profile
+	 */
+	public TranscodedStream getProfile(String profileName) {
+		return profiles.get(profileName);
+	}
+
+	public Collection<TranscodedStream> getProfiles() {
+		return Collections.unmodifiableCollection(profiles.values());
+	}
+
+	/**
+	 * @return the processed output with the given name or null if there is no such output
+	 */
+	public ProcessedStream getOutput(String outputName) {
+		return outputs.get(outputName);
+	}
+
+	public Collection<ProcessedStream> getOutputs() {
+		return Collections.unmodifiableCollection(outputs.values());
+	}
+
+	public boolean isLazyConnect() {
+		return lazyConnectLinger != null;
+	}
+
+	public void start() {
+		profiles.values().forEach(TranscodedStream::start);
+		if (isLazyConnect()) {
+			fanOut.setSubscriberListener(this);
+		} else {
+			reader.init();
+		}
+		// always active outputs subscribe right away and keep a lazily connected camera connected
+		outputs.values().forEach(ProcessedStream::start);
+		if (recorder != null) {
+			// the recorder is a subscriber, a lazily connected camera is read continuously while recording
+			try {
+				recorder.start();
+			} catch (IOException e) {
+				LOGGER.error("Cannot record stream {}: {}", name, e.toString());
+			}
+		}
+	}
+
+	public void stop() {
+		if (recorder != null) {
+			recorder.stop();
+		}
+		profiles.values().forEach(TranscodedStream::stop);
+		outputs.values().forEach(ProcessedStream::stop);
+		fanOut.setSubscriberListener(null);
+		synchronized (this) {
+			cancelPendingDisconnect();
+		}
+		reader.stopReading();
+		fanOut.shutdown();
+		replayBuffer.clear();
+	}
+
+	/**
+	 * Connect a lazily connected camera for the linger period although nobody is subscribed, so clients polling
+	 * snapshots get current frames. Does nothing for continuously read cameras or while viewers are subscribed.
+	 */
+	public synchronized void keepAlive() {
+		if (isLazyConnect() && fanOut.getSubscriberCount() == 0) {
+			reader.startReading();
+			onLastSubscriberGone();
+		}
+	}
+
+	/**
+	 * Let the watchdog evaluate the stream, reconnecting a stalled stream and escalating to a power cycle.
+	 */
+	void checkStall() {
+		final StreamWatchdog watchdog = reader.getWatchdog();
+		final StreamWatchdog.State previous = watchdog.getState();
+		if (watchdog.check(System.nanoTime()) != StreamWatchdog.State.STALLED
+				|| previous == StreamWatchdog.State.STALLED) {
+			return;
+		}
+		LOGGER.warn("Stream {} stalled ({} in a row without a frame, expecting a frame every {} ms); reconnecting",
+				name, watchdog.getConsecutiveStalls(), watchdog.getFrameIntervalNanos() / 1_000_000);
+		reader.reconnect();
+		if (myStromClient != null && powerCycleAfterStalls > 0
+				&& watchdog.getConsecutiveStalls() % powerCycleAfterStalls == 0) {
+			// the switch is slow to answer, keep the watchdog thread free
+			taskScheduler.schedule(() -> {
+				if (myStromClient.tryPowerCycleIfAllowed()) {
+					LOGGER.info("Triggered myStrom powerCycle for stream {} after {} stalls", name,
+							watchdog.getConsecutiveStalls());
+				}
+			}, Instant.now());
+		}
+	}
+
+	@Override
+	public synchronized void onFirstSubscriber() {
+		cancelPendingDisconnect();
+		LOGGER.info("First viewer subscribed to stream {}; connecting", name);
+		reader.startReading();
+	}
+
+	@Override
+	public synchronized void onLastSubscriberGone() {
+		cancelPendingDisconnect();
+		pendingDisconnect = taskScheduler.schedule(this::disconnectIfUnused, Instant.now().plus(lazyConnectLinger));
+	}
+
+	private synchronized void disconnectIfUnused() {
+		pendingDisconnect = null;
+		if (fanOut.getSubscriberCount() == 0) {
+			LOGGER.info("No viewer left on stream {} for {}; disconnecting", name, lazyConnectLinger);
+			reader.pauseReading();
+		}
+	}
+
+	private void cancelPendingDisconnect() {
+		if (pendingDisconnect != null) {
+			pendingDisconnect.cancel(false);
+			pendingDisconnect = null;
+		}
+	}
+}
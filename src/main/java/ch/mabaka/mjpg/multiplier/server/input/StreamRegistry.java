@@ -0,0 +1,309 @@
+package ch.mabaka.mjpg.multiplier.server.input;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import ch.mabaka.mjpg.multiplier.server.config.GatingProperties;
+import ch.mabaka.mjpg.multiplier.server.config.MosaicProperties;
+import ch.mabaka.mjpg.multiplier.server.config.MyStromProperties;
+import ch.mabaka.mjpg.multiplier.server.config.ProcessingProperties;
+import ch.mabaka.mjpg.multiplier.server.config.RecordingProperties;
+import ch.mabaka.mjpg.multiplier.server.config.ReplayProperties;
+import ch.mabaka.mjpg.multiplier.server.config.StreamSourcesProperties;
+import ch.mabaka.mjpg.multiplier.server.config.TranscodeProperties;
+import ch.mabaka.mjpg.multiplier.server.config.WatchdogProperties;
+import ch.mabaka.mjpg.multiplier.server.input.data.FrameBufferPool;
+import ch.mabaka.mjpg.multiplier.server.mystrom.MyStromClient;
+import ch.mabaka.mjpg.multiplier.server.recording.FrameRecorder;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Builds one independent {@link StreamPipeline} per configured camera source. Each pipeline reads on its own thread,
+ * so a slow or unreachable camera does not stall the others. The stall watchdogs of all pipelines are checked from a
+ * thread of the registry.
+ * <p>
+ * The configured output profiles and, if enabled, a recorder are created for every source. Their transcoding runs on a
+ * bounded pool of workers shared by all profiles and sources. Likewise the processed outputs, which run the
+ * {@link FrameStage} beans, share a pool of workers. The {@link MosaicStream} combines the configured sources into one
+ * grid.
+ */
+@Component
+public class StreamRegistry {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(StreamRegistry.class);
+
+	private static final long WATCHDOG_CHECK_INTERVAL_MILLIS = 100;
+
+	private final Map<String, StreamPipeline> pipelines = new LinkedHashMap<>();
+
+	/**
+	 * Not the Spring task scheduler, its thread may be busy polling the myStrom switches.
+	 */
+	private final ScheduledExecutorService watchdogScheduler = Executors
+			.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("mjpg-watchdog-"));
+
+	/**
+	 * Skips frames instead of queueing them when all workers are busy, see {@link TranscodedStream}.
+	 */
+	private final ThreadPoolExecutor transcodeWorkers;
+
+	private final MosaicStream mosaic;
+
+	/**
+	 * Unbounded queue, the frames in flight are bounded per output, see {@link ProcessedStream}.
+	 */
+	private final ExecutorService processingWorkers;
+
+	private final ProcessingProperties processingProperties;
+
+	private final Map<String, FrameStage> stages = new LinkedHashMap<>();
+
+	private final TranscodeProperties transcodeProperties;
+
+	private final RecordingProperties recordingProperties;
+
+	private final FrameBufferPool frameBufferPool;
+
+	private final StreamSourcesProperties properties;
+
+	private final SlowConsumerPolicy slowConsumerPolicy;
+
+	private final TaskScheduler taskScheduler;
+
+	private final MeterRegistry meterRegistry;
+
+	private final WatchdogProperties watchdogProperties;
+
+	private final GatingProperties gatingProperties;
+
+	private final ReplayProperties replayProperties;
+
+	private final MyStromProperties myStromProperties;
+
+	public StreamRegistry(StreamSourcesProperties properties, WatchdogProperties watchdogProperties,
+			GatingProperties gatingProperties, ReplayProperties replayProperties, MyStromProperties myStromProperties,
+			TranscodeProperties transcodeProperties, RecordingProperties recordingProperties,
+			MosaicProperties mosaicProperties, ProcessingProperties processingProperties,
+			ObjectProvider<FrameStage> frameStages, FrameBufferPool frameBufferPool,
+			SlowConsumerPolicy slowConsumerPolicy, MeterRegistry meterRegistry, TaskScheduler taskScheduler) {
+		this.properties = properties;
+		this.frameBufferPool = frameBufferPool;
+		this.meterRegistry = meterRegistry;
+		this.slowConsumerPolicy = slowConsumerPolicy;
+		this.taskScheduler = taskScheduler;
+		this.watchdogProperties = watchdogProperties;
+		this.gatingProperties = gatingProperties;
+		this.replayProperties = replayProperties;
+		this.myStromProperties = myStromProperties;
+		this.transcodeProperties = transcodeProperties;
+		this.recordingProperties = recordingProperties;
+		this.transcodeWorkers = new ThreadPoolExecutor(transcodeProperties.getThreads(),
+				transcodeProperties.getThreads(), 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(Math.max(1, transcodeProperties.getQueueSize())),
+				new CustomizableThreadFactory("mjpg-transcode-"));
+		for (String profileName : transcodeProperties.getProfiles().keySet()) {
+			if (!profileName.matches("[A-Za-z0-9_-]+")) {
+				throw new IllegalStateException("Invalid transcode profile name: " + profileName);
+			}
+		}
+		this.processingProperties = processingProperties;
+		this.processingWorkers = Executors.newFixedThreadPool(Math.max(1, processingProperties.getThreads()),
+				new CustomizableThreadFactory("mjpg-processing-"));
+		frameStages.orderedStream().forEach(stage -> {
+			if (stages.putIfAbsent(stage.getName(), stage) != null) {
+				throw new IllegalStateException("Duplicate frame stage name: " + stage.getName());
+			}
+		});
+		processingProperties.getOutputs().forEach((outputName, output) -> {
+			if (!outputName.matches("[A-Za-z0-9_-]+")) {
+				throw new IllegalStateException("Invalid processed output name: " + outputName);
+			}
+			for (String stageName : output.getStages()) {
+				if (!stages.containsKey(stageName)) {
+					throw new IllegalStateException(
+							"Unknown frame stage " + stageName + " in output " + outputName + "; known: " + stages.keySet());
+				}
+			}
+		});
+
+		if (properties.getUrl() != null && !properties.getUrl().isBlank()) {
+			addPipeline(StreamSourcesProperties.DEFAULT_SOURCE, properties.getUrl(), properties.getFallbackUrls(),
+					myStromProperties.getBaseUrl(), properties.isRelay());
+		}
+		for (StreamSourcesProperties.Source source : properties.getSources()) {
+			addPipeline(source.getName(), source.getUrl(), source.getFallbackUrls(), source.getMystromBaseUrl(),
+					source.isRelay());
+		}
+		if (pipelines.isEmpty()) {
+			throw new IllegalStateException("No stream source configured; set stream.url or stream.sources");
+		}
+		final Map<String, FrameFanOut> mosaicSources = new LinkedHashMap<>();
+		for (String name : mosaicProperties.getSources().isEmpty() ? pipelines.keySet()
+				: mosaicProperties.getSources()) {
+			final StreamPipeline pipeline = pipelines.get(name);
+			if (pipeline == null) {
+				throw new IllegalStateException("Unknown mosaic source: " + name);
+			}
+			mosaicSources.put(name, pipeline.getFanOut());
+		}
+		this.mosaic = new MosaicStream(mosaicSources,
+				new FrameFanOut(properties.getRingBufferSize(), slowConsumerPolicy), mosaicProperties, frameBufferPool,
+				meterRegistry);
+	}
+
+	private void addPipeline(String name, String url, List<String> fallbackUrls, String myStromBaseUrl,
+			boolean relay) {
+		if (name == null || !name.matches("[A-Za-z0-9_-]+")) {
+			throw new IllegalStateException("Invalid stream source name: " + name);
+		}
+		if (url == null || url.isBlank()) {
+			throw new IllegalStateException("No URL configured for stream source " + name);
+		}
+		if (pipelines.containsKey(name)) {
+			throw new IllegalStateException("Duplicate stream source name: " + name);
+		}
+		// an upstream multiplier is not powered by a switch of this node
+		final MyStromClient myStromClient = relay || myStromBaseUrl == null || myStromBaseUrl.isBlank() ? null
+				: new MyStromClient(myStromBaseUrl, myStromProperties.getStatePath(), myStromProperties.getActionPath(),
+						myStromProperties.getSetRelayPath());
+		final IInputStreamProvider provider;
+		if (properties.getUpstreamClient() == UpstreamClient.URL_CONNECTION) {
+			provider = new HttpInputStreamProvider(url, myStromClient);
+		} else {
+			final List<String> urls = new ArrayList<>();
+			urls.add(url);
+			urls.addAll(fallbackUrls);
+			provider = new HttpClientInputStreamProvider(urls, myStromClient, properties.getConnectTimeout(),
+					properties.getReadTimeout(), properties.getReconnect().getInitialBackoff(),
+					properties.getReconnect().getMaxBackoff());
+		}
+		final int ringBufferSize = properties.getRingBufferSize();
+		final FrameFanOut fanOut = new FrameFanOut(ringBufferSize,
+				slowConsumerPolicy);
+		final StreamWatchdog watchdog = new StreamWatchdog(watchdogProperties.getDegradedMissedFrames(),
+				watchdogProperties.getMaxMissedFrames(), watchdogProperties.getMinStallTime());
+		final ReplayBuffer replayBuffer = new ReplayBuffer(replayProperties.getDuration(),
+				replayProperties.getMaxBytes().toBytes());
+		final StreamMetrics metrics = new StreamMetrics(name, fanOut, watchdog, replayBuffer, meterRegistry);
+		final MjpegStreamReader reader = new MjpegStreamReader(name, provider,
+				fanOut, frameBufferPool, metrics, watchdog,
+				new FrameChangeDetector(gatingProperties.isEnabled(), gatingProperties.getMaxSizeDelta()), replayBuffer,
+				relay ? new RelayMonitor(name, meterRegistry) : null);
+		final Map<String, TranscodedStream> profiles = new LinkedHashMap<>();
+		transcodeProperties.getProfiles().forEach((profileName, profile) -> profiles.put(profileName,
+				new TranscodedStream(name, profileName, fanOut,
+						new FrameFanOut(ringBufferSize, slowConsumerPolicy),
+						new JpegTranscoder(profile.getWidth(), profile.getQuality(), frameBufferPool),
+						transcodeWorkers, meterRegistry)));
+		final Map<String, ProcessedStream> outputs = new LinkedHashMap<>();
+		processingProperties.getOutputs().forEach((outputName, output) -> outputs.put(outputName,
+				new ProcessedStream(name, outputName, output.getStages().stream().map(stages::get).toList(),
+						output.isAlwaysActive(), fanOut,
+						new FrameFanOut(ringBufferSize, slowConsumerPolicy),
+						new JpegTranscoder(0, processingProperties.getQuality(), frameBufferPool), frameBufferPool,
+						processingWorkers, processingProperties.getMaxInFlight(), meterRegistry)));
+		final FrameRecorder recorder = recordingProperties.isEnabled()
+				? new FrameRecorder(name, fanOut, recordingProperties, meterRegistry)
+				: null;
+		pipelines.put(name, new StreamPipeline(name, provider, fanOut, reader, replayBuffer, recorder,
+				myStromClient, taskScheduler, properties.isLazyConnect() ? properties.getLazyConnectLinger() : null,
+				watchdogProperties.getPowerCycleAfterStalls(), profiles, outputs));
+		LOGGER.info("Configured {} source {} for {}{}", relay ? "relay" : "stream", name, url,
+				fallbackUrls.isEmpty() ? "" : ", falling back to " + fallbackUrls);
+	}
+
+	@PostConstruct
+	public void start() {
+		pipelines.values().forEach(StreamPipeline::start);
+		mosaic.start();
+		watchdogScheduler.scheduleWithFixedDelay(this::checkStalls, WATCHDOG_CHECK_INTERVAL_MILLIS,
+				WATCHDOG_CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	@PreDestroy
+	public void stop() {
+		watchdogScheduler.shutdownNow();
+		mosaic.stop();
+		pipelines.values().forEach(StreamPipeline::stop);
+		transcodeWorkers.shutdownNow();
+		processingWorkers.shutdownNow();
+	}
+
+	private void checkStalls() {
+		for (StreamPipeline pipeline : pipelines.values()) {
+			try {
+				pipeline.checkStall();
+			} catch (RuntimeException e) {
+				LOGGER.error("Stall check of stream {} failed", pipeline.getName(), e);
+			}
+		}
+	}
+
+	// Poll every minute
+	@Scheduled(fixedDelayString = "PT1M")
+	public void pollMyStromSwitches() {
+		for (StreamPipeline pipeline : pipelines.values()) {
+			if (pipeline.getMyStromClient() != null) {
+				pipeline.getMyStromClient().pollRelayState();
+			}
+		}
+	}
+
+	// Viewers stalled in a write never poll, so the lag threshold is checked from here as well
+	@Scheduled(fixedDelayString = "PT1S")
+	public void evictLaggingViewers() {
+		for (StreamPipeline pipeline : pipelines.values()) {
+			pipeline.getFanOut().evictLaggingSubscribers();
+			for (TranscodedStream profile : pipeline.getProfiles()) {
+				profile.getFanOut().evictLaggingSubscribers();
+			}
+			for (ProcessedStream output : pipeline.getOutputs()) {
+				output.getFanOut().evictLaggingSubscribers();
+			}
+		}
+		mosaic.getFanOut().evictLaggingSubscribers();
+	}
+
+	/**
+	 * @return the pipeline served on the unnamed endpoints, which is the {@value StreamSourcesProperties#DEFAULT_SOURCE}
+	 *         source if configured and the first listed source otherwise
+	 */
+	public StreamPipeline getDefaultPipeline() {
+		return pipelines.values().iterator().next();
+	}
+
+	/**
+	 * @return the pipeline with the given name or null if there is no such source
+	 */
+	public StreamPipeline getPipeline(String name) {
+		return pipelines.get(name);
+	}
+
+	public MosaicStream getMosaic() {
+		return mosaic;
+	}
+
+	public Collection<StreamPipeline> getPipelines() {
+		return Collections.unmodifiableCollection(pipelines.values());
+	}
+}
@@ -0,0 +1,174 @@
+package ch.mabaka.mjpg.multiplier.server.input;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Detects a frozen camera stream from the frame timing, independent of the socket read timeout, which never fires if
+ * the camera keeps the connection alive with a trickle of bytes.
+ * <p>
+ * The watchdog learns the frame interval of the camera as a moving average and counts the frames missed since the
+ * last frame arrived. The stream is {@link State#DEGRADED} after a few missed frames and {@link State#STALLED} after
+ * the configured maximum, but not before the minimum stall time, so a camera with a high frame rate is not reconnected
+ * on every hiccup. Until enough frames have been seen one frame per second is assumed, after a stall the interval is
+ * learned anew in case the camera has slowed down for good.
+ * <p>
+ * The reader thread reports connections and frames, the state is evaluated by {@link #check(long)} from another
+ * thread.
+ */
+public class StreamWatchdog {
+
+	public enum State {
+		UP, DEGRADED, STALLED
+	}
+
+	private static final long ASSUMED_FRAME_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	private static final int LEARNING_FRAMES = 5;
+
+	private static final double INTERVAL_SMOOTHING = 0.1;
+
+	/**
+	 * Intervals longer than this multiple of the average are gaps, which are not learned.
+	 */
+	private static final int MAX_LEARNED_INTERVAL_FACTOR = 4;
+
+	private final int degradedMissedFrames;
+
+	private final int maxMissedFrames;
+
+	private final long minStallNanos;
+
+	private volatile boolean connected;
+
+	private volatile long lastFrameNanos;
+
+	private volatile long averageIntervalNanos;
+
+	private int learnedIntervals;
+
+	private long learningSumNanos;
+
+	private boolean frameSinceConnect;
+
+	private volatile State state = State.UP;
+
+	private volatile boolean relearn;
+
+	private volatile int consecutiveStalls;
+
+	private volatile long stalls;
+
+	/**
+	 * @param degradedMissedFrames missed frames after which the stream is degraded
+	 * @param maxMissedFrames missed frames after which the stream is stalled, 0 to never consider it stalled
+	 * @param minStallTime time without frames before the stream is considered stalled at the earliest
+	 */
+	public StreamWatchdog(final int degradedMissedFrames, final int maxMissedFrames, final Duration minStallTime) {
+		this.degradedMissedFrames = degradedMissedFrames;
+		this.maxMissedFrames = maxMissedFrames;
+		this.minStallNanos = minStallTime.toNanos();
+	}
+
+	/**
+	 * The reader has connected to the camera, the time until the first frame counts as a gap.
+	 */
+	void onConnected(final long nanos) {
+		if (relearn) {
+			relearn = false;
+			learnedIntervals = 0;
+			learningSumNanos = 0;
+			averageIntervalNanos = 0;
+		}
+		lastFrameNanos = nanos;
+		frameSinceConnect = false;
+		state = State.UP;
+		connected = true;
+	}
+
+	void onDisconnected() {
+		connected = false;
+	}
+
+	void onFrame(final long nanos) {
+		final long interval = nanos - lastFrameNanos;
+		if (frameSinceConnect) {
+			learn(interval);
+		}
+		frameSinceConnect = true;
+		lastFrameNanos = nanos;
+		consecutiveStalls = 0;
+	}
+
+	/**
+	 * Evaluate the state of a connected stream. Each connection stalls at most once, until the reader has connected
+	 * again.
+	 *
+	 * @return the new state, {@link State#UP} while not connected
+	 */
+	public State check(final long nowNanos) {
+		if (!connected) {
+			state = State.UP;
+			return state;
+		}
+		final long sinceLastFrame = nowNanos - lastFrameNanos;
+		final long missedFrames = sinceLastFrame / getFrameIntervalNanos();
+		if (maxMissedFrames > 0 && missedFrames >= maxMissedFrames && sinceLastFrame >= minStallNanos) {
+			if (state != State.STALLED) {
+				stalls++;
+				consecutiveStalls++;
+				relearn = true;
+			}
+			state = State.STALLED;
+		} else if (missedFrames >= degradedMissedFrames) {
+			state = State.DEGRADED;
+		} else {
+			state = State.UP;
+		}
+		return state;
+	}
+
+	/**
+	 * @return the state found by the last {@link #check(long)}
+	 */
+	public State getState() {
+		return state;
+	}
+
+	/**
+	 * @return number of stalls without a frame received in between
+	 */
+	public int getConsecutiveStalls() {
+		return consecutiveStalls;
+	}
+
+	/**
+	 * @return number of stalls detected since startup
+	 */
+	public long getStalls() {
+		return stalls;
+	}
+
+	/**
+	 * @return the learned frame interval, one second until enough frames have been received
+	 */
+	public long getFrameIntervalNanos() {
+		final long average = averageIntervalNanos;
+		return average > 0 ? average : ASSUMED_FRAME_INTERVAL_NANOS;
+	}
+
+	private void learn(final long interval) {
+		if (learnedIntervals < LEARNING_FRAMES) {
+			learningSumNanos += interval;
+			if (++learnedIntervals == LEARNING_FRAMES) {
+				averageIntervalNanos = Math.max(1, learningSumNanos / LEARNING_FRAMES);
+			}
+			return;
+		}
+		if (interval > averageIntervalNanos * MAX_LEARNED_INTERVAL_FACTOR) {
+			return;
+		}
+		averageIntervalNanos = Math.max(1,
+				(long) (averageIntervalNanos * (1 - INTERVAL_SMOOTHING) + interval * INTERVAL_SMOOTHING));
+	}
+}
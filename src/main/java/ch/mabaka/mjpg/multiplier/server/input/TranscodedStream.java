@@ -0,0 +1,188 @@
+package ch.mabaka.mjpg.multiplier.server.input;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ch.mabaka.mjpg.multiplier.server.input.data.Frame;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * One output profile of a stream source, e.g. a thumbnail. The frames of the source are transcoded at most once and
+ * published to a ring buffer of their own, which all viewers of the profile share.
+ * <p>
+ * The profile subscribes to the source only while it has viewers, so nothing is transcoded without a viewer and a
+ * lazily connected camera is connected for them like for any other viewer. Each source frame is handed to the shared
+ * pool of transcoding workers, so consecutive frames are transcoded in parallel. When the queue of the pool is full the
+ * frame is skipped. A result finishing after the result of a newer frame is dropped, so the frames stay in order.
+ */
+public class TranscodedStream implements FrameFanOut.SubscriberListener {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(TranscodedStream.class);
+
+	private final String streamName;
+
+	private final String profileName;
+
+	private final FrameFanOut source;
+
+	private final FrameFanOut fanOut;
+
+	private final JpegTranscoder transcoder;
+
+	private final Executor workers;
+
+	private final Timer transcodeTime;
+
+	private final AtomicInteger pending = new AtomicInteger();
+
+	private final LongAdder skippedFrames = new LongAdder();
+
+	private final Object publishLock = new Object();
+
+	private long lastSourceSequence = -1;
+
+	private volatile FrameSubscription sourceSubscription;
+
+	TranscodedStream(final String streamName, final String profileName, final FrameFanOut source,
+			final FrameFanOut fanOut, final JpegTranscoder transcoder, final Executor workers,
+			final MeterRegistry registry) {
+		this.streamName = streamName;
+		this.profileName = profileName;
+		this.source = source;
+		this.fanOut = fanOut;
+		this.transcoder = transcoder;
+		this.workers = workers;
+
+		transcodeTime = Timer.builder("mjpg.transcode.time").description("Time to transcode a frame for the profile")
+				.publishPercentiles(StreamMetrics.getPercentiles()).tags("stream", streamName, "profile", profileName)
+				.register(registry);
+		Gauge.builder("mjpg.transcode.queue", pending, AtomicInteger::get)
+				.description("Frames of the profile waiting for or being transcoded").baseUnit("frames")
+				.tags("stream", streamName, "profile", profileName).register(registry);
+		FunctionCounter.builder("mjpg.transcode.skipped", skippedFrames, LongAdder::sum)
+				.description("Frames not transcoded because the workers were busy or a newer frame was done first")
+				.baseUnit("frames").tags("stream", streamName, "profile", profileName).register(registry);
+		Gauge.builder("mjpg.transcode.viewers", fanOut, FrameFanOut::getSubscriberCount)
+				.description("Viewers connected to the profile").tags("stream", streamName, "profile", profileName)
+				.register(registry);
+		FunctionCounter.builder("mjpg.transcode.egress.bytes", fanOut,
+				FrameFanOut::getWrittenBytes)
+				.description("Bytes written to viewers of the profile").baseUnit("bytes")
+				.tags("stream", streamName, "profile", profileName).register(registry);
+	}
+
+	public String getProfileName() {
+		return profileName;
+	}
+
+	/**
+	 * @return the transcoded frames, viewers subscribe here
+	 */
+	public FrameFanOut getFanOut() {
+		return fanOut;
+	}
+
+	/**
+	 * @return frames handed to the workers and not yet done
+	 */
+	public int getPending() {
+		return pending.get();
+	}
+
+	void start() {
+		fanOut.setSubscriberListener(this);
+	}
+
+	void stop() {
+		fanOut.setSubscriberListener(null);
+		onLastSubscriberGone();
+		fanOut.shutdown();
+	}
+
+	@Override
+	public synchronized void onFirstSubscriber() {
+		final FrameSubscription subscription = source.subscribe();
+		subscription.setClient("profile " + profileName);
+		sourceSubscription = subscription;
+		LOGGER.info("First viewer of profile {} on stream {}; transcoding", profileName, streamName);
+		drain(subscription);
+	}
+
+	@Override
+	public synchronized void onLastSubscriberGone() {
+		final FrameSubscription subscription = sourceSubscription;
+		if (subscription != null) {
+			sourceSubscription = null;
+			source.unsubscribe(subscription);
+			LOGGER.info("No viewer left on profile {} of stream {}; stopped transcoding", profileName, streamName);
+		}
+	}
+
+	/**
+	 * Hand the available source frames to the workers and wait for the next one. Runs on the notification thread of
+	 * the source, or on the thread of the first viewer.
+	 */
+	private void drain(final FrameSubscription subscription) {
+		synchronized (subscription) {
+			if (subscription != sourceSubscription) {
+				return;
+			}
+			Frame frame;
+			while ((frame = subscription.poll()) != null) {
+				submit(frame);
+			}
+			if (!subscription.isEvicted()) {
+				subscription.onNextFrame(() -> drain(subscription));
+			}
+		}
+	}
+
+	private void submit(final Frame frame) {
+		pending.incrementAndGet();
+		try {
+			workers.execute(() -> transcode(frame));
+		} catch (RejectedExecutionException e) {
+			pending.decrementAndGet();
+			skippedFrames.increment();
+			frame.release();
+		}
+	}
+
+	private void transcode(final Frame frame) {
+		try {
+			final long start = System.nanoTime();
+			final Frame transcoded = transcoder.transcode(frame);
+			transcodeTime.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+			publishInOrder(frame.getSequence(), transcoded);
+		} catch (IOException | RuntimeException e) {
+			skippedFrames.increment();
+			LOGGER.warn("Transcoding frame {} of stream {} for profile {} failed: {}", frame.getSequence(), streamName,
+					profileName, e.toString());
+		} finally {
+			frame.release();
+			pending.decrementAndGet();
+		}
+	}
+
+	private void publishInOrder(final long sourceSequence, final Frame transcoded) {
+		synchronized (publishLock) {
+			if (sourceSequence <= lastSourceSequence) {
+				skippedFrames.increment();
+				transcoded.release();
+				return;
+			}
+			lastSourceSequence = sourceSequence;
+			fanOut.publish(transcoded);
+		}
+	}
+}
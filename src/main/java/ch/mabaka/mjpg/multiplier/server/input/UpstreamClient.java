@@ -0,0 +1,17 @@
+package ch.mabaka.mjpg.multiplier.server.input;
+
+/**
+ * How the cameras are connected.
+ */
+public enum UpstreamClient {
+	/**
+	 * {@link HttpClientInputStreamProvider}: one client per camera, fail over to the fallback URLs and reconnect with
+	 * exponential backoff.
+	 */
+	HTTP_CLIENT,
+	/**
+	 * {@link HttpInputStreamProvider}: probe the camera with a plain socket, then open a new
+	 * {@link java.net.HttpURLConnection} and retry every second. Fallback URLs are ignored.
+	 */
+	URL_CONNECTION
+}
@@ -0,0 +1,60 @@
+package ch.mabaka.mjpg.multiplier.server.input;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+/**
+ * Actuator endpoint listing the connected viewers of each stream source, output profile, processed output and the mosaic with their lag,
+ * dropped frames, bytes written and effective frame rate.
+ */
+@Component
+@Endpoint(id = "viewers")
+public class ViewersEndpoint {
+
+	private final StreamRegistry streamRegistry;
+
+	public ViewersEndpoint(StreamRegistry streamRegistry) {
+		this.streamRegistry = streamRegistry;
+	}
+
+	@ReadOperation
+	public Map<String, List<Map<String, Object>>> viewers() {
+		final Map<String, List<Map<String, Object>>> viewers = new LinkedHashMap<>();
+		for (StreamPipeline pipeline : streamRegistry.getPipelines()) {
+			viewers.put(pipeline.getName(), describe(pipeline.getFanOut()));
+			for (TranscodedStream profile : pipeline.getProfiles()) {
+				viewers.put(pipeline.getName() + "?profile=" + profile.getProfileName(),
+						describe(profile.getFanOut()));
+			}
+			for (ProcessedStream output : pipeline.getOutputs()) {
+				viewers.put(pipeline.getName() + "?output=" + output.getOutputName(),
+						describe(output.getFanOut()));
+			}
+		}
+		viewers.put("mosaic", describe(streamRegistry.getMosaic().getFanOut()));
+		return viewers;
+	}
+
+	private static List<Map<String, Object>> describe(FrameFanOut fanOut) {
+		final List<Map<String, Object>> streamViewers = new ArrayList<>();
+		for (FrameSubscription subscription : fanOut.getSubscriptions()) {
+			final Map<String, Object> viewer = new LinkedHashMap<>();
+			viewer.put("client", subscription.getClient());
+			viewer.put("connectedSince", Instant.ofEpochMilli(subscription.getConnectedSince()).toString());
+			viewer.put("lagFrames", subscription.getLag());
+			viewer.put("deliveredFrames", subscription.getDeliveredFrames());
+			viewer.put("droppedFrames", subscription.getSkippedFrames());
+			viewer.put("writtenBytes", subscription.getWrittenBytes());
+			viewer.put("effectiveFps", Math.round(subscription.getEffectiveFrameRate() * 10) / 10.0);
+			streamViewers.add(viewer);
+		}
+		return streamViewers;
+	}
+}
@@ -0,0 +1,263 @@
+package ch.mabaka.mjpg.multiplier.server.input.data;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A JPEG frame stored as a complete, pre-encoded multipart part: boundary, part headers, JPEG data and the trailing
+ * CRLF. The part lives in a pooled direct buffer, it is built once on the ingest thread and written unchanged to every
+ * viewer.
+ * <p>
+ * Each frame carries its timing: the wall clock time it was received, which is sent to clients, and monotonic
+ * {@link System#nanoTime()} stamps taken when it was received, parsed and published, which are used for the latency
+ * metrics. The sequence number is assigned on publishing. If the pool encodes timing headers, the {@code X-Timestamp}
+ * and {@code X-Frame-Seq} part headers are written in front of the remaining headers at that point, into room reserved
+ * at the start of the buffer.
+ * <p>
+ * The timing and the sequence are set by the ingest thread before the frame is published and must not be changed
+ * afterwards.
+ * <p>
+ * Frames are reference counted. Whoever allocates a frame owns one reference, every additional holder has to
+ * {@link #retain()} it and {@link #release()} it when done. The buffer goes back to the {@link FrameBufferPool} when the
+ * last reference has been released.
+ */
+public final class Frame {
+
+	public static final String BOUNDARY = "FRAME";
+
+	/**
+	 * Time the frame was received from the camera, in seconds since the epoch with microsecond precision.
+	 */
+	public static final String TIMESTAMP_HEADER = "X-Timestamp";
+
+	/**
+	 * Sequence number of the frame in the stream.
+	 */
+	public static final String SEQUENCE_HEADER = "X-Frame-Seq";
+
+	private final FrameBufferPool pool;
+
+	private final ByteBuffer buffer;
+
+	/**
+	 * Start of the part, the room before it is left for the timing headers.
+	 */
+	private int partOffset;
+
+	private final int headersOffset;
+
+	private final int jpegOffset;
+
+	private final int jpegLength;
+
+	private final int partEnd;
+
+	private final AtomicInteger referenceCount = new AtomicInteger(1);
+
+	private long sequence = -1;
+
+	private long timestampMicros;
+
+	private long receivedNanos;
+
+	private long parsedNanos;
+
+	private long publishedNanos;
+
+	private boolean unchanged;
+
+	/**
+	 * @param partOffset start of the boundary line, any room in front of it is available for the timing headers
+	 * @param headersOffset end of the boundary line
+	 */
+	Frame(final FrameBufferPool pool, final ByteBuffer buffer, final int partOffset, final int headersOffset,
+			final int jpegOffset, final int jpegLength, final int partEnd) {
+		this.pool = pool;
+		this.buffer = buffer;
+		this.partOffset = partOffset;
+		this.headersOffset = headersOffset;
+		this.jpegOffset = jpegOffset;
+		this.jpegLength = jpegLength;
+		this.partEnd = partEnd;
+		this.parsedNanos = this.receivedNanos = System.nanoTime();
+		this.timestampMicros = currentTimeMicros();
+	}
+
+	/**
+	 * Copy JPEG data into the frame. Only allowed while the frame is being filled, before it is published.
+	 *
+	 * @param position position relative to the start of the JPEG data
+	 */
+	public void put(final int position, final byte[] source, final int offset, final int length) {
+		buffer.put(jpegOffset + position, source, offset, length);
+	}
+
+	/**
+	 * Copy the remaining bytes of the source into the frame without moving its position, e.g. the JPEG of another
+	 * frame. Only allowed before the frame is published, like {@link #put(int, byte[], int, int)}.
+	 */
+	public void put(final int position, final ByteBuffer source) {
+		buffer.put(jpegOffset + position, source, source.position(), source.remaining());
+	}
+
+	/**
+	 * @return a read only view on the encoded multipart part
+	 */
+	public ByteBuffer getPart() {
+		return buffer.asReadOnlyBuffer().limit(partEnd).position(partOffset);
+	}
+
+	/**
+	 * @return a read only view on the JPEG data
+	 */
+	public ByteBuffer getJpeg() {
+		return buffer.asReadOnlyBuffer().limit(jpegOffset + jpegLength).position(jpegOffset);
+	}
+
+	public int getPartLength() {
+		return partEnd - partOffset;
+	}
+
+	public int getJpegLength() {
+		return jpegLength;
+	}
+
+	/**
+	 * @return size of the buffer the frame keeps from being reused while it is referenced, at least the smallest size
+	 *         class of the pool
+	 */
+	public int getBufferCapacity() {
+		return buffer.capacity();
+	}
+
+	/**
+	 * Record when the first bytes of the frame were received, by default the time the frame was allocated.
+	 *
+	 * @param timestampMicros wall clock time in microseconds since the epoch
+	 * @param receivedNanos {@link System#nanoTime()} at the same moment
+	 */
+	public void setReceived(final long timestampMicros, final long receivedNanos) {
+		this.timestampMicros = timestampMicros;
+		this.receivedNanos = receivedNanos;
+	}
+
+	/**
+	 * Record that the frame is complete, by default the time it was allocated.
+	 */
+	public void setParsed(final long parsedNanos) {
+		this.parsedNanos = parsedNanos;
+	}
+
+	/**
+	 * Assign the sequence number right before the frame is published and write the timing headers if the pool has
+	 * reserved room for them.
+	 */
+	public void stampPublished(final long sequence) {
+		this.sequence = sequence;
+		this.publishedNanos = System.nanoTime();
+		if (partOffset > 0) {
+			final byte[] boundaryAndTiming = ("--" + BOUNDARY + "\r\n" + TIMESTAMP_HEADER + ": " + formatTimestamp()
+					+ "\r\n" + SEQUENCE_HEADER + ": " + sequence + "\r\n").getBytes(StandardCharsets.US_ASCII);
+			partOffset = headersOffset - boundaryAndTiming.length;
+			buffer.put(partOffset, boundaryAndTiming);
+		}
+	}
+
+	/**
+	 * @return position of the frame in the stream, -1 before it has been published
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * @return wall clock time the frame was received in microseconds since the epoch
+	 */
+	public long getTimestampMicros() {
+		return timestampMicros;
+	}
+
+	/**
+	 * @return the receive time as sent in the {@value #TIMESTAMP_HEADER} header: seconds since the epoch with six
+	 *         decimals
+	 */
+	public String formatTimestamp() {
+		final long micros = timestampMicros % 1_000_000;
+		final String fraction = Long.toString(1_000_000 + micros).substring(1);
+		return timestampMicros / 1_000_000 + "." + fraction;
+	}
+
+	/**
+	 * @return {@link System#nanoTime()} when the first bytes of the frame were received
+	 */
+	public long getReceivedNanos() {
+		return receivedNanos;
+	}
+
+	/**
+	 * @return {@link System#nanoTime()} when the frame was complete
+	 */
+	public long getParsedNanos() {
+		return parsedNanos;
+	}
+
+	/**
+	 * @return {@link System#nanoTime()} when the frame was published, 0 before
+	 */
+	public long getPublishedNanos() {
+		return publishedNanos;
+	}
+
+	/**
+	 * Mark the frame as showing the same picture as an earlier frame. Only allowed before it is published.
+	 */
+	public void setUnchanged(final boolean unchanged) {
+		this.unchanged = unchanged;
+	}
+
+	/**
+	 * @return true if the frame shows the same picture as an earlier frame and may be skipped
+	 */
+	public boolean isUnchanged() {
+		return unchanged;
+	}
+
+	/**
+	 * @return the current wall clock time in microseconds since the epoch
+	 */
+	public static long currentTimeMicros() {
+		final Instant now = Instant.now();
+		return TimeUnit.SECONDS.toMicros(now.getEpochSecond()) + now.getNano() / 1000;
+	}
+
+	/**
+	 * Acquire an additional reference.
+	 *
+	 * @return false if the frame has already been released completely and must not be used anymore
+	 */
+	public boolean retain() {
+		int count;
+		do {
+			count = referenceCount.get();
+			if (count <= 0) {
+				return false;
+			}
+		} while (!referenceCount.compareAndSet(count, count + 1));
+		return true;
+	}
+
+	/**
+	 * Give up a reference. The buffer is returned to the pool when the last reference is released.
+	 */
+	public void release() {
+		final int count = referenceCount.decrementAndGet();
+		if (count == 0) {
+			pool.release(buffer);
+		} else if (count < 0) {
+			throw new IllegalStateException("Frame released more often than retained");
+		}
+	}
+}
@@ -0,0 +1,178 @@
+package ch.mabaka.mjpg.multiplier.server.input.data;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * Pool of direct {@link ByteBuffer}s backing the {@link Frame}s.
+ * <p>
+ * Buffers are grouped in power of two size classes starting at 64 KB. A buffer goes back to its size class when the
+ * last reference to its frame has been released, as long as the free buffers stay within the configured byte budget.
+ * Parts larger than the largest size class are allocated unpooled.
+ * <p>
+ * With {@code stream.timingHeaders} enabled room for the {@link Frame#TIMESTAMP_HEADER} and
+ * {@link Frame#SEQUENCE_HEADER} part headers is reserved in front of each part, they are filled in when the frame is
+ * published.
+ */
+@Component
+public class FrameBufferPool implements MeterBinder {
+
+	private static final int MIN_SIZE_CLASS_SHIFT = 16;
+
+	private static final int MAX_SIZE_CLASS_SHIFT = 24;
+
+	private static final byte[] BOUNDARY_LINE = ("--" + Frame.BOUNDARY + "\r\n").getBytes(StandardCharsets.US_ASCII);
+
+	private static final byte[] HEADER_PREFIX = "Content-Type: image/jpeg\r\nContent-Length: "
+			.getBytes(StandardCharsets.US_ASCII);
+
+	private static final byte[] HEADER_SUFFIX = "\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+	private static final byte[] TRAILER = "\r\n".getBytes(StandardCharsets.US_ASCII);
+
+	/**
+	 * Room for the boundary line and the timing headers with the longest possible values.
+	 */
+	private static final int TIMING_HEADERS_ROOM = BOUNDARY_LINE.length + Frame.TIMESTAMP_HEADER.length() + 31
+			+ Frame.SEQUENCE_HEADER.length() + 23;
+
+	private final long maxPooledBytes;
+
+	private final boolean timingHeaders;
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private final Queue<ByteBuffer>[] freeBuffers = new Queue[MAX_SIZE_CLASS_SHIFT - MIN_SIZE_CLASS_SHIFT + 1];
+
+	private final AtomicLong freeBytes = new AtomicLong();
+
+	private final AtomicInteger freeBufferCount = new AtomicInteger();
+
+	private final AtomicInteger usedBufferCount = new AtomicInteger();
+
+	private final AtomicLong acquireCount = new AtomicLong();
+
+	private final AtomicLong reuseCount = new AtomicLong();
+
+	public FrameBufferPool(long maxPooledBytes) {
+		this(maxPooledBytes, false);
+	}
+
+	@Autowired
+	public FrameBufferPool(@Value("${stream.bufferPool.maxPooledBytes:67108864}") long maxPooledBytes,
+			@Value("${stream.timingHeaders:false}") boolean timingHeaders) {
+		this.maxPooledBytes = maxPooledBytes;
+		this.timingHeaders = timingHeaders;
+		for (int i = 0; i < freeBuffers.length; i++) {
+			freeBuffers[i] = new ConcurrentLinkedQueue<>();
+		}
+	}
+
+	/**
+	 * Allocate a frame for a JPEG of the given length with the multipart envelope already in place. The caller copies
+	 * the JPEG data into the frame with {@link Frame#put(int, byte[], int, int)} before publishing it and owns the
+	 * initial reference.
+	 */
+	public Frame allocate(final int jpegLength) {
+		final byte[] length = Integer.toString(jpegLength).getBytes(StandardCharsets.US_ASCII);
+		final int partOffset = timingHeaders ? TIMING_HEADERS_ROOM - BOUNDARY_LINE.length : 0;
+		final int headersOffset = partOffset + BOUNDARY_LINE.length;
+		final int jpegOffset = headersOffset + HEADER_PREFIX.length + length.length + HEADER_SUFFIX.length;
+		final int partEnd = jpegOffset + jpegLength + TRAILER.length;
+		final ByteBuffer buffer = acquire(partEnd);
+		buffer.put(partOffset, BOUNDARY_LINE);
+		buffer.put(headersOffset, HEADER_PREFIX);
+		buffer.put(headersOffset + HEADER_PREFIX.length, length);
+		buffer.put(headersOffset + HEADER_PREFIX.length + length.length, HEADER_SUFFIX);
+		buffer.put(jpegOffset + jpegLength, TRAILER);
+		return new Frame(this, buffer, partOffset, headersOffset, jpegOffset, jpegLength, partEnd);
+	}
+
+	ByteBuffer acquire(final int size) {
+		acquireCount.incrementAndGet();
+		usedBufferCount.incrementAndGet();
+		final int sizeClass = sizeClass(size);
+		if (sizeClass < 0) {
+			return ByteBuffer.allocateDirect(size);
+		}
+		final ByteBuffer buffer = freeBuffers[sizeClass].poll();
+		if (buffer != null) {
+			freeBufferCount.decrementAndGet();
+			freeBytes.addAndGet(-buffer.capacity());
+			reuseCount.incrementAndGet();
+			return buffer.clear();
+		}
+		return ByteBuffer.allocateDirect(1 << (sizeClass + MIN_SIZE_CLASS_SHIFT));
+	}
+
+	void release(final ByteBuffer buffer) {
+		usedBufferCount.decrementAndGet();
+		final int capacity = buffer.capacity();
+		final int sizeClass = sizeClass(capacity);
+		if (sizeClass < 0 || capacity != 1 << (sizeClass + MIN_SIZE_CLASS_SHIFT)) {
+			return;
+		}
+		if (freeBytes.addAndGet(capacity) > maxPooledBytes) {
+			// over budget, leave the buffer to the garbage collector
+			freeBytes.addAndGet(-capacity);
+			return;
+		}
+		freeBufferCount.incrementAndGet();
+		freeBuffers[sizeClass].offer(buffer);
+	}
+
+	public int getFreeBufferCount() {
+		return freeBufferCount.get();
+	}
+
+	public long getFreeBytes() {
+		return freeBytes.get();
+	}
+
+	public int getUsedBufferCount() {
+		return usedBufferCount.get();
+	}
+
+	public long getAcquireCount() {
+		return acquireCount.get();
+	}
+
+	public long getReuseCount() {
+		return reuseCount.get();
+	}
+
+	@Override
+	public void bindTo(final MeterRegistry registry) {
+		Gauge.builder("mjpg.buffer.pool.free", this, FrameBufferPool::getFreeBufferCount)
+				.description("Buffers available in the frame buffer pool").baseUnit("buffers").register(registry);
+		Gauge.builder("mjpg.buffer.pool.free.bytes", this, FrameBufferPool::getFreeBytes)
+				.description("Capacity of the buffers available in the frame buffer pool").baseUnit("bytes")
+				.register(registry);
+		Gauge.builder("mjpg.buffer.pool.used", this, FrameBufferPool::getUsedBufferCount)
+				.description("Buffers currently referenced by frames").baseUnit("buffers").register(registry);
+		FunctionCounter.builder("mjpg.buffer.pool.acquired", this, FrameBufferPool::getAcquireCount)
+				.description("Buffers handed out by the pool").register(registry);
+		FunctionCounter.builder("mjpg.buffer.pool.reused", this, FrameBufferPool::getReuseCount)
+				.description("Buffers handed out from the free list instead of being allocated").register(registry);
+		Gauge.builder("mjpg.buffer.pool.reuse.ratio", this,
+				pool -> pool.getAcquireCount() == 0 ? 0 : (double) pool.getReuseCount() / pool.getAcquireCount())
+				.description("Share of buffers served from the free list").register(registry);
+	}
+
+	private static int sizeClass(final int size) {
+		final int shift = Math.max(MIN_SIZE_CLASS_SHIFT, 32 - Integer.numberOfLeadingZeros(size - 1));
+		return shift > MAX_SIZE_CLASS_SHIFT ? -1 : shift - MIN_SIZE_CLASS_SHIFT;
+	}
+}
@@ -1,3 +0,0 @@
-package ch.mabaka.mjpg.multiplier.server.input.data;
-
-public record FrameHeader(int contentLength,  int indexFrameContentStart) {}
\ No newline at end of file
@@ -0,0 +1,375 @@
+package ch.mabaka.mjpg.multiplier.server.motion;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Reads the mean brightness of every 8x8 luminance block of a baseline JPEG from its DC coefficients, a picture at one
+ * eighth of the size without any inverse DCT, color conversion or upsampling. The AC coefficients still have to be
+ * Huffman decoded to find the next block, but they are only skipped.
+ * <p>
+ * Only baseline and extended sequential Huffman coded JPEGs are read, which is what cameras send. For progressive or
+ * arithmetic coded pictures {@link #decode(ByteBuffer)} returns null. An instance is not thread safe.
+ */
+final class JpegDcDecoder {
+
+	private static final int MAX_COMPONENTS = 4;
+
+	private final HuffmanTable[] dcTables = new HuffmanTable[4];
+
+	private final HuffmanTable[] acTables = new HuffmanTable[4];
+
+	private final int[] quantizationDc = new int[4];
+
+	private int width;
+
+	private int height;
+
+	private int components;
+
+	private final int[] componentIds = new int[MAX_COMPONENTS];
+
+	private final int[] horizontalSampling = new int[MAX_COMPONENTS];
+
+	private final int[] verticalSampling = new int[MAX_COMPONENTS];
+
+	private final int[] quantizationTable = new int[MAX_COMPONENTS];
+
+	private int restartInterval;
+
+	private ByteBuffer data;
+
+	private int position;
+
+	private int limit;
+
+	private int bitBuffer;
+
+	private int bitCount;
+
+	private boolean markerReached;
+
+	/**
+	 * @return the luminance of the blocks, null if the coding of the picture is not supported
+	 * @throws IOException if the JPEG is malformed
+	 */
+	LumaGrid decode(final ByteBuffer jpeg) throws IOException {
+		data = jpeg;
+		limit = jpeg.limit();
+		width = 0;
+		restartInterval = 0;
+		int p = jpeg.position();
+		if (u16(p) != 0xFFD8) {
+			throw new IOException("Not a JPEG");
+		}
+		p += 2;
+		while (p + 4 <= limit) {
+			if ((data.get(p) & 0xFF) != 0xFF) {
+				throw new IOException("Marker expected at " + (p - jpeg.position()));
+			}
+			final int marker = data.get(p + 1) & 0xFF;
+			p += 2;
+			if (marker == 0xFF) {
+				// fill byte
+				p--;
+				continue;
+			}
+			if (marker == 0xD8 || marker == 0x01 || marker >= 0xD0 && marker <= 0xD7) {
+				continue;
+			}
+			if (marker == 0xD9) {
+				break;
+			}
+			final int length = u16(p);
+			final int end = p + length;
+			if (length < 2 || end > limit) {
+				throw new IOException("Truncated segment " + Integer.toHexString(marker));
+			}
+			switch (marker) {
+			case 0xC0, 0xC1 -> readFrameHeader(p + 2);
+			case 0xC2, 0xC3, 0xC5, 0xC6, 0xC7, 0xC9, 0xCA, 0xCB, 0xCD, 0xCE, 0xCF -> {
+				return null;
+			}
+			case 0xC4 -> readHuffmanTables(p + 2, end);
+			case 0xDB -> readQuantizationTables(p + 2, end);
+			case 0xDD -> restartInterval = u16(p + 2);
+			case 0xDA -> {
+				if (width == 0) {
+					throw new IOException("Scan before frame header");
+				}
+				return readScan(p + 2, end);
+			}
+			default -> {
+				// application data, comments
+			}
+			}
+			p = end;
+		}
+		throw new IOException("No scan");
+	}
+
+	private void readFrameHeader(final int p) throws IOException {
+		height = u16(p + 1);
+		width = u16(p + 3);
+		components = data.get(p + 5) & 0xFF;
+		if (height == 0 || width == 0 || components == 0 || components > MAX_COMPONENTS) {
+			throw new IOException("Unsupported frame header " + width + "x" + height + "x" + components);
+		}
+		for (int i = 0; i < components; i++) {
+			final int c = p + 6 + i * 3;
+			componentIds[i] = data.get(c) & 0xFF;
+			final int sampling = data.get(c + 1) & 0xFF;
+			horizontalSampling[i] = Math.max(1, sampling >> 4);
+			verticalSampling[i] = Math.max(1, sampling & 0x0F);
+			quantizationTable[i] = data.get(c + 2) & 0x03;
+		}
+	}
+
+	private void readHuffmanTables(int p, final int end) throws IOException {
+		while (p < end) {
+			final int classAndId = data.get(p) & 0xFF;
+			final int[] counts = new int[17];
+			int total = 0;
+			for (int length = 1; length <= 16; length++) {
+				counts[length] = data.get(p + length) & 0xFF;
+				total += counts[length];
+			}
+			if (p + 17 + total > end) {
+				throw new IOException("Truncated Huffman table");
+			}
+			final byte[] values = new byte[total];
+			data.get(p + 17, values);
+			final HuffmanTable table = new HuffmanTable(counts, values);
+			if (classAndId >> 4 == 0) {
+				dcTables[classAndId & 0x03] = table;
+			} else {
+				acTables[classAndId & 0x03] = table;
+			}
+			p += 17 + total;
+		}
+	}
+
+	/**
+	 * Only the DC entry of each table is kept, it is the first one in zig-zag order.
+	 */
+	private void readQuantizationTables(int p, final int end) {
+		while (p < end) {
+			final int precisionAndId = data.get(p) & 0xFF;
+			final boolean wide = precisionAndId >> 4 != 0;
+			quantizationDc[precisionAndId & 0x03] = wide ? u16(p + 1) : data.get(p + 1) & 0xFF;
+			p += 1 + (wide ? 128 : 64);
+		}
+	}
+
+	private LumaGrid readScan(final int p, final int end) throws IOException {
+		final int scanComponents = data.get(p) & 0xFF;
+		final int[] frameComponent = new int[scanComponents];
+		final HuffmanTable[] dc = new HuffmanTable[scanComponents];
+		final HuffmanTable[] ac = new HuffmanTable[scanComponents];
+		int lumaIndex = -1;
+		for (int i = 0; i < scanComponents; i++) {
+			final int id = data.get(p + 1 + i * 2) & 0xFF;
+			final int tables = data.get(p + 2 + i * 2) & 0xFF;
+			frameComponent[i] = -1;
+			for (int c = 0; c < components; c++) {
+				if (componentIds[c] == id) {
+					frameComponent[i] = c;
+				}
+			}
+			if (frameComponent[i] < 0) {
+				throw new IOException("Unknown component " + id);
+			}
+			dc[i] = dcTables[tables >> 4 & 0x03];
+			ac[i] = acTables[tables & 0x03];
+			if (dc[i] == null || ac[i] == null) {
+				throw new IOException("Missing Huffman table for component " + id);
+			}
+			if (frameComponent[i] == 0) {
+				lumaIndex = i;
+			}
+		}
+		if (lumaIndex < 0) {
+			// the luminance is in a later scan, not worth looking for
+			return null;
+		}
+		position = end;
+		bitCount = 0;
+		markerReached = false;
+
+		int maxH = 1;
+		int maxV = 1;
+		for (int c = 0; c < components; c++) {
+			maxH = Math.max(maxH, horizontalSampling[c]);
+			maxV = Math.max(maxV, verticalSampling[c]);
+		}
+		final int lumaH = horizontalSampling[0];
+		final int lumaV = verticalSampling[0];
+		final int columns = ceilDiv(ceilDiv(width * lumaH, maxH), 8);
+		final int rows = ceilDiv(ceilDiv(height * lumaV, maxV), 8);
+		final float[] luma = new float[columns * rows];
+		final float scale = quantizationDc[quantizationTable[0]] / 8f;
+		final int[] predictions = new int[scanComponents];
+
+		final int mcuColumns;
+		final int mcuRows;
+		if (scanComponents == 1) {
+			// not interleaved, each block is a unit of its own
+			mcuColumns = columns;
+			mcuRows = rows;
+		} else {
+			mcuColumns = ceilDiv(width, 8 * maxH);
+			mcuRows = ceilDiv(height, 8 * maxV);
+		}
+		final int mcus = mcuColumns * mcuRows;
+		for (int mcu = 0; mcu < mcus; mcu++) {
+			if (restartInterval > 0 && mcu > 0 && mcu % restartInterval == 0) {
+				restart();
+				Arrays.fill(predictions, 0);
+			}
+			final int mcuX = mcu % mcuColumns;
+			final int mcuY = mcu / mcuColumns;
+			for (int i = 0; i < scanComponents; i++) {
+				final int h = scanComponents == 1 ? 1 : horizontalSampling[frameComponent[i]];
+				final int v = scanComponents == 1 ? 1 : verticalSampling[frameComponent[i]];
+				for (int by = 0; by < v; by++) {
+					for (int bx = 0; bx < h; bx++) {
+						predictions[i] += readBlockDc(dc[i], ac[i]);
+						if (i == lumaIndex) {
+							final int x = mcuX * h + bx;
+							final int y = mcuY * v + by;
+							if (x < columns && y < rows) {
+								luma[y * columns + x] = predictions[i] * scale + 128;
+							}
+						}
+					}
+				}
+			}
+		}
+		return new LumaGrid(width, height, columns, rows, luma);
+	}
+
+	/**
+	 * @return the DC difference of the next block, its AC coefficients are skipped
+	 */
+	private int readBlockDc(final HuffmanTable dc, final HuffmanTable ac) throws IOException {
+		final int size = dc.decode(this);
+		final int difference = size == 0 ? 0 : extend(readBits(size), size);
+		for (int k = 1; k < 64;) {
+			final int runAndSize = ac.decode(this);
+			final int run = runAndSize >> 4;
+			final int bits = runAndSize & 0x0F;
+			if (bits == 0) {
+				if (run != 15) {
+					// end of block
+					break;
+				}
+				k += 16;
+			} else {
+				readBits(bits);
+				k += run + 1;
+			}
+		}
+		return difference;
+	}
+
+	/**
+	 * Skip to the data after the next restart marker.
+	 */
+	private void restart() {
+		bitCount = 0;
+		markerReached = false;
+		while (position + 1 < limit) {
+			if ((data.get(position) & 0xFF) == 0xFF && (data.get(position + 1) & 0xF8) == 0xD0) {
+				position += 2;
+				return;
+			}
+			position++;
+		}
+	}
+
+	private int readBit() {
+		if (bitCount == 0) {
+			fill();
+		}
+		bitCount--;
+		return bitBuffer >> bitCount & 1;
+	}
+
+	private int readBits(final int count) {
+		int value = 0;
+		for (int i = 0; i < count; i++) {
+			value = value << 1 | readBit();
+		}
+		return value;
+	}
+
+	/**
+	 * Read the next byte of entropy coded data, dropping stuffed zero bytes. At a marker zeros are read, as the
+	 * specification asks for.
+	 */
+	private void fill() {
+		int value = 0;
+		if (!markerReached && position < limit) {
+			value = data.get(position) & 0xFF;
+			if (value != 0xFF) {
+				position++;
+			} else if (position + 1 < limit && data.get(position + 1) == 0) {
+				position += 2;
+			} else {
+				markerReached = true;
+				value = 0;
+			}
+		}
+		bitBuffer = value;
+		bitCount = 8;
+	}
+
+	private int u16(final int p) {
+		return (data.get(p) & 0xFF) << 8 | data.get(p + 1) & 0xFF;
+	}
+
+	private static int extend(final int value, final int size) {
+		return value < 1 << size - 1 ? value - (1 << size) + 1 : value;
+	}
+
+	private static int ceilDiv(final int dividend, final int divisor) {
+		return (dividend + divisor - 1) / divisor;
+	}
+
+	/**
+	 * A Huffman table decoded bit by bit with the maximum code of each length, as in Annex F of the specification.
+	 */
+	private static final class HuffmanTable {
+
+		private final int[] maxCode = new int[17];
+
+		private final int[] valueOffset = new int[17];
+
+		private final byte[] values;
+
+		private HuffmanTable(final int[] counts, final byte[] values) {
+			this.values = values;
+			int code = 0;
+			int index = 0;
+			for (int length = 1; length <= 16; length++) {
+				valueOffset[length] = index - code;
+				code += counts[length];
+				index += counts[length];
+				maxCode[length] = counts[length] == 0 ? -1 : code - 1;
+				code <<= 1;
+			}
+		}
+
+		private int decode(final JpegDcDecoder decoder) throws IOException {
+			int code = decoder.readBit();
+			for (int length = 1; length <= 16; length++) {
+				if (code <= maxCode[length]) {
+					return values[code + valueOffset[length]] & 0xFF;
+				}
+				code = code << 1 | decoder.readBit();
+			}
+			throw new IOException("Invalid Huffman code");
+		}
+	}
+}
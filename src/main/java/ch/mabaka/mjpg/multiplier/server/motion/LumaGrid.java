@@ -0,0 +1,71 @@
+package ch.mabaka.mjpg.multiplier.server.motion;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Mean brightness of the blocks of a picture, one value between 0 and 255 per block of about 8x8 pixels.
+ */
+final class LumaGrid {
+
+	private final int width;
+
+	private final int height;
+
+	private final int columns;
+
+	private final int rows;
+
+	private final float[] luma;
+
+	/**
+	 * @param width width of the picture in pixels
+	 * @param height height of the picture in pixels
+	 * @param luma the brightness of the blocks row by row
+	 */
+	LumaGrid(final int width, final int height, final int columns, final int rows, final float[] luma) {
+		this.width = width;
+		this.height = height;
+		this.columns = columns;
+		this.rows = rows;
+		this.luma = luma;
+	}
+
+	/**
+	 * @param image the picture decoded at a fraction of its size, one pixel per block
+	 * @param width width of the full picture in pixels
+	 * @param height height of the full picture in pixels
+	 */
+	static LumaGrid of(final BufferedImage image, final int width, final int height) {
+		final int columns = image.getWidth();
+		final int rows = image.getHeight();
+		final float[] luma = new float[columns * rows];
+		for (int y = 0; y < rows; y++) {
+			for (int x = 0; x < columns; x++) {
+				final int rgb = image.getRGB(x, y);
+				luma[y * columns + x] = 0.299f * (rgb >> 16 & 0xFF) + 0.587f * (rgb >> 8 & 0xFF)
+						+ 0.114f * (rgb & 0xFF);
+			}
+		}
+		return new LumaGrid(width, height, columns, rows, luma);
+	}
+
+	int getWidth() {
+		return width;
+	}
+
+	int getHeight() {
+		return height;
+	}
+
+	int getColumns() {
+		return columns;
+	}
+
+	int getRows() {
+		return rows;
+	}
+
+	float[] getLuma() {
+		return luma;
+	}
+}
@@ -0,0 +1,345 @@
+package ch.mabaka.mjpg.multiplier.server.motion;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import ch.mabaka.mjpg.multiplier.server.config.MotionProperties;
+import ch.mabaka.mjpg.multiplier.server.input.FrameStage;
+import ch.mabaka.mjpg.multiplier.server.input.StageContext;
+import ch.mabaka.mjpg.multiplier.server.input.StreamMetrics;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Frame stage named {@code motion} detecting motion without decoding the pictures: the brightness of each 8x8 block is
+ * read from the DC coefficients of the JPEG by the {@link JpegDcDecoder}, pictures it cannot read are decoded by
+ * ImageIO at one eighth of their size instead. Each stream keeps a running average of the blocks as its background, a
+ * block differing from it by more than the threshold has changed and the share of changed blocks is the score of the
+ * frame. Frames marked unchanged by the gating are not looked at.
+ * <p>
+ * The stage runs asynchronously and one frame at a time, so it never holds up the ingest, and the processed output
+ * running it bounds the lag by skipping frames once too many are in flight. Events are handed to the listeners on a
+ * thread of their own, a slow client of {@code /api/events} does not hold up the detection either.
+ */
+@Component
+public class MotionDetector implements FrameStage {
+
+	public static final String NAME = "motion";
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(MotionDetector.class);
+
+	private final MotionProperties properties;
+
+	private final MeterRegistry registry;
+
+	private final Map<String, StreamState> streams = new ConcurrentHashMap<>();
+
+	private final List<Consumer<MotionEvent>> listeners = new CopyOnWriteArrayList<>();
+
+	private final ExecutorService notifier = Executors
+			.newSingleThreadExecutor(new CustomizableThreadFactory("mjpg-motion-events-"));
+
+	public MotionDetector(final MotionProperties properties, final MeterRegistry registry) {
+		this.properties = properties;
+		this.registry = registry;
+	}
+
+	@PreDestroy
+	void shutdown() {
+		notifier.shutdownNow();
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public boolean isAsynchronous() {
+		return true;
+	}
+
+	@Override
+	public void process(final StageContext context) throws IOException {
+		final StreamState state = streams.computeIfAbsent(context.getStreamName(), StreamState::new);
+		synchronized (state) {
+			state.process(context);
+		}
+	}
+
+	/**
+	 * @return true while motion is seen on the stream, until the hold time has passed after the last frame showing it
+	 */
+	public boolean isMotion(final String streamName) {
+		final StreamState state = streams.get(streamName);
+		return state != null && state.active;
+	}
+
+	/**
+	 * @param timestampMicros receive time of a frame of the stream, see {@link StageContext#getTimestampMicros()}
+	 * @param receivedNanos {@link System#nanoTime()} the frame was received by this node, which unlike the receive
+	 *            time of a relayed frame is not taken from the clock of another node
+	 * @return true once the detection has looked at the frame or, for a frame skipped under load, at a later one.
+	 *         Frames received longer than the hold time ago count as judged, so a stalled detection does not hold
+	 *         back the viewers.
+	 */
+	public boolean isJudged(final String streamName, final long timestampMicros, final long receivedNanos) {
+		final StreamState state = streams.get(streamName);
+		return state == null || state.judgedMicros >= timestampMicros
+				|| System.nanoTime() - receivedNanos >= properties.getHoldTime().toNanos();
+	}
+
+	/**
+	 * @param timestampMicros receive time of a judged frame of the stream
+	 * @return true if the frame belongs to the latest motion seen on the stream, from the first frame showing it until
+	 *         the hold time has passed after the last one
+	 */
+	public boolean isMotionAt(final String streamName, final long timestampMicros) {
+		final StreamState state = streams.get(streamName);
+		if (state == null) {
+			return false;
+		}
+		final MotionPeriod period = state.period;
+		return period != null && timestampMicros >= period.startMicros && timestampMicros < period.endMicros;
+	}
+
+	/**
+	 * @param listener called with each event on the notification thread, it must not block for long
+	 */
+	public void addListener(final Consumer<MotionEvent> listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(final Consumer<MotionEvent> listener) {
+		listeners.remove(listener);
+	}
+
+	private void publish(final MotionEvent event) {
+		try {
+			notifier.execute(() -> {
+				for (Consumer<MotionEvent> listener : listeners) {
+					try {
+						listener.accept(event);
+					} catch (RuntimeException e) {
+						LOGGER.warn("Motion event listener failed: {}", e.toString());
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// shut down
+		}
+	}
+
+	/**
+	 * Decode the picture at one eighth of its size, for JPEGs the {@link JpegDcDecoder} cannot read.
+	 */
+	private static LumaGrid decodeSubsampled(final ByteBuffer jpeg) throws IOException {
+		final byte[] bytes = new byte[jpeg.remaining()];
+		jpeg.get(bytes);
+		final ImageReader reader = ImageIO.getImageReadersByFormatName("jpeg").next();
+		try (ImageInputStream input = new MemoryCacheImageInputStream(new ByteArrayInputStream(bytes))) {
+			reader.setInput(input, true, true);
+			final ImageReadParam param = reader.getDefaultReadParam();
+			param.setSourceSubsampling(8, 8, 0, 0);
+			final BufferedImage image = reader.read(0, param);
+			return LumaGrid.of(image, reader.getWidth(0), reader.getHeight(0));
+		} finally {
+			reader.dispose();
+		}
+	}
+
+	/**
+	 * The background and the motion state of one stream. Only used while synchronized on it.
+	 */
+	private final class StreamState {
+
+		private final String streamName;
+
+		private final JpegDcDecoder decoder = new JpegDcDecoder();
+
+		private final Timer detectTime;
+
+		private final Counter fallbackDecodes;
+
+		private final Counter events;
+
+		private float[] background;
+
+		private int columns;
+
+		private int rows;
+
+		private volatile boolean active;
+
+		private volatile MotionPeriod period;
+
+		private volatile long judgedMicros;
+
+		private long lastMotionMicros;
+
+		private long lastEventMicros;
+
+		private StreamState(final String streamName) {
+			this.streamName = streamName;
+			detectTime = Timer.builder("mjpg.motion.detect.time")
+					.description("Time to read the blocks of a frame and compare them with the background")
+					.publishPercentiles(StreamMetrics.getPercentiles()).tag("stream", streamName).register(registry);
+			fallbackDecodes = Counter.builder("mjpg.motion.fallback.decodes")
+					.description("Frames decoded by ImageIO because their DC coefficients could not be read")
+					.baseUnit("frames").tag("stream", streamName).register(registry);
+			events = Counter.builder("mjpg.motion.events").description("Motion events sent").baseUnit("events")
+					.tag("stream", streamName).register(registry);
+			Gauge.builder("mjpg.motion.active", this, state -> state.active ? 1 : 0)
+					.description("1 while motion is seen on the stream").tag("stream", streamName).register(registry);
+		}
+
+		private void process(final StageContext context) throws IOException {
+			final long timestamp = context.getTimestampMicros();
+			try {
+				if (context.isUnchanged() && background != null) {
+					still(context, timestamp);
+					return;
+				}
+				final long start = System.nanoTime();
+				LumaGrid grid = decoder.decode(context.getJpeg());
+				if (grid == null) {
+					fallbackDecodes.increment();
+					grid = decodeSubsampled(context.getJpeg());
+				}
+				final boolean moved = compare(context, grid, timestamp);
+				detectTime.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+				if (!moved) {
+					still(context, timestamp);
+				}
+			} finally {
+				// set last, the viewers read the motion state of the frame once it counts as judged
+				judgedMicros = Math.max(judgedMicros, timestamp);
+			}
+		}
+
+		/**
+		 * Compare the blocks with the background and update it.
+		 *
+		 * @return true if the frame shows motion
+		 */
+		private boolean compare(final StageContext context, final LumaGrid grid, final long timestamp) {
+			final float[] luma = grid.getLuma();
+			if (background == null || grid.getColumns() != columns || grid.getRows() != rows) {
+				background = luma.clone();
+				columns = grid.getColumns();
+				rows = grid.getRows();
+				return false;
+			}
+			final float threshold = (float) properties.getThreshold();
+			final float adaptation = (float) properties.getAdaptation();
+			int changed = 0;
+			int left = columns;
+			int top = rows;
+			int right = -1;
+			int bottom = -1;
+			for (int y = 0; y < rows; y++) {
+				for (int x = 0; x < columns; x++) {
+					final int i = y * columns + x;
+					final float difference = luma[i] - background[i];
+					background[i] += adaptation * difference;
+					if (Math.abs(difference) > threshold) {
+						changed++;
+						left = Math.min(left, x);
+						top = Math.min(top, y);
+						right = Math.max(right, x);
+						bottom = Math.max(bottom, y);
+					}
+				}
+			}
+			final double score = (double) changed / luma.length;
+			if (changed == 0 || score < properties.getMinScore()) {
+				return false;
+			}
+			lastMotionMicros = timestamp;
+			final boolean started = !active;
+			if (started || timestamp - lastEventMicros >= properties.getEventInterval().toNanos() / 1000) {
+				if (started) {
+					period = new MotionPeriod(timestamp, Long.MAX_VALUE);
+				}
+				active = true;
+				lastEventMicros = timestamp;
+				final double blockWidth = (double) grid.getWidth() / columns;
+				final double blockHeight = (double) grid.getHeight() / rows;
+				final int x = (int) (left * blockWidth);
+				final int y = (int) (top * blockHeight);
+				final MotionEvent.Region region = new MotionEvent.Region(x, y,
+						Math.min(grid.getWidth(), (int) Math.ceil((right + 1) * blockWidth)) - x,
+						Math.min(grid.getHeight(), (int) Math.ceil((bottom + 1) * blockHeight)) - y);
+				if (started) {
+					LOGGER.info("Motion on stream {} in {}x{} at {},{}", streamName, region.getWidth(),
+							region.getHeight(), region.getX(), region.getY());
+				}
+				send(new MotionEvent(streamName, toInstant(timestamp), context.getSequence(), true, score, region));
+			}
+			return true;
+		}
+
+		/**
+		 * End the motion once the hold time has passed without motion.
+		 */
+		private void still(final StageContext context, final long timestamp) {
+			if (active && timestamp - lastMotionMicros >= properties.getHoldTime().toNanos() / 1000) {
+				active = false;
+				period = new MotionPeriod(period.startMicros, timestamp);
+				lastEventMicros = timestamp;
+				LOGGER.info("Motion on stream {} has ended", streamName);
+				send(new MotionEvent(streamName, toInstant(timestamp), context.getSequence(), false, 0, null));
+			}
+		}
+
+		private void send(final MotionEvent event) {
+			events.increment();
+			publish(event);
+		}
+	}
+
+	/**
+	 * Receive times of the first frame showing motion and of the frame ending it, for the viewers watching only motion.
+	 */
+	private static final class MotionPeriod {
+
+		private final long startMicros;
+
+		private final long endMicros;
+
+		private MotionPeriod(final long startMicros, final long endMicros) {
+			this.startMicros = startMicros;
+			this.endMicros = endMicros;
+		}
+	}
+
+	private static Instant toInstant(final long micros) {
+		return Instant.ofEpochSecond(micros / 1_000_000, micros % 1_000_000 * 1000);
+	}
+}
@@ -0,0 +1,105 @@
+package ch.mabaka.mjpg.multiplier.server.motion;
+
+import java.time.Instant;
+
+/**
+ * Motion seen on a stream, sent to the clients of {@code /api/events}. An event is sent when motion starts, every
+ * event interval while it goes on, and once more without a region when it has ended.
+ */
+public final class MotionEvent {
+
+	private final String stream;
+
+	private final Instant timestamp;
+
+	private final long sequence;
+
+	private final boolean active;
+
+	private final double score;
+
+	private final Region region;
+
+	MotionEvent(final String stream, final Instant timestamp, final long sequence, final boolean active,
+			final double score, final Region region) {
+		this.stream = stream;
+		this.timestamp = timestamp;
+		this.sequence = sequence;
+		this.active = active;
+		this.score = score;
+		this.region = region;
+	}
+
+	public String getStream() {
+		return stream;
+	}
+
+	/**
+	 * @return time the frame was received
+	 */
+	public Instant getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * @return sequence number of the frame in the stream of the camera
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * @return false for the event telling the motion has ended
+	 */
+	public boolean isActive() {
+		return active;
+	}
+
+	/**
+	 * @return share of the picture which has changed, between 0 and 1
+	 */
+	public double getScore() {
+		return score;
+	}
+
+	/**
+	 * @return bounding box of the changed blocks in pixels, null once the motion has ended
+	 */
+	public Region getRegion() {
+		return region;
+	}
+
+	public static final class Region {
+
+		private final int x;
+
+		private final int y;
+
+		private final int width;
+
+		private final int height;
+
+		Region(final int x, final int y, final int width, final int height) {
+			this.x = x;
+			this.y = y;
+			this.width = width;
+			this.height = height;
+		}
+
+		public int getX() {
+			return x;
+		}
+
+		public int getY() {
+			return y;
+		}
+
+		public int getWidth() {
+			return width;
+		}
+
+		public int getHeight() {
+			return height;
+		}
+	}
+}
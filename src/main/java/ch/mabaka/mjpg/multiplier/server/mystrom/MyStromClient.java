@@ -10,15 +10,11 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.beans.factory.annotation.Value;
-import org.springframework.scheduling.annotation.Scheduled;
-import org.springframework.stereotype.Component;
 
 /**
  * Simple wrapper for myStrom switch REST API used to read relay state and send power-cycle.
- * Polls the device every minute and logs state.
+ * One instance exists per switch; the stream registry polls each of them every minute and logs state.
  */
-@Component
 public class MyStromClient {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(MyStromClient.class);
@@ -33,11 +29,7 @@ public class MyStromClient {
     private final String actionPath;
     private final String setRelayPath;
 
-    public MyStromClient(
-            @Value("${mystrom.baseUrl:http://192.168.5.134}") String baseUrl,
-            @Value("${mystrom.statePath:/report}") String statePath,
-            @Value("${mystrom.actionPath:/power_cycle?time=10}") String actionPath,
-            @Value("${mystrom.setRelayPath:/relay}") String setRelayPath) {
+    public MyStromClient(String baseUrl, String statePath, String actionPath, String setRelayPath) {
         this.httpClient = HttpClient.newBuilder()
                 .connectTimeout(Duration.ofSeconds(5))
                 .build();
@@ -48,8 +40,6 @@ public class MyStromClient {
         LOGGER.info("MyStromClient configured for {}", baseUrl);
     }
 
-    // Poll every minute
-    @Scheduled(fixedDelayString = "PT1M")
     public void pollRelayState() {
         try {
             boolean relay = getRelayStateInternal();
@@ -0,0 +1,342 @@
+package ch.mabaka.mjpg.multiplier.server.recording;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import ch.mabaka.mjpg.multiplier.server.config.RecordingProperties;
+import ch.mabaka.mjpg.multiplier.server.input.FrameFanOut;
+import ch.mabaka.mjpg.multiplier.server.input.FrameSubscription;
+import ch.mabaka.mjpg.multiplier.server.input.SlowConsumerPolicy;
+import ch.mabaka.mjpg.multiplier.server.input.data.Frame;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Records the frames of one stream into {@link RecordingSegment}s on disk.
+ * <p>
+ * The recorder is a subscriber of the stream like any viewer and writes on a thread of its own, so a slow disk never
+ * holds up the ingest or the other viewers: if the recorder falls behind by the whole ring buffer it skips to the
+ * latest frame, leaving a gap in the recording. The frames are copied into a memory-mapped segment file of a fixed
+ * size, which is forced to disk together with the index every sync interval. Once a segment is full it is cut to its
+ * used length and the next one is started, after which the oldest segments beyond the retention limits are deleted.
+ * <p>
+ * The index is appended whenever the recorder has caught up with the stream, so the segment being recorded can be
+ * played back as well.
+ */
+public class FrameRecorder {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(FrameRecorder.class);
+
+	private static final int INDEX_BUFFER_ENTRIES = 256;
+
+	private static final long RETENTION_CHECK_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+	private final String streamName;
+
+	private final FrameFanOut fanOut;
+
+	private final Path directory;
+
+	private final long segmentSize;
+
+	private final long maxBytes;
+
+	private final Duration maxAge;
+
+	private final Duration syncInterval;
+
+	private final ExecutorService executorService;
+
+	private final Semaphore frameSignal = new Semaphore(0);
+
+	private final Runnable frameCallback = frameSignal::release;
+
+	private final Counter recordedFrames;
+
+	private final Counter recordedBytes;
+
+	private final Timer syncTime;
+
+	private final ByteBuffer indexBuffer = ByteBuffer
+			.allocate(INDEX_BUFFER_ENTRIES * RecordingSegment.INDEX_ENTRY_SIZE);
+
+	private volatile boolean running;
+
+	private volatile FrameSubscription subscription;
+
+	private volatile long diskBytes;
+
+	private RecordingSegment segment;
+
+	private FileChannel segmentChannel;
+
+	private MappedByteBuffer segmentBuffer;
+
+	private FileChannel indexChannel;
+
+	private long lastSyncNanos;
+
+	private long lastRetentionCheckNanos;
+
+	public FrameRecorder(final String streamName, final FrameFanOut fanOut,
+			final RecordingProperties properties, final MeterRegistry registry) {
+		this.streamName = streamName;
+		this.fanOut = fanOut;
+		this.directory = Path.of(properties.getDirectory(), streamName);
+		this.segmentSize = Math.min(Integer.MAX_VALUE, properties.getSegmentSize().toBytes());
+		this.maxBytes = properties.getMaxBytes().toBytes();
+		this.maxAge = properties.getMaxAge();
+		this.syncInterval = properties.getSyncInterval();
+		this.executorService = Executors
+				.newSingleThreadExecutor(new CustomizableThreadFactory("mjpg-recorder-" + streamName + "-"));
+
+		recordedFrames = Counter.builder("mjpg.recording.frames").description("Frames written to the recording")
+				.baseUnit("frames").tag("stream", streamName).register(registry);
+		recordedBytes = Counter.builder("mjpg.recording.bytes").description("Bytes written to the recording")
+				.baseUnit("bytes").tag("stream", streamName).register(registry);
+		syncTime = Timer.builder("mjpg.recording.sync.time")
+				.description("Time to force the recorded frames to disk").tag("stream", streamName)
+				.register(registry);
+		FunctionCounter.builder("mjpg.recording.skipped", this, FrameRecorder::getSkippedFrames)
+				.description("Frames missing in the recording because the recorder fell behind").baseUnit("frames")
+				.tag("stream", streamName).register(registry);
+		Gauge.builder("mjpg.recording.disk.usage", this, FrameRecorder::getDiskBytes)
+				.description("Size of the recorded segments on disk").baseUnit("bytes").tag("stream", streamName)
+				.register(registry);
+	}
+
+	public void start() throws IOException {
+		Files.createDirectories(directory);
+		for (RecordingSegment existing : RecordingSegment.list(directory)) {
+			existing.recover();
+		}
+		applyRetention();
+		// never disconnected for being slow, the recorder skips frames instead
+		final FrameSubscription recorderSubscription = fanOut.subscribe(SlowConsumerPolicy.DEFAULT);
+		recorderSubscription.setClient("recorder");
+		subscription = recorderSubscription;
+		running = true;
+		executorService.submit(this::record);
+		LOGGER.info("Recording stream {} to {}", streamName, directory.toAbsolutePath());
+	}
+
+	public void stop() {
+		running = false;
+		frameSignal.release();
+		executorService.shutdown();
+		try {
+			if (!executorService.awaitTermination(5, TimeUnit.SECONDS)) {
+				executorService.shutdownNow();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		final FrameSubscription recorderSubscription = subscription;
+		if (recorderSubscription != null) {
+			fanOut.unsubscribe(recorderSubscription);
+		}
+	}
+
+	/**
+	 * Play back the frames recorded in the given period, see {@link RecordingPlayer}.
+	 *
+	 * @return number of frames written
+	 */
+	public long play(final long fromMicros, final long toMicros, final double speed,
+			final RecordingPlayer.PartWriter writer) throws IOException, InterruptedException {
+		return new RecordingPlayer(directory).play(fromMicros, toMicros, speed, writer);
+	}
+
+	/**
+	 * @return frames not recorded because the recorder fell behind
+	 */
+	public long getSkippedFrames() {
+		final FrameSubscription recorderSubscription = subscription;
+		return recorderSubscription == null ? 0 : recorderSubscription.getSkippedFrames();
+	}
+
+	/**
+	 * @return size of the segments on disk as of the last retention check
+	 */
+	public long getDiskBytes() {
+		return diskBytes;
+	}
+
+	private void record() {
+		lastSyncNanos = System.nanoTime();
+		lastRetentionCheckNanos = lastSyncNanos;
+		try {
+			while (running) {
+				try {
+					recordAvailableFrames();
+				} catch (IOException e) {
+					LOGGER.error("Recording stream {} failed: {}; retrying in {}", streamName, e.toString(),
+							syncInterval);
+					closeSegment();
+					Thread.sleep(syncInterval.toMillis());
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			closeSegment();
+		}
+	}
+
+	private void recordAvailableFrames() throws IOException, InterruptedException {
+		Frame frame;
+		while (running && (frame = subscription.poll()) != null) {
+			try {
+				write(frame);
+			} finally {
+				frame.release();
+			}
+			syncIfDue();
+		}
+		// caught up, make the recorded frames visible to playback and wait
+		flushIndex();
+		syncIfDue();
+		subscription.onNextFrame(frameCallback);
+		if (!frameSignal.tryAcquire(syncInterval.toMillis(), TimeUnit.MILLISECONDS)) {
+			fanOut.cancelOnPublish(frameCallback);
+		}
+	}
+
+	private void write(final Frame frame) throws IOException {
+		final ByteBuffer part = frame.getPart();
+		final int length = part.remaining();
+		if (length > segmentSize) {
+			LOGGER.warn("Frame {} of stream {} is larger than a recording segment; not recorded", frame.getSequence(),
+					streamName);
+			return;
+		}
+		if (segmentBuffer == null || segmentBuffer.remaining() < length) {
+			startSegment(frame.getTimestampMicros());
+		}
+		final int offset = segmentBuffer.position();
+		segmentBuffer.put(part);
+		indexBuffer.putLong(frame.getTimestampMicros()).putInt(offset).putInt(length);
+		if (!indexBuffer.hasRemaining()) {
+			flushIndex();
+		}
+		recordedFrames.increment();
+		recordedBytes.increment(length);
+	}
+
+	private void startSegment(final long startMicros) throws IOException {
+		closeSegment();
+		segment = new RecordingSegment(directory, startMicros);
+		segmentChannel = FileChannel.open(segment.getSegmentFile(), StandardOpenOption.CREATE_NEW,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		segmentBuffer = segmentChannel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+		indexChannel = FileChannel.open(segment.getIndexFile(), StandardOpenOption.CREATE_NEW,
+				StandardOpenOption.WRITE);
+		applyRetention();
+	}
+
+	/**
+	 * Force the segment to disk and cut it to its used length.
+	 */
+	private void closeSegment() {
+		if (segment == null) {
+			return;
+		}
+		try {
+			sync();
+			segmentChannel.truncate(segmentBuffer.position());
+		} catch (IOException e) {
+			LOGGER.error("Closing recording segment {} failed: {}", segment.getSegmentFile(), e.toString());
+		} finally {
+			closeQuietly(segmentChannel);
+			closeQuietly(indexChannel);
+			segment = null;
+			segmentBuffer = null;
+		}
+	}
+
+	private void flushIndex() throws IOException {
+		if (indexChannel == null || indexBuffer.position() == 0) {
+			return;
+		}
+		indexBuffer.flip();
+		while (indexBuffer.hasRemaining()) {
+			indexChannel.write(indexBuffer);
+		}
+		indexBuffer.clear();
+	}
+
+	private void syncIfDue() throws IOException {
+		final long now = System.nanoTime();
+		if (now - lastSyncNanos >= syncInterval.toNanos()) {
+			sync();
+			lastSyncNanos = now;
+		}
+		if (now - lastRetentionCheckNanos >= RETENTION_CHECK_INTERVAL_NANOS) {
+			applyRetention();
+			lastRetentionCheckNanos = now;
+		}
+	}
+
+	private void sync() throws IOException {
+		if (segment == null) {
+			return;
+		}
+		final long start = System.nanoTime();
+		flushIndex();
+		segmentBuffer.force();
+		indexChannel.force(false);
+		syncTime.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Delete the oldest segments while the recording exceeds the size limit or they are older than the maximum age.
+	 * The segment being recorded is kept.
+	 */
+	private void applyRetention() throws IOException {
+		final List<RecordingSegment> segments = RecordingSegment.list(directory);
+		long total = 0;
+		for (RecordingSegment existing : segments) {
+			total += existing.getSize();
+		}
+		final long oldestAllowedMillis = System.currentTimeMillis() - maxAge.toMillis();
+		for (RecordingSegment existing : segments) {
+			if (segment != null && existing.getStartMicros() == segment.getStartMicros()
+					|| total <= maxBytes && existing.getLastModifiedMillis() >= oldestAllowedMillis) {
+				break;
+			}
+			total -= existing.getSize();
+			existing.delete();
+			LOGGER.info("Deleted recording segment {} of stream {}", existing.getSegmentFile().getFileName(),
+					streamName);
+		}
+		diskBytes = total;
+	}
+
+	private static void closeQuietly(final FileChannel channel) {
+		try {
+			if (channel != null) {
+				channel.close();
+			}
+		} catch (IOException e) {
+			// nothing left to save
+		}
+	}
+}
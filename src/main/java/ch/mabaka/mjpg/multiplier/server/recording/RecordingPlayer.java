@@ -0,0 +1,89 @@
+package ch.mabaka.mjpg.multiplier.server.recording;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plays back the frames of a recording. The segments covering the period are found by their start time and the first
+ * frame by a binary search in the index. Each segment is mapped read only and the parts are handed to the writer as
+ * slices of the mapping, so they go from the page cache to the socket without being decoded or copied on the heap.
+ * <p>
+ * The frames are played with their recorded timing, sped up by the given factor. Gaps in the recording, e.g. while
+ * the camera was offline, are shortened to {@value #MAX_GAP_MILLIS} ms.
+ */
+public class RecordingPlayer {
+
+	private static final long MAX_GAP_MILLIS = 1000;
+
+	/**
+	 * Receives the multipart parts of the played frames.
+	 */
+	public interface PartWriter {
+		void write(ByteBuffer part) throws IOException;
+	}
+
+	private final Path directory;
+
+	RecordingPlayer(final Path directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * @param fromMicros receive time of the first frame, in microseconds since the epoch
+	 * @param toMicros receive time of the last frame
+	 * @param speed factor by which the playback is faster than the original, at least 1
+	 * @return number of frames written
+	 */
+	long play(final long fromMicros, final long toMicros, final double speed, final PartWriter writer)
+			throws IOException, InterruptedException {
+		final List<RecordingSegment> segments = RecordingSegment.list(directory);
+		final long playbackStart = System.nanoTime();
+		long playbackNanos = 0;
+		long previousMicros = -1;
+		long frames = 0;
+		for (int i = 0; i < segments.size(); i++) {
+			final RecordingSegment segment = segments.get(i);
+			if (segment.getStartMicros() > toMicros) {
+				break;
+			}
+			if (i + 1 < segments.size() && segments.get(i + 1).getStartMicros() <= fromMicros) {
+				continue;
+			}
+			final RecordingSegment.Index index = segment.readIndex();
+			int entry = index.firstAtOrAfter(fromMicros);
+			if (entry >= index.size()) {
+				continue;
+			}
+			final MappedByteBuffer mapped;
+			try (FileChannel channel = FileChannel.open(segment.getSegmentFile(), StandardOpenOption.READ)) {
+				mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, index.getEnd());
+			} catch (NoSuchFileException e) {
+				// deleted by the retention in between
+				continue;
+			}
+			for (; entry < index.size() && index.getTimestampMicros(entry) <= toMicros; entry++) {
+				final long micros = index.getTimestampMicros(entry);
+				if (previousMicros >= 0) {
+					final long gapNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(0, micros - previousMicros));
+					playbackNanos += (long) (Math.min(gapNanos, TimeUnit.MILLISECONDS.toNanos(MAX_GAP_MILLIS))
+							/ speed);
+				}
+				previousMicros = micros;
+				final long wait = playbackStart + playbackNanos - System.nanoTime();
+				if (wait > 0) {
+					TimeUnit.NANOSECONDS.sleep(wait);
+				}
+				writer.write(mapped.slice(index.getOffset(entry), index.getLength(entry)));
+				frames++;
+			}
+		}
+		return frames;
+	}
+}
@@ -0,0 +1,178 @@
+package ch.mabaka.mjpg.multiplier.server.recording;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * A segment of a recording on disk. The segment file holds the multipart parts of the frames back to back, exactly as
+ * they are sent to the viewers, so they can be played back without any processing. The index file next to it has one
+ * entry of {@value #INDEX_ENTRY_SIZE} bytes per frame: the receive time in microseconds since the epoch, the offset
+ * and the length of the part in the segment file. Both files are named after the receive time of the first frame.
+ */
+final class RecordingSegment {
+
+	static final String SEGMENT_SUFFIX = ".mjpg";
+
+	static final String INDEX_SUFFIX = ".idx";
+
+	static final int INDEX_ENTRY_SIZE = 16;
+
+	private final long startMicros;
+
+	private final Path segmentFile;
+
+	private final Path indexFile;
+
+	RecordingSegment(final Path directory, final long startMicros) {
+		this.startMicros = startMicros;
+		this.segmentFile = directory.resolve(startMicros + SEGMENT_SUFFIX);
+		this.indexFile = directory.resolve(startMicros + INDEX_SUFFIX);
+	}
+
+	/**
+	 * @return the segments in the directory, oldest first
+	 */
+	static List<RecordingSegment> list(final Path directory) throws IOException {
+		final List<RecordingSegment> segments = new ArrayList<>();
+		try (Stream<Path> files = Files.list(directory)) {
+			files.map(file -> file.getFileName().toString())
+					.filter(name -> name.endsWith(SEGMENT_SUFFIX)
+							&& name.substring(0, name.length() - SEGMENT_SUFFIX.length()).matches("\\d+"))
+					.forEach(name -> segments.add(new RecordingSegment(directory,
+							Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())))));
+		}
+		segments.sort(Comparator.comparingLong(RecordingSegment::getStartMicros));
+		return segments;
+	}
+
+	long getStartMicros() {
+		return startMicros;
+	}
+
+	Path getSegmentFile() {
+		return segmentFile;
+	}
+
+	Path getIndexFile() {
+		return indexFile;
+	}
+
+	/**
+	 * @return size of the segment and its index on disk
+	 */
+	long getSize() throws IOException {
+		return sizeOf(segmentFile) + sizeOf(indexFile);
+	}
+
+	long getLastModifiedMillis() throws IOException {
+		return Files.getLastModifiedTime(segmentFile).toMillis();
+	}
+
+	/**
+	 * Read the complete entries of the index, a segment being recorded may have a partially written last entry.
+	 */
+	Index readIndex() throws IOException {
+		if (!Files.exists(indexFile)) {
+			return new Index(0);
+		}
+		final ByteBuffer entries = ByteBuffer.wrap(Files.readAllBytes(indexFile));
+		final Index index = new Index(entries.remaining() / INDEX_ENTRY_SIZE);
+		for (int i = 0; i < index.size(); i++) {
+			index.timestamps[i] = entries.getLong();
+			index.offsets[i] = entries.getInt();
+			index.lengths[i] = entries.getInt();
+		}
+		return index;
+	}
+
+	/**
+	 * Cut off what is not covered by the index, e.g. the unused end of a segment which was being recorded when the
+	 * server stopped.
+	 */
+	void recover() throws IOException {
+		final Index index = readIndex();
+		if (Files.exists(indexFile)) {
+			try (FileChannel indexChannel = FileChannel.open(indexFile, StandardOpenOption.WRITE)) {
+				indexChannel.truncate((long) index.size() * INDEX_ENTRY_SIZE);
+			}
+		}
+		try (FileChannel segment = FileChannel.open(segmentFile, StandardOpenOption.WRITE)) {
+			segment.truncate(index.getEnd());
+		}
+	}
+
+	void delete() throws IOException {
+		Files.deleteIfExists(indexFile);
+		Files.deleteIfExists(segmentFile);
+	}
+
+	private static long sizeOf(final Path file) throws IOException {
+		return Files.exists(file) ? Files.size(file) : 0;
+	}
+
+	/**
+	 * The frames of a segment in the order they were recorded.
+	 */
+	static final class Index {
+
+		private final long[] timestamps;
+
+		private final int[] offsets;
+
+		private final int[] lengths;
+
+		private Index(final int size) {
+			timestamps = new long[size];
+			offsets = new int[size];
+			lengths = new int[size];
+		}
+
+		int size() {
+			return timestamps.length;
+		}
+
+		long getTimestampMicros(final int entry) {
+			return timestamps[entry];
+		}
+
+		int getOffset(final int entry) {
+			return offsets[entry];
+		}
+
+		int getLength(final int entry) {
+			return lengths[entry];
+		}
+
+		/**
+		 * @return end of the last frame in the segment file
+		 */
+		long getEnd() {
+			return size() == 0 ? 0 : (long) offsets[size() - 1] + lengths[size() - 1];
+		}
+
+		/**
+		 * @return the first entry received at or after the given time, {@link #size()} if there is none
+		 */
+		int firstAtOrAfter(final long micros) {
+			int low = 0;
+			int high = size();
+			while (low < high) {
+				final int middle = (low + high) >>> 1;
+				if (timestamps[middle] < micros) {
+					low = middle + 1;
+				} else {
+					high = middle;
+				}
+			}
+			return low;
+		}
+	}
+}
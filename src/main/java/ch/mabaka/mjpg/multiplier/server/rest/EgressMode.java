@@ -0,0 +1,16 @@
+package ch.mabaka.mjpg.multiplier.server.rest;
+
+/**
+ * How frames are written to the viewers of the multipart stream.
+ */
+public enum EgressMode {
+	/**
+	 * Every viewer holds a servlet async thread which blocks while waiting for the next frame.
+	 */
+	BLOCKING,
+	/**
+	 * Viewers use servlet non-blocking I/O. A viewer only occupies a container thread while a frame is being handed to
+	 * the socket, waiting for frames and for write readiness holds no thread.
+	 */
+	NON_BLOCKING
+}
@@ -0,0 +1,154 @@
+package ch.mabaka.mjpg.multiplier.server.rest;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+
+import ch.mabaka.mjpg.multiplier.server.input.FrameFanOut;
+import ch.mabaka.mjpg.multiplier.server.input.FrameSnapshot;
+import ch.mabaka.mjpg.multiplier.server.input.data.Frame;
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * A single long-poll request waiting for the next frame.
+ * <p>
+ * The request is parked in asynchronous mode without holding a thread. A one shot callback on the ring buffer wakes it
+ * when the awaited frame has been published, the latest frame is then written on a container thread. If no frame
+ * arrives before the timeout the request is answered with 204 No Content, if the stream is shut down in between with
+ * 503 Service Unavailable.
+ */
+class FrameLongPoll implements AsyncListener {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(FrameLongPoll.class);
+
+	private final AsyncContext asyncContext;
+
+	private final FrameFanOut fanOut;
+
+	private final Runnable wakeUp = this::onFramePublished;
+
+	private final AtomicBoolean done = new AtomicBoolean();
+
+	private long awaitedSequence;
+
+	FrameLongPoll(final AsyncContext asyncContext, final FrameFanOut fanOut) {
+		this.asyncContext = asyncContext;
+		this.fanOut = fanOut;
+	}
+
+	/**
+	 * @param sequence sequence of the awaited frame
+	 */
+	void start(final long sequence, final long timeoutMillis) {
+		awaitedSequence = sequence;
+		asyncContext.setTimeout(timeoutMillis);
+		asyncContext.addListener(this);
+		fanOut.onPublish(sequence, wakeUp);
+	}
+
+	/**
+	 * Write the frame of the snapshot as a single JPEG response.
+	 */
+	static void writeFrame(final FrameSnapshot snapshot, final HttpServletResponse response) throws IOException {
+		final ByteBuffer jpeg = snapshot.getFrame().getJpeg();
+		response.setContentType(MediaType.IMAGE_JPEG_VALUE);
+		response.setContentLength(jpeg.remaining());
+		response.setHeader(HttpHeaders.CACHE_CONTROL, "no-store");
+		response.setHeader(Frame.SEQUENCE_HEADER, Long.toString(snapshot.getSequence()));
+		response.setHeader(Frame.TIMESTAMP_HEADER, snapshot.getFrame().formatTimestamp());
+		new FrameWriter(response.getOutputStream()).write(jpeg);
+	}
+
+	@Override
+	public void onTimeout(final AsyncEvent event) {
+		if (done.compareAndSet(false, true)) {
+			fanOut.cancelOnPublish(wakeUp);
+			((HttpServletResponse) asyncContext.getResponse()).setStatus(HttpServletResponse.SC_NO_CONTENT);
+			asyncContext.complete();
+		}
+	}
+
+	@Override
+	public void onError(final AsyncEvent event) {
+		if (done.compareAndSet(false, true)) {
+			fanOut.cancelOnPublish(wakeUp);
+		}
+		complete();
+	}
+
+	@Override
+	public void onComplete(final AsyncEvent event) {
+		// nothing to do
+	}
+
+	@Override
+	public void onStartAsync(final AsyncEvent event) {
+		// nothing to do
+	}
+
+	private void onFramePublished() {
+		if (done.get()) {
+			return;
+		}
+		try {
+			// hand off, the callback runs on the notification thread shared by all viewers
+			asyncContext.start(this::send);
+		} catch (IllegalStateException e) {
+			// timed out in between
+		}
+	}
+
+	private void send() {
+		if (done.get()) {
+			return;
+		}
+		final FrameSnapshot snapshot = fanOut.acquireSnapshot();
+		if (snapshot != null && snapshot.getSequence() < awaitedSequence) {
+			// not in the snapshot yet, wait for the frame again without giving up the timeout
+			snapshot.getFrame().release();
+			fanOut.onPublish(awaitedSequence, wakeUp);
+			if (done.get()) {
+				// timed out while registering
+				fanOut.cancelOnPublish(wakeUp);
+			}
+			return;
+		}
+		if (!done.compareAndSet(false, true)) {
+			if (snapshot != null) {
+				snapshot.getFrame().release();
+			}
+			return;
+		}
+		final HttpServletResponse response = (HttpServletResponse) asyncContext.getResponse();
+		if (snapshot == null) {
+			// the stream has been shut down in between
+			response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			complete();
+			return;
+		}
+		try {
+			writeFrame(snapshot, response);
+		} catch (IOException e) {
+			LOGGER.debug("Sending frame to long-poll client failed: {}", e.toString());
+		} finally {
+			snapshot.getFrame().release();
+			complete();
+		}
+	}
+
+	private void complete() {
+		try {
+			asyncContext.complete();
+		} catch (IllegalStateException e) {
+			// already completed
+		}
+	}
+}
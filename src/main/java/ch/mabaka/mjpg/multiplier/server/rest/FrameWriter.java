@@ -0,0 +1,38 @@
+package ch.mabaka.mjpg.multiplier.server.rest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import org.apache.catalina.connector.CoyoteOutputStream;
+
+/**
+ * Writes the direct buffers of the frames to a response stream, always with a single write call so it can be used
+ * for non-blocking output as well.
+ * <p>
+ * Tomcat's output stream accepts a {@link ByteBuffer} and copies it straight into its socket buffer. Any other stream
+ * gets the data through a transfer array which is reused for all frames of the viewer.
+ */
+class FrameWriter {
+
+	private final OutputStream outputStream;
+
+	private byte[] transferBuffer;
+
+	FrameWriter(final OutputStream outputStream) {
+		this.outputStream = outputStream;
+	}
+
+	void write(final ByteBuffer buffer) throws IOException {
+		if (outputStream instanceof CoyoteOutputStream coyoteOutputStream) {
+			coyoteOutputStream.write(buffer);
+			return;
+		}
+		final int length = buffer.remaining();
+		if (transferBuffer == null || transferBuffer.length < length) {
+			transferBuffer = new byte[length];
+		}
+		buffer.get(transferBuffer, 0, length);
+		outputStream.write(transferBuffer, 0, length);
+	}
+}
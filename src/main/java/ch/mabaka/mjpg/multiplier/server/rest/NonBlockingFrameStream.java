@@ -0,0 +1,170 @@
+package ch.mabaka.mjpg.multiplier.server.rest;
+
+import java.io.IOException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ch.mabaka.mjpg.multiplier.server.input.FrameFanOut;
+import ch.mabaka.mjpg.multiplier.server.input.FrameSubscription;
+import ch.mabaka.mjpg.multiplier.server.input.data.Frame;
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+
+/**
+ * Streams the frames of one viewer with servlet non-blocking I/O.
+ * <p>
+ * Frames are written while the output stream is ready. When the socket cannot take more data the container calls
+ * {@link #onWritePossible()} later, when the viewer has caught up with the ingest a callback on the ring buffer resumes
+ * writing once the next frame is published, and a viewer with a frame rate limit is resumed by the scheduler when its
+ * next frame is due. In all cases no thread is held while waiting. Resumption may happen on different threads, the
+ * work-in-progress counter makes sure only one of them writes at a time.
+ */
+class NonBlockingFrameStream implements WriteListener, AsyncListener {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(NonBlockingFrameStream.class);
+
+	private final AsyncContext asyncContext;
+
+	private final ServletOutputStream outputStream;
+
+	private final FrameWriter frameWriter;
+
+	private final FrameFanOut fanOut;
+
+	private final FrameSubscription subscription;
+
+	private final ScheduledExecutorService scheduler;
+
+	private final AtomicInteger workInProgress = new AtomicInteger();
+
+	private final AtomicBoolean closed = new AtomicBoolean();
+
+	private boolean flushPending;
+
+	NonBlockingFrameStream(final AsyncContext asyncContext, final ServletOutputStream outputStream,
+			final FrameFanOut fanOut, final FrameSubscription subscription,
+			final ScheduledExecutorService scheduler) {
+		this.asyncContext = asyncContext;
+		this.outputStream = outputStream;
+		this.frameWriter = new FrameWriter(outputStream);
+		this.fanOut = fanOut;
+		this.subscription = subscription;
+		this.scheduler = scheduler;
+	}
+
+	void start() {
+		asyncContext.addListener(this);
+		subscription.setEvictionListener(this::onEvicted);
+		// the container calls onWritePossible as soon as the listener is registered
+		outputStream.setWriteListener(this);
+	}
+
+	@Override
+	public void onWritePossible() {
+		drain();
+	}
+
+	@Override
+	public void onError(final Throwable throwable) {
+		LOGGER.debug("Non-blocking stream failed: {}", throwable.toString());
+		close();
+	}
+
+	@Override
+	public void onComplete(final AsyncEvent event) {
+		close();
+	}
+
+	@Override
+	public void onTimeout(final AsyncEvent event) {
+		close();
+	}
+
+	@Override
+	public void onError(final AsyncEvent event) {
+		close();
+	}
+
+	@Override
+	public void onStartAsync(final AsyncEvent event) {
+		// nothing to do
+	}
+
+	private void onEvicted() {
+		LOGGER.info("Disconnecting slow viewer {}: {}", subscription.getClient(), subscription.getEvictionReason());
+		close();
+	}
+
+	private void resume() {
+		if (!closed.get()) {
+			asyncContext.start(this::drain);
+		}
+	}
+
+	private void drain() {
+		if (workInProgress.getAndIncrement() != 0) {
+			return;
+		}
+		int missed = 1;
+		do {
+			try {
+				writeAvailableFrames();
+			} catch (IOException | RuntimeException e) {
+				LOGGER.debug("Writing to viewer failed: {}", e.toString());
+				close();
+			}
+			missed = workInProgress.addAndGet(-missed);
+		} while (missed != 0);
+	}
+
+	private void writeAvailableFrames() throws IOException {
+		while (!closed.get() && outputStream.isReady()) {
+			if (flushPending) {
+				flushPending = false;
+				outputStream.flush();
+				continue;
+			}
+			final Frame frame = subscription.poll();
+			if (frame == null) {
+				if (subscription.isEvicted()) {
+					onEvicted();
+					return;
+				}
+				final long nanosUntilDue = subscription.getNanosUntilDue();
+				if (nanosUntilDue > 0) {
+					scheduler.schedule(this::resume, nanosUntilDue, TimeUnit.NANOSECONDS);
+				} else {
+					subscription.onNextFrame(this::resume);
+				}
+				return;
+			}
+			try {
+				frameWriter.write(frame.getPart());
+				subscription.recordWritten(frame);
+			} finally {
+				frame.release();
+			}
+			flushPending = true;
+		}
+	}
+
+	private void close() {
+		if (closed.compareAndSet(false, true)) {
+			fanOut.unsubscribe(subscription);
+		}
+		// complete on every error notification, otherwise the container dispatches to the error page
+		try {
+			asyncContext.complete();
+		} catch (IllegalStateException e) {
+			// already completed
+		}
+	}
+}
@@ -2,94 +2,702 @@ package ch.mabaka.mjpg.multiplier.server.rest;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.TaskRejectedException;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
-import ch.mabaka.mjpg.multiplier.server.input.ImageQueueHolderComponent;
-import ch.mabaka.mjpg.multiplier.server.input.MjpegInputStreamReaderComponent;
+import ch.mabaka.mjpg.multiplier.server.config.AsyncConfig;
+import ch.mabaka.mjpg.multiplier.server.config.GatingProperties;
+import ch.mabaka.mjpg.multiplier.server.config.MotionProperties;
+import ch.mabaka.mjpg.multiplier.server.input.FrameFanOut;
+import ch.mabaka.mjpg.multiplier.server.input.FrameFilter;
+import ch.mabaka.mjpg.multiplier.server.input.FrameSnapshot;
+import ch.mabaka.mjpg.multiplier.server.input.FrameSubscription;
+import ch.mabaka.mjpg.multiplier.server.input.ReplayBuffer;
+import ch.mabaka.mjpg.multiplier.server.input.StreamPipeline;
+import ch.mabaka.mjpg.multiplier.server.input.StreamRegistry;
+import ch.mabaka.mjpg.multiplier.server.input.ProcessedStream;
+import ch.mabaka.mjpg.multiplier.server.input.TranscodedStream;
+import ch.mabaka.mjpg.multiplier.server.input.data.Frame;
+import ch.mabaka.mjpg.multiplier.server.motion.MotionDetector;
+import ch.mabaka.mjpg.multiplier.server.motion.MotionEvent;
+import ch.mabaka.mjpg.multiplier.server.recording.FrameRecorder;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 
 @RestController
 @RequestMapping("/api")
 public class StreamController {
 
 	public static final MediaType MULTIPART_X_MIXED_REPLACE = new MediaType("multipart", "x-mixed-replace",
-			Map.of("boundary", "FRAME"));
+			Map.of("boundary", Frame.BOUNDARY));
 
 	@Autowired
-	ImageQueueHolderComponent imageQueueHolder;
+	StreamRegistry streamRegistry;
+
+	/**
+	 * Resumes non-blocking viewers whose next frame is due later because of their frame rate limit. Not the Spring
+	 * task scheduler, its thread may be busy polling the myStrom switches.
+	 */
+	private final ScheduledExecutorService egressScheduler = Executors
+			.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("mjpg-egress-"));
+
+	/**
+	 * Writes replays and recordings, which wait between their frames, see {@link #startPlayback}.
+	 */
+	private ExecutorService playbackExecutor;
+
+	@Value("${stream.maxPlaybacks:50}")
+	int maxPlaybacks;
+
+	@Autowired
+	MotionDetector motionDetector;
 
 	@Autowired
-	MjpegInputStreamReaderComponent mjpegInputStreamReader;
+	MotionProperties motionProperties;
+
+	@Value("${stream.egressMode:blocking}")
+	EgressMode egressMode;
+
+	@Value("${stream.longPollTimeout:PT30S}")
+	Duration longPollTimeout;
+
+	@Autowired
+	GatingProperties gatingProperties;
+
+	@Autowired
+	AsyncConfig asyncConfig;
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(StreamController.class);
 
+	/**
+	 * Frames a replay acquires from the replay buffer at a time.
+	 */
+	private static final int REPLAY_BATCH_FRAMES = 8;
+
+	@PostConstruct
+	void init() {
+		final ThreadPoolExecutor executor = new ThreadPoolExecutor(maxPlaybacks, maxPlaybacks, 60, TimeUnit.SECONDS,
+				new SynchronousQueue<>(), new CustomizableThreadFactory("mjpg-playback-"));
+		executor.allowCoreThreadTimeOut(true);
+		playbackExecutor = executor;
+	}
+
+	@PreDestroy
+	void shutdown() {
+		egressScheduler.shutdownNow();
+		playbackExecutor.shutdownNow();
+	}
+
+	/**
+	 * All threads writing streaming responses are busy, see {@code stream.maxBlockingStreams}.
+	 */
+	@ExceptionHandler(TaskRejectedException.class)
+	public ResponseEntity<Void> rejectStream(TaskRejectedException e) {
+		LOGGER.warn("All threads writing streams are busy, rejecting the request: {}", e.getMessage());
+		return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+	}
+
 	@GetMapping("/status")
 	public ResponseEntity<Map<String, Boolean>> getStreamStatus() {
-		return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON)
-				.body(Map.of("stream-available", mjpegInputStreamReader.isBackendStreamAvailable()));
+		return getStreamStatus(streamRegistry.getDefaultPipeline());
+	}
+
+	@GetMapping("/streams/{name}/status")
+	public ResponseEntity<Map<String, Boolean>> getStreamStatus(@PathVariable("name") String name) {
+		return getStreamStatus(getPipeline(name));
 	}
 
 	@GetMapping(value = "/stream.mjpg", produces = "multipart/x-mixed-replace; boundary=FRAME")
-	public ResponseEntity<StreamingResponseBody> sendStream() {
-		final BlockingQueue<byte[]> imageQueue = new LinkedBlockingDeque<>();
-		imageQueueHolder.addImageQueueList(imageQueue);
+	public ResponseEntity<StreamingResponseBody> sendStream(
+			@RequestParam(name = "fps", required = false) Double fps,
+			@RequestParam(name = "profile", required = false) String profile,
+			@RequestParam(name = "output", required = false) String output,
+			@RequestParam(name = "skipUnchanged", defaultValue = "false") boolean skipUnchanged,
+			@RequestParam(name = "onlyOnMotion", defaultValue = "false") boolean onlyOnMotion,
+			HttpServletRequest request, HttpServletResponse response) throws IOException {
+		final StreamPipeline pipeline = streamRegistry.getDefaultPipeline();
+		return sendStream(getFanOut(pipeline, profile, output), fps, skipUnchanged,
+				onlyOnMotion ? motionFilter(pipeline) : null, request, response);
+	}
+
+	@GetMapping(value = "/streams/{name}/stream.mjpg", produces = "multipart/x-mixed-replace; boundary=FRAME")
+	public ResponseEntity<StreamingResponseBody> sendStream(@PathVariable("name") String name,
+			@RequestParam(name = "fps", required = false) Double fps,
+			@RequestParam(name = "profile", required = false) String profile,
+			@RequestParam(name = "output", required = false) String output,
+			@RequestParam(name = "skipUnchanged", defaultValue = "false") boolean skipUnchanged,
+			@RequestParam(name = "onlyOnMotion", defaultValue = "false") boolean onlyOnMotion,
+			HttpServletRequest request, HttpServletResponse response) throws IOException {
+		final StreamPipeline pipeline = getPipeline(name);
+		return sendStream(getFanOut(pipeline, profile, output), fps, skipUnchanged,
+				onlyOnMotion ? motionFilter(pipeline) : null, request, response);
+	}
+
+	@GetMapping(value = "/mosaic.mjpg", produces = "multipart/x-mixed-replace; boundary=FRAME")
+	public ResponseEntity<StreamingResponseBody> sendMosaic(
+			@RequestParam(name = "fps", required = false) Double fps,
+			HttpServletRequest request, HttpServletResponse response) throws IOException {
+		return sendStream(streamRegistry.getMosaic().getFanOut(), fps, false, null, request, response);
+	}
+
+	/**
+	 * Send the motion events of all streams, or of the given one, as server-sent events named {@code motion}.
+	 */
+	@GetMapping(value = "/events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+	public SseEmitter sendEvents(@RequestParam(name = "stream", required = false) String stream) throws IOException {
+		if (stream != null ? !isMotionDetected(getPipeline(stream))
+				: streamRegistry.getPipelines().stream().noneMatch(this::isMotionDetected)) {
+			throw new ResponseStatusException(HttpStatus.NOT_FOUND, "No motion detection configured");
+		}
+		final SseEmitter emitter = new SseEmitter(0L);
+		final Consumer<MotionEvent> listener = event -> {
+			if (stream != null && !stream.equals(event.getStream())) {
+				return;
+			}
+			try {
+				emitter.send(SseEmitter.event().name("motion").id(event.getStream() + "-" + event.getSequence())
+						.data(event, MediaType.APPLICATION_JSON));
+			} catch (IOException | IllegalStateException e) {
+				LOGGER.debug("Motion event client gone: {}", e.toString());
+				emitter.completeWithError(e);
+			}
+		};
+		emitter.onCompletion(() -> motionDetector.removeListener(listener));
+		emitter.onError(e -> motionDetector.removeListener(listener));
+		emitter.onTimeout(() -> motionDetector.removeListener(listener));
+		// sends the headers, so the client knows it is connected
+		emitter.send(SseEmitter.event().comment("motion events"));
+		motionDetector.addListener(listener);
+		return emitter;
+	}
+
+	@GetMapping(value = "/replay.mjpg", produces = "multipart/x-mixed-replace; boundary=FRAME")
+	public void sendReplay(@RequestParam(name = "seconds", required = false) Double seconds,
+			@RequestParam(name = "speed", defaultValue = "1") double speed, HttpServletRequest request,
+			HttpServletResponse response) {
+		sendReplay(streamRegistry.getDefaultPipeline(), seconds, speed, request, response);
+	}
+
+	@GetMapping(value = "/streams/{name}/replay.mjpg", produces = "multipart/x-mixed-replace; boundary=FRAME")
+	public void sendReplay(@PathVariable("name") String name,
+			@RequestParam(name = "seconds", required = false) Double seconds,
+			@RequestParam(name = "speed", defaultValue = "1") double speed, HttpServletRequest request,
+			HttpServletResponse response) {
+		sendReplay(getPipeline(name), seconds, speed, request, response);
+	}
+
+	@GetMapping(value = "/recordings.mjpg", produces = "multipart/x-mixed-replace; boundary=FRAME")
+	public void sendRecording(@RequestParam(name = "from") String from,
+			@RequestParam(name = "to", required = false) String to,
+			@RequestParam(name = "speed", defaultValue = "1") double speed, HttpServletRequest request,
+			HttpServletResponse response) {
+		sendRecording(streamRegistry.getDefaultPipeline(), from, to, speed, request, response);
+	}
+
+	@GetMapping(value = "/streams/{name}/recordings.mjpg", produces = "multipart/x-mixed-replace; boundary=FRAME")
+	public void sendRecording(@PathVariable("name") String name, @RequestParam(name = "from") String from,
+			@RequestParam(name = "to", required = false) String to,
+			@RequestParam(name = "speed", defaultValue = "1") double speed, HttpServletRequest request,
+			HttpServletResponse response) {
+		sendRecording(getPipeline(name), from, to, speed, request, response);
+	}
+
+	@GetMapping("/snapshot.jpg")
+	public void sendSnapshot(WebRequest webRequest, HttpServletResponse response) throws IOException {
+		sendSnapshot(streamRegistry.getDefaultPipeline(), webRequest, response);
+	}
+
+	@GetMapping("/streams/{name}/snapshot.jpg")
+	public void sendSnapshot(@PathVariable("name") String name, WebRequest webRequest, HttpServletResponse response)
+			throws IOException {
+		sendSnapshot(getPipeline(name), webRequest, response);
+	}
+
+	@GetMapping("/frame")
+	public void pollFrame(@RequestParam(name = "after", required = false) Long after, HttpServletRequest request,
+			HttpServletResponse response) throws IOException {
+		pollFrame(streamRegistry.getDefaultPipeline(), after, request, response);
+	}
+
+	@GetMapping("/streams/{name}/frame")
+	public void pollFrame(@PathVariable("name") String name,
+			@RequestParam(name = "after", required = false) Long after, HttpServletRequest request,
+			HttpServletResponse response) throws IOException {
+		pollFrame(getPipeline(name), after, request, response);
+	}
+
+	private StreamPipeline getPipeline(String name) {
+		final StreamPipeline pipeline = streamRegistry.getPipeline(name);
+		if (pipeline == null) {
+			throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Unknown stream " + name);
+		}
+		return pipeline;
+	}
+
+	/**
+	 * @param profile name of an output profile, null for the frames of the camera
+	 * @param output name of a processed output, null for the frames of the camera
+	 */
+	private FrameFanOut getFanOut(StreamPipeline pipeline, String profile, String output) {
+		if (profile != null && output != null) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Either a profile or an output may be given");
+		}
+		if (output != null) {
+			final ProcessedStream processedStream = pipeline.getOutput(output);
+			if (processedStream == null) {
+				throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Unknown output " + output);
+			}
+			return processedStream.getFanOut();
+		}
+		if (profile == null) {
+			return pipeline.getFanOut();
+		}
+		final TranscodedStream transcodedStream = pipeline.getProfile(profile);
+		if (transcodedStream == null) {
+			throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Unknown profile " + profile);
+		}
+		return transcodedStream.getFanOut();
+	}
+
+	/**
+	 * @return a filter letting the frames showing motion pass, each judged by the motion detection of the stream
+	 */
+	private FrameFilter motionFilter(StreamPipeline pipeline) {
+		if (!isMotionDetected(pipeline)) {
+			throw new ResponseStatusException(HttpStatus.NOT_FOUND,
+					"No motion detection configured for stream " + pipeline.getName());
+		}
+		final String streamName = pipeline.getName();
+		return new FrameFilter() {
 
-		final StreamingResponseBody bodyStream = new StreamingResponseBody() {
 			@Override
-			public void writeTo(OutputStream outputStream) throws IOException {
-				int nullImageCount = 0;
-				while (true) {
-					try {
-						final byte[] imageData = imageQueue.take();
-						if (imageData != null) {
-							outputStream.write("--FRAME\r\n".getBytes());
-							outputStream.write("Content-Type: image/jpeg\r\n".getBytes());
-							outputStream
-									.write(String.format("Content-Length: %d\r\n\r\n", imageData.length).getBytes());
-							outputStream.write(imageData);
-							outputStream.write("\r\n".getBytes());
-							outputStream.flush();
-						} else {
-							// This should not happen as we are using take(), but just in case
-							Thread.sleep(100);
-							nullImageCount++;
-							LOGGER.warn("Image is null. Null image count: " + nullImageCount);
-							if (nullImageCount >= 100) {	
-								LOGGER.warn("No valid images received for a while. Stop sending data.");
-								outputStream.flush();
-								break;
-							}
+			public boolean isDecided(Frame frame) {
+				return motionDetector.isJudged(streamName, frame.getTimestampMicros(), frame.getReceivedNanos());
+			}
+
+			@Override
+			public boolean accept(Frame frame) {
+				return motionDetector.isMotionAt(streamName, frame.getTimestampMicros());
+			}
+		};
+	}
+
+	/**
+	 * @return true if an always active output of the stream runs the motion detection, which otherwise never sees a
+	 *         frame
+	 */
+	private boolean isMotionDetected(StreamPipeline pipeline) {
+		return pipeline.getOutputs().stream().anyMatch(output -> output.isAlwaysRunning(MotionDetector.NAME));
+	}
+
+	private ResponseEntity<Map<String, Boolean>> getStreamStatus(StreamPipeline pipeline) {
+		return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON)
+				.body(Map.of("stream-available", pipeline.getReader().isBackendStreamAvailable()));
+	}
+
+	/**
+	 * Send the latest frame as a single JPEG. The ETag is derived from the frame sequence number, so polling clients
+	 * revalidating with If-None-Match get a 304 without body as long as no new frame has been published. The sequence
+	 * starts over when the stream is restarted, so the ETag is prefixed with the epoch of the stream.
+	 */
+	private void sendSnapshot(StreamPipeline pipeline, WebRequest webRequest, HttpServletResponse response)
+			throws IOException {
+		pipeline.keepAlive();
+		final FrameSnapshot snapshot = pipeline.getFanOut().acquireSnapshot();
+		if (snapshot == null) {
+			throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "No frame received yet");
+		}
+		try {
+			final String etag = "\"" + pipeline.getFanOut().getEpoch() + "-" + snapshot.getSequence()
+					+ "\"";
+			if (webRequest.checkNotModified(etag, snapshot.getTimestamp())) {
+				return;
+			}
+			final ByteBuffer jpeg = snapshot.getFrame().getJpeg();
+			response.setContentType(MediaType.IMAGE_JPEG_VALUE);
+			response.setContentLength(jpeg.remaining());
+			response.setHeader(HttpHeaders.CACHE_CONTROL, "no-cache");
+			response.setHeader(Frame.TIMESTAMP_HEADER, snapshot.getFrame().formatTimestamp());
+			new FrameWriter(response.getOutputStream()).write(jpeg);
+		} finally {
+			snapshot.getFrame().release();
+		}
+	}
+
+	/**
+	 * Send the latest frame as soon as it is newer than the frame the client already has. The client passes the
+	 * sequence number of its last frame, taken from the X-Frame-Seq header, and the request is parked until the next
+	 * frame is published or the long-poll timeout elapses. A sequence which is not the latest one, e.g. from before a
+	 * restart, is answered right away.
+	 *
+	 * @param after sequence of the last frame the client has received, null to get the latest frame
+	 */
+	private void pollFrame(StreamPipeline pipeline, Long after, HttpServletRequest request,
+			HttpServletResponse response) throws IOException {
+		pipeline.keepAlive();
+		final FrameFanOut fanOut = pipeline.getFanOut();
+		final FrameSnapshot snapshot = fanOut.acquireSnapshot();
+		if (snapshot != null) {
+			try {
+				if (after == null || after != snapshot.getSequence()) {
+					FrameLongPoll.writeFrame(snapshot, response);
+					return;
+				}
+			} finally {
+				snapshot.getFrame().release();
+			}
+		}
+		final long awaitedSequence = snapshot == null ? 0 : snapshot.getSequence() + 1;
+		new FrameLongPoll(request.startAsync(), fanOut).start(awaitedSequence, longPollTimeout.toMillis());
+	}
+
+	/**
+	 * @param fps maximum frame rate for this viewer, null to send every frame
+	 * @param skipUnchanged true to skip the frames showing the same picture as the frames before
+	 * @param frameFilter the frames to send, null for all of them
+	 */
+	private ResponseEntity<StreamingResponseBody> sendStream(FrameFanOut fanOut, Double fps,
+			boolean skipUnchanged, FrameFilter frameFilter, HttpServletRequest request,
+			HttpServletResponse response) throws IOException {
+		if (fps != null && !(fps > 0)) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "fps must be positive");
+		}
+		final String client = request.getRemoteAddr() + ":" + request.getRemotePort();
+		final Supplier<FrameSubscription> subscribe = () -> {
+			final FrameSubscription subscription = fanOut.subscribe();
+			subscription.setClient(client);
+			if (fps != null) {
+				subscription.setMaxFrameRate(fps);
+			}
+			if (skipUnchanged) {
+				subscription.setSkipUnchanged(gatingProperties.getKeepAliveInterval());
+			}
+			if (frameFilter != null) {
+				subscription.setFrameFilter(frameFilter, motionProperties.getKeepAliveInterval());
+			}
+			return subscription;
+		};
+
+		if (egressMode == EgressMode.NON_BLOCKING) {
+			response.setContentType(MULTIPART_X_MIXED_REPLACE.toString());
+			response.setHeader("Connection", "keep-alive");
+			response.setHeader("Keep-Alive", "timeout=300, max=100");
+			final AsyncContext asyncContext = request.startAsync();
+			asyncContext.setTimeout(0);
+			new NonBlockingFrameStream(asyncContext, response.getOutputStream(), fanOut, subscribe.get(),
+					egressScheduler).start();
+			// response is completed by the non-blocking stream
+			return null;
+		}
+
+		final StreamingResponseBody bodyStream = outputStream -> {
+			// subscribed by the streaming thread, nothing to clean up if the request is rejected before
+			final FrameSubscription subscription = subscribe.get();
+			try {
+				streamFrames(subscription, outputStream, new FrameWriter(outputStream));
+			} finally {
+				fanOut.unsubscribe(subscription);
+			}
+		};
+
+		return multipartResponse(bodyStream);
+	}
+
+	/**
+	 * Replay the frames of the last seconds with their original timing, sped up by the given factor, and continue
+	 * with the live stream afterwards. Replays wait between the frames, so they are always written by a playback
+	 * thread, also with non-blocking egress. The live stream is handed over like any other viewer, see
+	 * {@link #continueLive}.
+	 *
+	 * @param seconds how far to go back, null for everything in the replay buffer
+	 * @param speed factor by which the replay is faster than the original, at least 1
+	 */
+	private void sendReplay(StreamPipeline pipeline, Double seconds, double speed, HttpServletRequest request,
+			HttpServletResponse response) {
+		final ReplayBuffer replayBuffer = pipeline.getReplayBuffer();
+		if (!replayBuffer.isEnabled()) {
+			throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Replay is disabled");
+		}
+		if (seconds != null && !(seconds > 0)) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "seconds must be positive");
+		}
+		if (!(speed >= 1)) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "speed must be at least 1");
+		}
+		final Duration period = seconds == null ? replayBuffer.getDuration()
+				: Duration.ofNanos((long) (seconds * 1_000_000_000L));
+		final String client = request.getRemoteAddr() + ":" + request.getRemotePort();
+		final FrameFanOut fanOut = pipeline.getFanOut();
+
+		startPlayback(request, response, outputStream -> {
+			final FrameWriter frameWriter = new FrameWriter(outputStream);
+			final long lastReplayedSequence = replayFrames(replayBuffer, period, speed, outputStream, frameWriter);
+			if (lastReplayedSequence == Long.MIN_VALUE) {
+				return false;
+			}
+			continueLive(fanOut, client, lastReplayedSequence, request.getAsyncContext(), response, frameWriter);
+			return true;
+		});
+	}
+
+	/**
+	 * Continue a replay with the live stream, starting after the last replayed frame. The playback thread is freed,
+	 * the live stream is written like the one of any other viewer, by a {@link NonBlockingFrameStream} or by a thread
+	 * of the streaming executor. If all of these threads are busy the response ends after the replay.
+	 */
+	private void continueLive(FrameFanOut fanOut, String client, long lastReplayedSequence, AsyncContext asyncContext,
+			HttpServletResponse response, FrameWriter frameWriter) throws IOException {
+		final ServletOutputStream outputStream = response.getOutputStream();
+		final FrameSubscription subscription = fanOut.subscribe();
+		subscription.setClient(client);
+		subscription.startAfter(lastReplayedSequence);
+		if (egressMode == EgressMode.NON_BLOCKING) {
+			new NonBlockingFrameStream(asyncContext, outputStream, fanOut, subscription, egressScheduler).start();
+			return;
+		}
+		try {
+			asyncConfig.getStreamingExecutor().execute(() -> {
+				try {
+					streamFrames(subscription, outputStream, frameWriter);
+				} catch (IOException e) {
+					LOGGER.debug("Stream to {} ended: {}", client, e.toString());
+				} finally {
+					fanOut.unsubscribe(subscription);
+					complete(asyncContext);
+				}
+			});
+		} catch (TaskRejectedException e) {
+			LOGGER.warn("All threads writing streams are busy, ending the replay of {}", client);
+			fanOut.unsubscribe(subscription);
+			complete(asyncContext);
+		}
+	}
+
+	/**
+	 * Play back the recorded frames received between the two times, with their recorded timing sped up by the given
+	 * factor. Like replays, playback is always written by a playback thread.
+	 *
+	 * @param from time of the first frame as ISO-8601 instant or in seconds since the epoch
+	 * @param to time of the last frame, null for up to now
+	 */
+	private void sendRecording(StreamPipeline pipeline, String from, String to, double speed,
+			HttpServletRequest request, HttpServletResponse response) {
+		final FrameRecorder recorder = pipeline.getRecorder();
+		if (recorder == null) {
+			throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Recording is disabled");
+		}
+		if (!(speed >= 1)) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "speed must be at least 1");
+		}
+		final long fromMicros = parseTimeMicros(from, "from");
+		final long toMicros = to == null ? Frame.currentTimeMicros() : parseTimeMicros(to, "to");
+		if (fromMicros > toMicros) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "from must not be after to");
+		}
+		startPlayback(request, response, outputStream -> {
+			final FrameWriter frameWriter = new FrameWriter(outputStream);
+			try {
+				recorder.play(fromMicros, toMicros, speed, part -> {
+					frameWriter.write(part);
+					outputStream.flush();
+				});
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				LOGGER.warn("Playback interrupted. Stop sending data.");
+			}
+			return false;
+		});
+	}
+
+	/**
+	 * @param value ISO-8601 instant like {@code 2024-05-01T12:00:00Z} or seconds since the epoch like the
+	 *            {@value Frame#TIMESTAMP_HEADER} header
+	 */
+	private static long parseTimeMicros(String value, String parameter) {
+		try {
+			if (value.matches("\\d+(\\.\\d+)?")) {
+				return new BigDecimal(value).movePointRight(6).longValue();
+			}
+			final Instant instant = Instant.parse(value);
+			return instant.getEpochSecond() * 1_000_000 + instant.getNano() / 1_000;
+		} catch (DateTimeParseException e) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+					parameter + " must be an ISO-8601 instant or seconds since the epoch");
+		}
+	}
+
+	/**
+	 * Write the frames received in the period before now. The frames are acquired a few at a time, so the replay does
+	 * not keep the buffers of the whole period from being reused.
+	 *
+	 * @return sequence of the last frame written, -1 if there was none, {@link Long#MIN_VALUE} if interrupted
+	 */
+	private long replayFrames(ReplayBuffer replayBuffer, Duration period, double speed, OutputStream outputStream,
+			FrameWriter frameWriter) throws IOException {
+		final long until = System.nanoTime();
+		long after = until - period.toNanos() - 1;
+		long lastSequence = -1;
+		long replayStart = 0;
+		long firstReceived = 0;
+		List<Frame> frames;
+		while (!(frames = replayBuffer.acquire(after, until, REPLAY_BATCH_FRAMES)).isEmpty()) {
+			try {
+				for (Frame frame : frames) {
+					if (lastSequence == -1) {
+						replayStart = System.nanoTime();
+						firstReceived = frame.getReceivedNanos();
+					}
+					final long due = replayStart + (long) ((frame.getReceivedNanos() - firstReceived) / speed);
+					final long wait = due - System.nanoTime();
+					if (wait > 0) {
+						try {
+							TimeUnit.NANOSECONDS.sleep(wait);
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							LOGGER.warn("Replay interrupted. Stop sending data.");
+							return Long.MIN_VALUE;
 						}
-					} catch (InterruptedException e) {
-						LOGGER.warn("Waiting for image interrupted. Stop sending data.");
-						outputStream.flush();
-						break;
 					}
+					frameWriter.write(frame.getPart());
+					outputStream.flush();
+					lastSequence = frame.getSequence();
+					after = frame.getReceivedNanos();
+				}
+			} finally {
+				frames.forEach(Frame::release);
+			}
+		}
+		return lastSequence;
+	}
 
+	/**
+	 * Write the frames of the subscription until the viewer is gone or evicted.
+	 */
+	private void streamFrames(FrameSubscription subscription, OutputStream outputStream, FrameWriter frameWriter)
+			throws IOException {
+		while (true) {
+			try {
+				final Frame frame = subscription.take();
+				if (frame != null) {
+					try {
+						frameWriter.write(frame.getPart());
+						outputStream.flush();
+						subscription.recordWritten(frame);
+					} finally {
+						frame.release();
+					}
+				} else {
+					LOGGER.info("Disconnecting slow viewer {}: {}", subscription.getClient(),
+							subscription.getEvictionReason());
+					outputStream.flush();
+					break;
 				}
-				imageQueueHolder.removeImageQueueList(imageQueue);
+			} catch (InterruptedException e) {
+				LOGGER.warn("Waiting for image interrupted. Stop sending data.");
+				outputStream.flush();
+				break;
 			}
-		};
+		}
+	}
+
+	/**
+	 * Write a replay or the playback of a recording on a playback thread, so they never take the threads of the viewers
+	 * while waiting between their frames. Beyond {@code stream.maxPlaybacks} the request is answered with 503 Service
+	 * Unavailable.
+	 */
+	private void startPlayback(HttpServletRequest request, HttpServletResponse response, Playback playback) {
+		final String client = request.getRemoteAddr() + ":" + request.getRemotePort();
+		final AsyncContext asyncContext = request.startAsync();
+		asyncContext.setTimeout(0);
+		try {
+			playbackExecutor.execute(() -> {
+				boolean handedOver = false;
+				try {
+					response.setContentType(MULTIPART_X_MIXED_REPLACE.toString());
+					response.setHeader("Connection", "keep-alive");
+					response.setHeader("Keep-Alive", "timeout=300, max=100");
+					handedOver = playback.writeTo(response.getOutputStream());
+				} catch (IOException e) {
+					LOGGER.debug("Playback to {} ended: {}", client, e.toString());
+				} finally {
+					if (!handedOver) {
+						complete(asyncContext);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			LOGGER.warn("All {} playback threads are busy, rejecting {}", maxPlaybacks, client);
+			response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			asyncContext.complete();
+		}
+	}
+
+	private static void complete(AsyncContext asyncContext) {
+		try {
+			asyncContext.complete();
+		} catch (IllegalStateException e) {
+			// the client is gone, the container has completed the request already
+		}
+	}
+
+	/**
+	 * Writes a replay or the playback of a recording, see {@link #startPlayback}.
+	 */
+	@FunctionalInterface
+	private interface Playback {
 
+		/**
+		 * @return true if the response has been handed over to a live stream, which completes it
+		 */
+		boolean writeTo(OutputStream outputStream) throws IOException;
+	}
+
+	private static ResponseEntity<StreamingResponseBody> multipartResponse(StreamingResponseBody bodyStream) {
 		// Add Keep-Alive headers to ResponseEntity
 		HttpHeaders headers = new HttpHeaders();
 		headers.add("Connection", "keep-alive"); // Persistent connection
 		headers.add("Keep-Alive", "timeout=300, max=100"); // Configure timeout and max requests
 
 		return ResponseEntity.ok().headers(headers).contentType(MULTIPART_X_MIXED_REPLACE).body(bodyStream);
-
 	}
 
 }
\ No newline at end of file
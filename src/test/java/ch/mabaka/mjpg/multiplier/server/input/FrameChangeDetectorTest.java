@@ -0,0 +1,62 @@
+package ch.mabaka.mjpg.multiplier.server.input;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+import ch.mabaka.mjpg.multiplier.server.input.data.Frame;
+import ch.mabaka.mjpg.multiplier.server.input.data.FrameBufferPool;
+
+class FrameChangeDetectorTest {
+
+	private final FrameBufferPool pool = new FrameBufferPool(1024 * 1024);
+
+	@Test
+	void onlyMarksIdenticalFramesWithoutSizeThreshold() {
+		final FrameChangeDetector detector = new FrameChangeDetector(true, 0);
+		assertFalse(check(detector, 1000, 1));
+		assertTrue(check(detector, 1000, 1));
+		// same length, different content
+		assertFalse(check(detector, 1000, 2));
+		assertFalse(check(detector, 1001, 2));
+	}
+
+	@Test
+	void marksFramesWithinTheSizeThreshold() {
+		final FrameChangeDetector detector = new FrameChangeDetector(true, 0.01);
+		assertFalse(check(detector, 1000, 1));
+		assertTrue(check(detector, 1000, 1));
+		assertTrue(check(detector, 1000, 2));
+		assertTrue(check(detector, 1010, 3));
+		assertFalse(check(detector, 1011, 4));
+		// compared with the last changed frame
+		assertTrue(check(detector, 1001, 5));
+	}
+
+	@Test
+	void marksTheFirstFrameAfterAResetChanged() {
+		final FrameChangeDetector detector = new FrameChangeDetector(true, 0);
+		check(detector, 1000, 1);
+		detector.reset();
+		assertFalse(check(detector, 1000, 1));
+	}
+
+	/**
+	 * @return true if the frame of the given length filled with the given value is marked unchanged
+	 */
+	private boolean check(final FrameChangeDetector detector, final int length, final int value) {
+		final byte[] jpeg = new byte[length];
+		Arrays.fill(jpeg, (byte) value);
+		final Frame frame = pool.allocate(length);
+		try {
+			frame.put(0, jpeg, 0, length);
+			detector.check(frame);
+			return frame.isUnchanged();
+		} finally {
+			frame.release();
+		}
+	}
+}
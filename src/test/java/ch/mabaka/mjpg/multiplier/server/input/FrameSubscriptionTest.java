@@ -0,0 +1,269 @@
+package ch.mabaka.mjpg.multiplier.server.input;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.util.unit.DataSize;
+
+import ch.mabaka.mjpg.multiplier.server.input.data.Frame;
+import ch.mabaka.mjpg.multiplier.server.input.data.FrameBufferPool;
+
+class FrameSubscriptionTest {
+
+	private final FrameBufferPool pool = new FrameBufferPool(1024 * 1024);
+
+	@Test
+	void deliversEveryFrameToEverySubscriber() {
+		final FrameFanOut fanOut = new FrameFanOut(4);
+		final FrameSubscription first = fanOut.subscribe();
+		final FrameSubscription second = fanOut.subscribe();
+		final Frame frame1 = pool.allocate(10);
+		final Frame frame2 = pool.allocate(20);
+		fanOut.publish(frame1);
+		fanOut.publish(frame2);
+
+		assertSame(frame1, first.poll());
+		assertSame(frame2, first.poll());
+		assertNull(first.poll());
+		assertSame(frame1, second.poll());
+		assertSame(frame2, second.poll());
+		assertEquals(2, fanOut.getSubscriberCount());
+	}
+
+	@Test
+	void slowSubscriberSkipsAheadToLatestFrame() {
+		final FrameFanOut fanOut = new FrameFanOut(4);
+		final FrameSubscription subscription = fanOut.subscribe();
+		Frame latest = null;
+		for (int i = 0; i < 10; i++) {
+			latest = pool.allocate(10);
+			fanOut.publish(latest);
+		}
+
+		assertSame(latest, subscription.poll());
+		assertNull(subscription.poll());
+		assertEquals(9, subscription.getSkippedFrames());
+	}
+
+	@Test
+	void startsAfterTheFramesSentAlready() {
+		final FrameFanOut fanOut = new FrameFanOut(4);
+		final Frame replayed = pool.allocate(10);
+		fanOut.publish(replayed);
+		final FrameSubscription subscription = fanOut.subscribe();
+		subscription.startAfter(replayed.getSequence());
+		assertNull(subscription.poll());
+
+		final Frame next = pool.allocate(10);
+		fanOut.publish(next);
+		assertSame(next, subscription.poll());
+	}
+
+	@Test
+	void overwrittenFramesGoBackToThePool() {
+		final FrameFanOut fanOut = new FrameFanOut(4);
+		final FrameSubscription subscription = fanOut.subscribe();
+		for (int i = 0; i < 8; i++) {
+			fanOut.publish(pool.allocate(10));
+		}
+		assertEquals(4, pool.getUsedBufferCount());
+
+		final Frame frame = subscription.poll();
+		fanOut.publish(pool.allocate(10));
+		fanOut.publish(pool.allocate(10));
+		fanOut.publish(pool.allocate(10));
+		fanOut.publish(pool.allocate(10));
+		// still referenced by the subscriber
+		assertEquals(5, pool.getUsedBufferCount());
+		frame.release();
+		assertEquals(4, pool.getUsedBufferCount());
+		assertEquals(7, pool.getReuseCount());
+	}
+
+	@Test
+	void boundedBytesPolicyDropsOldestFramesBeyondBudget() {
+		final SlowConsumerPolicy policy = new SlowConsumerPolicy(SlowConsumerPolicy.Mode.BOUNDED_BYTES,
+				DataSize.ofBytes(3 * pool.allocate(100).getPartLength()), 0, 0);
+		final FrameFanOut fanOut = new FrameFanOut(8, policy);
+		final FrameSubscription subscription = fanOut.subscribe();
+		for (int i = 0; i < 6; i++) {
+			fanOut.publish(pool.allocate(100));
+		}
+
+		subscription.poll().release();
+		assertEquals(3, subscription.getSkippedFrames());
+		assertEquals(2, subscription.getLag());
+	}
+
+	@Test
+	void evictsViewerAfterConsecutiveDrops() {
+		final SlowConsumerPolicy policy = new SlowConsumerPolicy(SlowConsumerPolicy.Mode.LATEST_ONLY,
+				DataSize.ofMegabytes(1), 5, 0);
+		final FrameFanOut fanOut = new FrameFanOut(8, policy);
+		final FrameSubscription subscription = fanOut.subscribe();
+		for (int round = 0; round < 2; round++) {
+			fanOut.publish(pool.allocate(10));
+			fanOut.publish(pool.allocate(10));
+			fanOut.publish(pool.allocate(10));
+			final Frame frame = subscription.poll();
+			assertNotNull(frame);
+			frame.release();
+		}
+		// two frames dropped in each round
+		fanOut.publish(pool.allocate(10));
+		fanOut.publish(pool.allocate(10));
+
+		assertNull(subscription.poll());
+		assertTrue(subscription.isEvicted());
+		fanOut.unsubscribe(subscription);
+		assertEquals(1, fanOut.getEvictedSubscribers());
+	}
+
+	@Test
+	void snapshotKeepsLatestFrameUntilReleased() {
+		final FrameFanOut fanOut = new FrameFanOut(4);
+		assertNull(fanOut.acquireSnapshot());
+		final Frame frame = pool.allocate(10);
+		fanOut.publish(frame);
+
+		final FrameSnapshot snapshot = fanOut.acquireSnapshot();
+		assertSame(frame, snapshot.getFrame());
+		assertEquals(0, snapshot.getSequence());
+		for (int i = 0; i < 4; i++) {
+			fanOut.publish(pool.allocate(10));
+		}
+		// overwritten in the ring buffer and replaced as snapshot, only the caller's reference is left
+		assertEquals(5, pool.getUsedBufferCount());
+		snapshot.getFrame().release();
+		assertEquals(4, pool.getUsedBufferCount());
+		assertEquals(4, fanOut.acquireSnapshot().getSequence());
+	}
+
+	@Test
+	void frameRateLimitSkipsFramesUntilDue() {
+		final FrameFanOut fanOut = new FrameFanOut(4);
+		final FrameSubscription subscription = fanOut.subscribe();
+		subscription.setMaxFrameRate(0.001);
+		fanOut.publish(pool.allocate(10));
+		final Frame first = subscription.poll();
+		assertNotNull(first);
+		first.release();
+
+		for (int i = 0; i < 3; i++) {
+			fanOut.publish(pool.allocate(10));
+		}
+		assertNull(subscription.poll());
+		assertTrue(subscription.getNanosUntilDue() > 0);
+
+		subscription.setMaxFrameRate(1_000_000_000);
+		final Frame latest = subscription.poll();
+		assertEquals(2 * latest.getPartLength(), fanOut.getDecimatedBytes());
+		assertNull(subscription.poll());
+		latest.release();
+	}
+
+	@Test
+	void publishedFramesCarrySequenceAndTimingHeaders() {
+		final FrameBufferPool timingPool = new FrameBufferPool(1024 * 1024, true);
+		final FrameFanOut fanOut = new FrameFanOut(4);
+		final FrameSubscription subscription = fanOut.subscribe();
+		fanOut.publish(timingPool.allocate(10));
+		final Frame frame = timingPool.allocate(10);
+		frame.setReceived(1_700_000_000_000_042L, System.nanoTime());
+		fanOut.publish(frame);
+
+		subscription.poll().release();
+		final Frame received = subscription.poll();
+		assertEquals(1, received.getSequence());
+		final ByteBuffer part = received.getPart();
+		assertEquals(received.getPartLength(), part.remaining());
+		final byte[] bytes = new byte[part.remaining()];
+		part.get(bytes);
+		final String headers = new String(bytes, 0, bytes.length - 12, StandardCharsets.US_ASCII);
+		assertEquals("--FRAME\r\nX-Timestamp: 1700000000.000042\r\nX-Frame-Seq: 1\r\n"
+				+ "Content-Type: image/jpeg\r\nContent-Length: 10\r\n\r\n", headers);
+		assertTrue(received.getPublishedNanos() >= received.getReceivedNanos());
+		received.release();
+	}
+
+	@Test
+	void skipsUnchangedFramesUntilKeepAliveIsDue() throws InterruptedException {
+		final FrameChangeDetector changeDetector = new FrameChangeDetector(true, 0.01);
+		final FrameFanOut fanOut = new FrameFanOut(4);
+		final FrameSubscription subscription = fanOut.subscribe();
+		subscription.setSkipUnchanged(Duration.ofMillis(100));
+
+		final Frame first = pool.allocate(1000);
+		changeDetector.check(first);
+		fanOut.publish(first);
+		assertSame(first, subscription.poll());
+
+		final Frame similar = pool.allocate(1005);
+		changeDetector.check(similar);
+		fanOut.publish(similar);
+		assertNull(subscription.poll());
+
+		final Frame changed = pool.allocate(1200);
+		changeDetector.check(changed);
+		fanOut.publish(changed);
+		assertSame(changed, subscription.poll());
+
+		Thread.sleep(150);
+		final Frame keepAlive = pool.allocate(1200);
+		changeDetector.check(keepAlive);
+		fanOut.publish(keepAlive);
+		assertTrue(keepAlive.isUnchanged());
+		assertSame(keepAlive, subscription.poll());
+		assertEquals(1, fanOut.getUnchangedSkippedFrames());
+	}
+
+	@Test
+	void holdsBackFramesUntilTheFilterHasDecided() {
+		final SlowConsumerPolicy policy = new SlowConsumerPolicy(SlowConsumerPolicy.Mode.LATEST_ONLY,
+				DataSize.ofMegabytes(1), 0, 0);
+		final FrameFanOut fanOut = new FrameFanOut(8, policy);
+		final FrameSubscription subscription = fanOut.subscribe();
+		final long[] decidedUpTo = { 0 };
+		subscription.setFrameFilter(new FrameFilter() {
+
+			@Override
+			public boolean isDecided(final Frame frame) {
+				return frame.getSequence() <= decidedUpTo[0];
+			}
+
+			@Override
+			public boolean accept(final Frame frame) {
+				return frame.getSequence() >= 2;
+			}
+		}, Duration.ofMinutes(1));
+		final Frame[] frames = new Frame[4];
+		for (int i = 0; i < frames.length; i++) {
+			frames[i] = pool.allocate(10);
+		}
+		fanOut.publish(frames[0]);
+		assertSame(frames[0], subscription.poll());
+
+		fanOut.publish(frames[1]);
+		fanOut.publish(frames[2]);
+		fanOut.publish(frames[3]);
+		assertNull(subscription.poll());
+		assertTrue(subscription.getNanosUntilDue() > 0);
+
+		// the first accepted frame is not dropped for the later frame, which is not decided yet
+		decidedUpTo[0] = 2;
+		assertSame(frames[2], subscription.poll());
+		assertNull(subscription.poll());
+
+		decidedUpTo[0] = 3;
+		assertSame(frames[3], subscription.poll());
+		assertEquals(0, subscription.getNanosUntilDue());
+	}
+}
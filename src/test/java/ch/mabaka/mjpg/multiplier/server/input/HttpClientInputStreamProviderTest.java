@@ -0,0 +1,102 @@
+package ch.mabaka.mjpg.multiplier.server.input;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.time.Duration;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+class HttpClientInputStreamProviderTest {
+
+	private static final byte[] BODY = "--FRAME\r\n".getBytes();
+
+	private HttpServer server;
+
+	@BeforeEach
+	void startServer() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/stream.mjpg", exchange -> {
+			exchange.sendResponseHeaders(200, 0);
+			try (OutputStream body = exchange.getResponseBody()) {
+				body.write(BODY);
+				body.flush();
+				// keep the stream open without data until the client gives up
+				Thread.sleep(1000);
+			} catch (InterruptedException | IOException e) {
+				// client gone
+			}
+		});
+		server.start();
+	}
+
+	@AfterEach
+	void stopServer() {
+		server.stop(0);
+	}
+
+	@Test
+	void failsOverToTheNextUrlWithoutDelay() throws Exception {
+		final HttpClientInputStreamProvider provider = new HttpClientInputStreamProvider(
+				List.of("http://127.0.0.1:" + unusedPort() + "/stream.mjpg", streamUrl()), null, Duration.ofSeconds(1),
+				Duration.ofSeconds(5), Duration.ofMillis(100), Duration.ofSeconds(10));
+
+		assertThrows(IOException.class, provider::getInputStream);
+		assertEquals(Duration.ZERO, provider.getRetryDelay());
+		try (InputStream stream = provider.getInputStream()) {
+			assertArrayEquals(BODY, stream.readNBytes(BODY.length));
+		}
+		// a broken stream is retried after the initial backoff with jitter
+		final Duration delay = provider.getRetryDelay();
+		assertTrue(delay.toMillis() >= 50 && delay.toMillis() <= 100, delay.toString());
+	}
+
+	@Test
+	void backsOffOnceAllUrlsFailed() throws Exception {
+		final HttpClientInputStreamProvider provider = new HttpClientInputStreamProvider(
+				List.of("http://127.0.0.1:" + unusedPort() + "/stream.mjpg"), null, Duration.ofSeconds(1),
+				Duration.ofSeconds(5), Duration.ofMillis(100), Duration.ofMillis(300));
+
+		final long[] expectedMaximum = { 200, 300, 300 };
+		for (long maximum : expectedMaximum) {
+			assertThrows(IOException.class, provider::getInputStream);
+			final Duration delay = provider.getRetryDelay();
+			assertTrue(delay.toMillis() >= maximum / 2 && delay.toMillis() <= maximum, delay.toString());
+		}
+	}
+
+	@Test
+	void closesStreamWithoutDataAfterReadTimeout() throws Exception {
+		final HttpClientInputStreamProvider provider = new HttpClientInputStreamProvider(List.of(streamUrl()), null,
+				Duration.ofSeconds(1), Duration.ofMillis(200), Duration.ofMillis(100), Duration.ofSeconds(10));
+
+		try (InputStream stream = provider.getInputStream()) {
+			stream.readNBytes(BODY.length);
+			final long start = System.nanoTime();
+			assertThrows(IOException.class, stream::read);
+			assertTrue(System.nanoTime() - start < Duration.ofSeconds(2).toNanos());
+		}
+	}
+
+	private String streamUrl() {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + "/stream.mjpg";
+	}
+
+	private static int unusedPort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+}
@@ -0,0 +1,175 @@
+package ch.mabaka.mjpg.multiplier.server.input;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import ch.mabaka.mjpg.multiplier.server.input.data.Frame;
+import ch.mabaka.mjpg.multiplier.server.input.data.FrameBufferPool;
+
+class MjpegFrameParserTest {
+
+	private static byte[] jpeg(final int size, final long seed) {
+		final byte[] data = new byte[size];
+		new Random(seed).nextBytes(data);
+		for (int i = 0; i < size; i++) {
+			// keep markers out of the entropy coded data
+			if (data[i] == (byte) 0xFF) {
+				data[i] = 0;
+			}
+		}
+		data[0] = (byte) 0xFF;
+		data[1] = (byte) 0xD8;
+		data[size - 2] = (byte) 0xFF;
+		data[size - 1] = (byte) 0xD9;
+		return data;
+	}
+
+	private static void writePart(final ByteArrayOutputStream stream, final String headers, final byte[] frame) {
+		stream.writeBytes(("--FRAME\r\n" + headers + "\r\n").getBytes());
+		stream.writeBytes(frame);
+		stream.writeBytes("\r\n".getBytes());
+	}
+
+	private static byte[] bytesOf(final ByteBuffer buffer) {
+		final byte[] bytes = new byte[buffer.remaining()];
+		buffer.get(bytes);
+		return bytes;
+	}
+
+	private static byte[] jpegOf(final Frame frame) {
+		return bytesOf(frame.getJpeg());
+	}
+
+	private static MjpegFrameParser parse(final byte[] stream, final int chunkSize, final List<Frame> frames) {
+		final MjpegFrameParser parser = new MjpegFrameParser(new FrameBufferPool(0), frames::add);
+		for (int offset = 0; offset < stream.length; offset += chunkSize) {
+			parser.feed(stream, offset, Math.min(chunkSize, stream.length - offset));
+		}
+		return parser;
+	}
+
+	@Test
+	void parsesHeadersInAnyOrder() {
+		final byte[] first = jpeg(5000, 1);
+		final byte[] second = jpeg(7000, 2);
+		final byte[] third = jpeg(3000, 3);
+		final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		writePart(stream, "Content-Type: image/jpeg\r\nContent-Length: " + first.length + "\r\n", first);
+		writePart(stream, "content-length:" + second.length + "\r\nContent-Type: image/jpeg\r\nX-Timestamp: 1\r\n",
+				second);
+		writePart(stream, "Content-Type: image/jpeg\r\n", third);
+
+		final List<Frame> frames = new ArrayList<>();
+		parse(stream.toByteArray(), 7, frames);
+
+		assertEquals(3, frames.size());
+		assertArrayEquals(first, jpegOf(frames.get(0)));
+		assertArrayEquals(second, jpegOf(frames.get(1)));
+		assertArrayEquals(third, jpegOf(frames.get(2)));
+	}
+
+	@Test
+	void skipsEndOfImageOfEmbeddedThumbnail() {
+		final ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+		jpeg.writeBytes(new byte[] { (byte) 0xFF, (byte) 0xD8 });
+		// APP1 segment with a thumbnail, which ends with its own end of image marker
+		final byte[] thumbnail = jpeg(300, 6);
+		final int app1Length = 2 + 6 + thumbnail.length;
+		jpeg.writeBytes(new byte[] { (byte) 0xFF, (byte) 0xE1, (byte) (app1Length >> 8), (byte) app1Length });
+		jpeg.writeBytes("Exif\0\0".getBytes());
+		jpeg.writeBytes(thumbnail);
+		// start of scan, then entropy coded data with a stuffed byte and a restart marker
+		jpeg.writeBytes(new byte[] { (byte) 0xFF, (byte) 0xDA, 0, 8, 1, 1, 0, 0, 63, 0 });
+		jpeg.writeBytes(new byte[] { 0x12, (byte) 0xFF, 0x00, 0x34, (byte) 0xFF, (byte) 0xD0, 0x56 });
+		jpeg.writeBytes(new byte[] { (byte) 0xFF, (byte) 0xD9 });
+		final byte[] withThumbnail = jpeg.toByteArray();
+		final byte[] plain = jpeg(1000, 7);
+		final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		writePart(stream, "Content-Type: image/jpeg\r\n", withThumbnail);
+		writePart(stream, "Content-Type: image/jpeg\r\n", plain);
+
+		final List<Frame> frames = new ArrayList<>();
+		parse(stream.toByteArray(), 5, frames);
+
+		assertEquals(2, frames.size());
+		assertArrayEquals(withThumbnail, jpegOf(frames.get(0)));
+		assertArrayEquals(plain, jpegOf(frames.get(1)));
+	}
+
+	@Test
+	void perFrameWorkDependsOnFrameSizeNotOnNumberOfReads() {
+		final int frameCount = 10;
+		final int frameSize = 200 * 1024;
+		final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		for (int i = 0; i < frameCount; i++) {
+			writePart(stream, "Content-Type: image/jpeg\r\nContent-Length: " + frameSize + "\r\n", jpeg(frameSize, i));
+		}
+		final byte[] data = stream.toByteArray();
+
+		final List<Frame> frames = new ArrayList<>();
+		final MjpegFrameParser smallReads = parse(data, 512, frames);
+		final MjpegFrameParser largeReads = parse(data, 64 * 1024, frames);
+		assertEquals(2 * frameCount, frames.size());
+
+		// the body is copied exactly once, independent of how it was chunked
+		assertEquals((long) frameCount * frameSize, smallReads.getCopiedBytes());
+		assertEquals((long) frameCount * frameSize, largeReads.getCopiedBytes());
+		// only the part headers are scanned, and each header byte only once
+		assertEquals(largeReads.getScannedBytes(), smallReads.getScannedBytes());
+		assertTrue(smallReads.getScannedBytes() / frameCount < 100);
+	}
+
+	@Test
+	void encodesMultipartPart() {
+		final byte[] jpeg = jpeg(1000, 4);
+		final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		writePart(stream, "Content-Type: image/jpeg\r\nContent-Length: " + jpeg.length + "\r\n", jpeg);
+		final List<Frame> frames = new ArrayList<>();
+		parse(stream.toByteArray(), 100, frames);
+
+		final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		writePart(expected, "Content-Type: image/jpeg\r\nContent-Length: " + jpeg.length + "\r\n", jpeg);
+		assertArrayEquals(expected.toByteArray(), bytesOf(frames.get(0).getPart()));
+	}
+
+	@Test
+	void takesOverTimingHeadersOfUpstreamMultiplier() {
+		final byte[] jpeg = jpeg(2000, 5);
+		final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		final long timestampMicros = Frame.currentTimeMicros() - 20_000;
+		final String timestamp = String.format("%d.%06d", timestampMicros / 1_000_000, timestampMicros % 1_000_000);
+		writePart(stream, "X-Timestamp: " + timestamp + "\r\nX-Frame-Seq: 41\r\nContent-Type: image/jpeg\r\n"
+				+ "Content-Length: " + jpeg.length + "\r\n", jpeg);
+		writePart(stream, "Content-Type: image/jpeg\r\nContent-Length: " + jpeg.length + "\r\n", jpeg);
+
+		final List<Frame> frames = new ArrayList<>();
+		final List<Long> sequences = new ArrayList<>();
+		final List<Long> latencies = new ArrayList<>();
+		final MjpegFrameParser[] parser = new MjpegFrameParser[1];
+		parser[0] = new MjpegFrameParser(new FrameBufferPool(0), frame -> {
+			frames.add(frame);
+			sequences.add(parser[0].getUpstreamSequence());
+			latencies.add(parser[0].getUpstreamLatencyMicros());
+		}, true);
+		final byte[] data = stream.toByteArray();
+		parser[0].feed(data, 0, data.length);
+
+		assertEquals(2, frames.size());
+		assertEquals(timestampMicros, frames.get(0).getTimestampMicros());
+		assertEquals(41, sequences.get(0));
+		assertTrue(latencies.get(0) >= 20_000 && latencies.get(0) < 10_000_000, latencies.get(0).toString());
+		// a part without timing headers is stamped with the local receive time
+		assertTrue(frames.get(1).getTimestampMicros() > timestampMicros);
+		assertEquals(-1, sequences.get(1));
+		assertEquals(Long.MIN_VALUE, latencies.get(1));
+	}
+}
@@ -0,0 +1,92 @@
+package ch.mabaka.mjpg.multiplier.server.input;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.Test;
+
+import ch.mabaka.mjpg.multiplier.server.config.MosaicProperties;
+import ch.mabaka.mjpg.multiplier.server.input.data.Frame;
+import ch.mabaka.mjpg.multiplier.server.input.data.FrameBufferPool;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class MosaicStreamTest {
+
+	private final FrameBufferPool pool = new FrameBufferPool(4 * 1024 * 1024);
+
+	private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+	@Test
+	void encodesTheGridOnlyWhenATileHasChanged() throws Exception {
+		final FrameFanOut first = new FrameFanOut(4);
+		final FrameFanOut second = new FrameFanOut(4);
+		final Map<String, FrameFanOut> sources = new LinkedHashMap<>();
+		sources.put("first", first);
+		sources.put("second", second);
+		final MosaicProperties properties = new MosaicProperties();
+		properties.setFps(50);
+		final MosaicStream mosaic = new MosaicStream(sources, new FrameFanOut(4), properties, pool,
+				registry);
+		mosaic.start();
+		try {
+			first.publish(TestFrames.jpegFrame(pool, 1280, 720));
+			final FrameSubscription viewer = mosaic.getFanOut().subscribe();
+			assertTrue(waitFor(() -> first.getSubscriberCount() == 1 && second.getSubscriberCount() == 1));
+
+			final BufferedImage grid = decode(viewer.take());
+			assertEquals(640, grid.getWidth());
+			assertEquals(180, grid.getHeight());
+
+			// neither a tile without a new frame nor an unchanged frame is encoded again
+			final Frame unchanged = TestFrames.jpegFrame(pool, 1280, 720);
+			unchanged.setUnchanged(true);
+			first.publish(unchanged);
+			final double ticks = unchangedTicks();
+			assertTrue(waitFor(() -> unchangedTicks() >= ticks + 2));
+			assertNull(viewer.poll());
+			assertEquals(1, registry.get("mjpg.mosaic.frames").counter().count());
+
+			second.publish(TestFrames.jpegFrame(pool, 640, 480));
+			decode(viewer.take());
+			assertEquals(2, registry.get("mjpg.mosaic.frames").counter().count());
+
+			mosaic.getFanOut().unsubscribe(viewer);
+			assertTrue(waitFor(() -> first.getSubscriberCount() == 0 && second.getSubscriberCount() == 0));
+		} finally {
+			mosaic.stop();
+		}
+	}
+
+	private double unchangedTicks() {
+		return registry.get("mjpg.mosaic.unchanged").counter().count();
+	}
+
+	private static boolean waitFor(final BooleanSupplier condition) throws InterruptedException {
+		for (int i = 0; i < 200 && !condition.getAsBoolean(); i++) {
+			Thread.sleep(10);
+		}
+		return condition.getAsBoolean();
+	}
+
+	private static BufferedImage decode(final Frame frame) throws IOException {
+		assertNotNull(frame);
+		try {
+			final byte[] jpeg = new byte[frame.getJpegLength()];
+			frame.getJpeg().get(jpeg);
+			return ImageIO.read(new ByteArrayInputStream(jpeg));
+		} finally {
+			frame.release();
+		}
+	}
+}
@@ -0,0 +1,134 @@
+package ch.mabaka.mjpg.multiplier.server.input;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import ch.mabaka.mjpg.multiplier.server.input.data.Frame;
+import ch.mabaka.mjpg.multiplier.server.input.data.FrameBufferPool;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class ProcessedStreamTest {
+
+	private final FrameBufferPool pool = new FrameBufferPool(4 * 1024 * 1024);
+
+	private final ExecutorService workers = Executors.newFixedThreadPool(4);
+
+	@AfterEach
+	void stopWorkers() {
+		workers.shutdownNow();
+	}
+
+	@Test
+	void keepsFrameOrderAcrossParallelStages() throws Exception {
+		final List<Long> seenInOrder = Collections.synchronizedList(new ArrayList<>());
+		final FrameStage slow = stage("slow", true, false, true, context -> Thread.sleep(
+				ThreadLocalRandom.current().nextInt(20)));
+		final FrameStage sequential = stage("sequential", false, false, false,
+				context -> seenInOrder.add(context.getTimestampMicros()));
+		final FrameFanOut source = new FrameFanOut(16);
+		final ProcessedStream output = new ProcessedStream("default", "tap", List.of(slow, sequential), false, source,
+				new FrameFanOut(16), new JpegTranscoder(0, 0.8f, pool), pool, workers, 16,
+				new SimpleMeterRegistry());
+		output.start();
+		final FrameSubscription viewer = output.getFanOut().subscribe();
+
+		for (int i = 1; i <= 8; i++) {
+			final Frame frame = pool.allocate(100);
+			frame.put(99, new byte[] { (byte) i }, 0, 1);
+			frame.setReceived(i, System.nanoTime());
+			source.publish(frame);
+		}
+		for (long expected = 1; expected <= 8; expected++) {
+			final Frame frame = viewer.take();
+			assertEquals(expected, frame.getTimestampMicros());
+			// an own copy of the JPEG, which was not changed by a stage
+			assertEquals(100, frame.getJpegLength());
+			final ByteBuffer jpeg = frame.getJpeg();
+			assertEquals(expected, jpeg.get(jpeg.position() + 99));
+			frame.release();
+		}
+		assertEquals(List.of(1L, 2L, 3L, 4L, 5L, 6L, 7L, 8L), seenInOrder);
+		output.stop();
+	}
+
+	@Test
+	void encodesPicturesChangedByAStage() throws Exception {
+		final FrameStage mask = stage("mask", true, true, true, context -> {
+			final Graphics2D graphics = context.getImage().createGraphics();
+			graphics.setColor(Color.WHITE);
+			graphics.fillRect(0, 0, 64, 64);
+			graphics.dispose();
+			context.markImageModified();
+		});
+		final FrameFanOut source = new FrameFanOut(4);
+		final ProcessedStream output = new ProcessedStream("default", "masked", List.of(mask), false, source,
+				new FrameFanOut(4), new JpegTranscoder(0, 0.9f, pool), pool, workers, 4,
+				new SimpleMeterRegistry());
+		output.start();
+		final FrameSubscription viewer = output.getFanOut().subscribe();
+		source.publish(TestFrames.jpegFrame(pool, 128, 128));
+
+		final Frame masked = viewer.take();
+		assertNotNull(masked);
+		final byte[] jpeg = new byte[masked.getJpegLength()];
+		masked.getJpeg().get(jpeg);
+		masked.release();
+		final BufferedImage image = ImageIO.read(new ByteArrayInputStream(jpeg));
+		assertEquals(128, image.getWidth());
+		assertEquals(0xFF, image.getRGB(10, 10) & 0xFF);
+		assertEquals(0, image.getRGB(100, 100) & 0xFF);
+		output.stop();
+	}
+
+	private interface StageBody {
+		void process(StageContext context) throws Exception;
+	}
+
+	private static FrameStage stage(final String name, final boolean asynchronous, final boolean needsImage,
+			final boolean parallel, final StageBody body) {
+		return new FrameStage() {
+
+			@Override
+			public String getName() {
+				return name;
+			}
+
+			@Override
+			public boolean isAsynchronous() {
+				return asynchronous;
+			}
+
+			@Override
+			public boolean needsImage() {
+				return needsImage;
+			}
+
+			@Override
+			public boolean isParallel() {
+				return parallel;
+			}
+
+			@Override
+			public void process(final StageContext context) throws Exception {
+				body.process(context);
+			}
+		};
+	}
+}
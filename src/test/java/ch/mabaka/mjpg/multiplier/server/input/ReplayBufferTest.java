@@ -0,0 +1,83 @@
+package ch.mabaka.mjpg.multiplier.server.input;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.time.Duration;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import ch.mabaka.mjpg.multiplier.server.input.data.Frame;
+import ch.mabaka.mjpg.multiplier.server.input.data.FrameBufferPool;
+
+class ReplayBufferTest {
+
+	private final FrameBufferPool pool = new FrameBufferPool(1024 * 1024);
+
+	@Test
+	void keepsTheNewestFramesWithinTheByteBudget() {
+		final Frame first = pool.allocate(100);
+		// the budget counts the pooled buffers, not the parts
+		final ReplayBuffer replayBuffer = new ReplayBuffer(Duration.ofMinutes(1), first.getBufferCapacity() * 3L);
+		final Frame[] frames = { first, pool.allocate(100), pool.allocate(100), pool.allocate(100) };
+		for (Frame frame : frames) {
+			replayBuffer.add(frame);
+			frame.release();
+		}
+
+		assertEquals(3, replayBuffer.getFrameCount());
+		assertEquals(3, pool.getUsedBufferCount());
+		assertEquals(first.getBufferCapacity() * 3L, replayBuffer.getBytes());
+		final List<Frame> replay = acquireAll(replayBuffer);
+		assertEquals(3, replay.size());
+		assertSame(frames[1], replay.get(0));
+		assertSame(frames[3], replay.get(2));
+		replay.forEach(Frame::release);
+		replayBuffer.clear();
+		assertEquals(0, pool.getUsedBufferCount());
+	}
+
+	@Test
+	void releasesFramesOlderThanTheDuration() throws InterruptedException {
+		final ReplayBuffer replayBuffer = new ReplayBuffer(Duration.ofMillis(50), 1024 * 1024);
+		final Frame old = pool.allocate(100);
+		replayBuffer.add(old);
+		old.release();
+		Thread.sleep(100);
+		final Frame recent = pool.allocate(100);
+		replayBuffer.add(recent);
+		recent.release();
+
+		final List<Frame> replay = acquireAll(replayBuffer);
+		assertEquals(List.of(recent), replay);
+		replay.forEach(Frame::release);
+		assertEquals(1, pool.getUsedBufferCount());
+	}
+
+	@Test
+	void acquiresAFewFramesAtATime() {
+		final ReplayBuffer replayBuffer = new ReplayBuffer(Duration.ofMinutes(1), 1024 * 1024);
+		final Frame[] frames = new Frame[5];
+		final long start = System.nanoTime();
+		for (int i = 0; i < frames.length; i++) {
+			frames[i] = pool.allocate(100);
+			frames[i].setReceived(i, start + i);
+			replayBuffer.add(frames[i]);
+			frames[i].release();
+		}
+
+		final List<Frame> first = replayBuffer.acquire(start, start + 3, 2);
+		assertEquals(List.of(frames[1], frames[2]), first);
+		first.forEach(Frame::release);
+		final List<Frame> next = replayBuffer.acquire(start + 2, start + 3, 2);
+		assertEquals(List.of(frames[3]), next);
+		next.forEach(Frame::release);
+		assertEquals(List.of(), replayBuffer.acquire(start + 3, start + 3, 2));
+		replayBuffer.clear();
+	}
+
+	private static List<Frame> acquireAll(final ReplayBuffer replayBuffer) {
+		return replayBuffer.acquire(Long.MIN_VALUE, System.nanoTime(), Integer.MAX_VALUE);
+	}
+}
@@ -0,0 +1,116 @@
+package ch.mabaka.mjpg.multiplier.server.input;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import ch.mabaka.mjpg.multiplier.server.input.data.Frame;
+import ch.mabaka.mjpg.multiplier.server.input.data.FrameBufferPool;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.search.RequiredSearch;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class StreamMetricsTest {
+
+	private static final int[] JPEG_SIZES = { 100, 200, 300 };
+
+	private final MeterRegistry registry = new SimpleMeterRegistry();
+
+	private final FrameFanOut fanOut = new FrameFanOut(16);
+
+	private final CountDownLatch stopped = new CountDownLatch(1);
+
+	private MjpegStreamReader reader;
+
+	@AfterEach
+	void stop() {
+		stopped.countDown();
+		reader.stopReading();
+		fanOut.shutdown();
+	}
+
+	@Test
+	void countsIngestAndEgressOfAStream() throws Exception {
+		final byte[] stream = mjpeg();
+		final AtomicInteger connections = new AtomicInteger();
+		final IInputStreamProvider camera = () -> connections.incrementAndGet() == 1 ? new ByteArrayInputStream(stream)
+				: new InputStream() {
+
+					@Override
+					public int read() {
+						// connected again after the end of the stream, waits for the end of the test
+						try {
+							stopped.await();
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+						return -1;
+					}
+				};
+		final StreamWatchdog watchdog = new StreamWatchdog(5, 25, Duration.ofSeconds(10));
+		final ReplayBuffer replayBuffer = new ReplayBuffer(Duration.ZERO, 0);
+		final FrameBufferPool pool = new FrameBufferPool(1024 * 1024);
+		final StreamMetrics metrics = new StreamMetrics("default", fanOut, watchdog, replayBuffer, registry);
+		reader = new MjpegStreamReader("default", camera, fanOut, pool, metrics, watchdog,
+				new FrameChangeDetector(false, 0), replayBuffer, null);
+		final FrameSubscription viewer = fanOut.subscribe();
+		assertEquals(1, meter("mjpg.fanout.viewers").gauge().value());
+
+		reader.init();
+		long partBytes = 0;
+		for (int i = 0; i < JPEG_SIZES.length; i++) {
+			final Frame frame = viewer.take();
+			viewer.recordWritten(frame);
+			partBytes += frame.getPartLength();
+			frame.release();
+		}
+		for (int i = 0; i < 200 && connections.get() < 2; i++) {
+			Thread.sleep(10);
+		}
+
+		assertEquals(3, meter("mjpg.ingest.frames").counter().count());
+		assertEquals(stream.length, meter("mjpg.ingest.bytes").counter().count());
+		assertEquals(3, meter("mjpg.ingest.frame.size").summary().count());
+		assertEquals(600, meter("mjpg.ingest.frame.size").summary().totalAmount());
+		assertEquals(3, meter("mjpg.ingest.parse.time").timer().count());
+		assertEquals(3, meter("mjpg.fanout.publish.time").timer().count());
+		assertEquals(1, meter("mjpg.ingest.reconnects").counter().count());
+		assertTrue(meter("mjpg.ingest.last.frame.age").gauge().value() >= 0);
+		assertEquals(partBytes, meter("mjpg.egress.bytes").functionCounter().count());
+		assertEquals(3, meter("mjpg.frame.latency").tag("stage", "written").timer().count());
+		assertEquals(0, meter("mjpg.fanout.viewer.lag.max").gauge().value());
+		assertEquals(0, meter("mjpg.fanout.dropped").functionCounter().count());
+
+		fanOut.unsubscribe(viewer);
+		assertEquals(0, meter("mjpg.fanout.viewers").gauge().value());
+	}
+
+	private RequiredSearch meter(final String name) {
+		return registry.get(name).tag("stream", "default");
+	}
+
+	private static byte[] mjpeg() {
+		final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		for (int size : JPEG_SIZES) {
+			final byte[] jpeg = new byte[size];
+			jpeg[0] = (byte) 0xFF;
+			jpeg[1] = (byte) 0xD8;
+			jpeg[size - 2] = (byte) 0xFF;
+			jpeg[size - 1] = (byte) 0xD9;
+			stream.writeBytes(("--FRAME\r\nContent-Type: image/jpeg\r\nContent-Length: " + size + "\r\n\r\n")
+					.getBytes());
+			stream.writeBytes(jpeg);
+			stream.writeBytes("\r\n".getBytes());
+		}
+		return stream.toByteArray();
+	}
+}
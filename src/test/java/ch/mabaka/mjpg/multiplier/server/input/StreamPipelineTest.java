@@ -0,0 +1,125 @@
+package ch.mabaka.mjpg.multiplier.server.input;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+
+import ch.mabaka.mjpg.multiplier.server.input.data.FrameBufferPool;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class StreamPipelineTest {
+
+	private final Camera camera = new Camera();
+
+	private final ThreadPoolTaskScheduler taskScheduler = new ThreadPoolTaskScheduler();
+
+	private final FrameFanOut fanOut = new FrameFanOut(4);
+
+	private StreamPipeline pipeline;
+
+	@AfterEach
+	void stop() {
+		pipeline.stop();
+		taskScheduler.shutdown();
+	}
+
+	@Test
+	void connectsForTheFirstViewerAndDisconnectsAfterTheLinger() throws InterruptedException {
+		start(Duration.ofMillis(200));
+		assertTrue(pipeline.getReader().isIdle());
+		assertEquals(0, camera.connections.get());
+
+		final FrameSubscription viewer = fanOut.subscribe();
+		assertTrue(waitFor(() -> camera.connections.get() == 1));
+		assertFalse(pipeline.getReader().isIdle());
+
+		fanOut.unsubscribe(viewer);
+		assertFalse(pipeline.getReader().isIdle());
+		assertTrue(waitFor(() -> pipeline.getReader().isIdle()));
+		assertTrue(waitFor(() -> camera.openStreams.get() == 0));
+	}
+
+	@Test
+	void staysConnectedWhenAViewerReturnsWithinTheLinger() throws InterruptedException {
+		start(Duration.ofMillis(300));
+		fanOut.unsubscribe(fanOut.subscribe());
+		final FrameSubscription viewer = fanOut.subscribe();
+		assertTrue(waitFor(() -> camera.connections.get() == 1));
+
+		// longer than the linger, the disconnect scheduled for the first viewer has been cancelled
+		Thread.sleep(500);
+		assertFalse(pipeline.getReader().isIdle());
+		assertEquals(1, camera.connections.get());
+		assertEquals(1, camera.openStreams.get());
+		fanOut.unsubscribe(viewer);
+	}
+
+	private void start(final Duration linger) {
+		taskScheduler.initialize();
+		final FrameBufferPool pool = new FrameBufferPool(1024 * 1024);
+		final StreamWatchdog watchdog = new StreamWatchdog(5, 25, Duration.ofSeconds(10));
+		final ReplayBuffer replayBuffer = new ReplayBuffer(Duration.ZERO, 0);
+		final StreamMetrics metrics = new StreamMetrics("default", fanOut, watchdog, replayBuffer,
+				new SimpleMeterRegistry());
+		final MjpegStreamReader reader = new MjpegStreamReader("default", camera,
+				fanOut, pool, metrics, watchdog, new FrameChangeDetector(false, 0), replayBuffer, null);
+		pipeline = new StreamPipeline("default", camera, fanOut, reader, replayBuffer, null, null,
+				taskScheduler, linger, 0, Map.of(), Map.of());
+		pipeline.start();
+	}
+
+	private static boolean waitFor(final BooleanSupplier condition) throws InterruptedException {
+		for (int i = 0; i < 200 && !condition.getAsBoolean(); i++) {
+			Thread.sleep(10);
+		}
+		return condition.getAsBoolean();
+	}
+
+	/**
+	 * A camera which never sends a frame, its streams block until they are closed.
+	 */
+	private static final class Camera implements IInputStreamProvider {
+
+		private final AtomicInteger connections = new AtomicInteger();
+
+		private final AtomicInteger openStreams = new AtomicInteger();
+
+		@Override
+		public InputStream getInputStream() {
+			connections.incrementAndGet();
+			openStreams.incrementAndGet();
+			final CountDownLatch closed = new CountDownLatch(1);
+			return new InputStream() {
+
+				@Override
+				public int read() {
+					try {
+						closed.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					return -1;
+				}
+
+				@Override
+				public void close() {
+					if (closed.getCount() > 0) {
+						closed.countDown();
+						openStreams.decrementAndGet();
+					}
+				}
+			};
+		}
+	}
+}
@@ -0,0 +1,111 @@
+package ch.mabaka.mjpg.multiplier.server.input;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+import org.springframework.util.unit.DataSize;
+
+import ch.mabaka.mjpg.multiplier.server.config.GatingProperties;
+import ch.mabaka.mjpg.multiplier.server.config.MosaicProperties;
+import ch.mabaka.mjpg.multiplier.server.config.MyStromProperties;
+import ch.mabaka.mjpg.multiplier.server.config.ProcessingProperties;
+import ch.mabaka.mjpg.multiplier.server.config.RecordingProperties;
+import ch.mabaka.mjpg.multiplier.server.config.ReplayProperties;
+import ch.mabaka.mjpg.multiplier.server.config.StreamSourcesProperties;
+import ch.mabaka.mjpg.multiplier.server.config.TranscodeProperties;
+import ch.mabaka.mjpg.multiplier.server.config.WatchdogProperties;
+import ch.mabaka.mjpg.multiplier.server.input.data.FrameBufferPool;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class StreamRegistryTest {
+
+	private final StreamSourcesProperties sources = new StreamSourcesProperties();
+
+	private final TranscodeProperties transcodeProperties = new TranscodeProperties();
+
+	private final ProcessingProperties processingProperties = new ProcessingProperties();
+
+	private final List<StreamRegistry> registries = new ArrayList<>();
+
+	@AfterEach
+	void stop() {
+		registries.forEach(StreamRegistry::stop);
+	}
+
+	@Test
+	void servesTheDefaultSourceFirstAndTheNamedSourcesByName() {
+		sources.setUrl("http://127.0.0.1:1/stream.mjpg");
+		sources.setSources(List.of(source("front-door"), source("garden_2")));
+		final StreamRegistry registry = createRegistry();
+
+		assertEquals(StreamSourcesProperties.DEFAULT_SOURCE, registry.getDefaultPipeline().getName());
+		assertEquals(List.of("default", "front-door", "garden_2"),
+				registry.getPipelines().stream().map(StreamPipeline::getName).toList());
+		assertEquals("garden_2", registry.getPipeline("garden_2").getName());
+		assertNull(registry.getPipeline("garage"));
+	}
+
+	@Test
+	void servesTheFirstNamedSourceWithoutADefaultSource() {
+		sources.setSources(List.of(source("garden"), source("front")));
+		assertEquals("garden", createRegistry().getDefaultPipeline().getName());
+	}
+
+	@Test
+	void rejectsSourceNamesNotFitForAPath() {
+		for (String name : new String[] { "front door", "../default", "garden/2", "" }) {
+			sources.setSources(List.of(source(name)));
+			final IllegalStateException e = assertThrows(IllegalStateException.class, this::createRegistry);
+			assertTrue(e.getMessage().startsWith("Invalid stream source name"), e.getMessage());
+		}
+	}
+
+	@Test
+	void rejectsDuplicateSourceNames() {
+		sources.setUrl("http://127.0.0.1:1/stream.mjpg");
+		sources.setSources(List.of(source("default")));
+		final IllegalStateException e = assertThrows(IllegalStateException.class, this::createRegistry);
+		assertEquals("Duplicate stream source name: default", e.getMessage());
+	}
+
+	@Test
+	void rejectsInvalidProfileAndOutputNames() {
+		sources.setUrl("http://127.0.0.1:1/stream.mjpg");
+		transcodeProperties.getProfiles().put("thumb/small", new TranscodeProperties.Profile());
+		assertThrows(IllegalStateException.class, this::createRegistry);
+
+		transcodeProperties.getProfiles().clear();
+		processingProperties.getOutputs().put("masked?", new ProcessingProperties.Output());
+		assertThrows(IllegalStateException.class, this::createRegistry);
+	}
+
+	private static StreamSourcesProperties.Source source(final String name) {
+		final StreamSourcesProperties.Source source = new StreamSourcesProperties.Source();
+		source.setName(name);
+		source.setUrl("http://127.0.0.1:1/" + name + ".mjpg");
+		return source;
+	}
+
+	private StreamRegistry createRegistry() {
+		// no switch powers the default source
+		final MyStromProperties myStromProperties = new MyStromProperties();
+		myStromProperties.setBaseUrl("");
+		final StreamRegistry registry = new StreamRegistry(sources, new WatchdogProperties(), new GatingProperties(),
+				new ReplayProperties(), myStromProperties, transcodeProperties, new RecordingProperties(),
+				new MosaicProperties(), processingProperties,
+				new StaticListableBeanFactory().getBeanProvider(FrameStage.class), new FrameBufferPool(1024 * 1024),
+				new SlowConsumerPolicy(SlowConsumerPolicy.Mode.RING_BUFFER, DataSize.ofMegabytes(8), 0, 0),
+				new SimpleMeterRegistry(), new ThreadPoolTaskScheduler());
+		registries.add(registry);
+		return registry;
+	}
+}
@@ -0,0 +1,58 @@
+package ch.mabaka.mjpg.multiplier.server.input;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class StreamWatchdogTest {
+
+	private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	@Test
+	void stallsAfterMissedFramesButNotBeforeMinimumStallTime() {
+		final StreamWatchdog watchdog = new StreamWatchdog(3, 10, Duration.ofSeconds(2));
+		watchdog.onConnected(0);
+		long now = 0;
+		for (int i = 0; i < 10; i++) {
+			now += 100 * MS;
+			watchdog.onFrame(now);
+		}
+		assertEquals(100 * MS, watchdog.getFrameIntervalNanos());
+		assertEquals(StreamWatchdog.State.UP, watchdog.check(now + 250 * MS));
+		assertEquals(StreamWatchdog.State.DEGRADED, watchdog.check(now + 350 * MS));
+		// ten frames missed, but within the minimum stall time
+		assertEquals(StreamWatchdog.State.DEGRADED, watchdog.check(now + 1500 * MS));
+		assertEquals(StreamWatchdog.State.STALLED, watchdog.check(now + 2000 * MS));
+		assertEquals(1, watchdog.getConsecutiveStalls());
+
+		watchdog.onDisconnected();
+		assertEquals(StreamWatchdog.State.UP, watchdog.check(now + 2100 * MS));
+		watchdog.onConnected(now + 2100 * MS);
+		// learned anew after the stall, one frame per second is assumed until then
+		assertEquals(TimeUnit.SECONDS.toNanos(1), watchdog.getFrameIntervalNanos());
+		assertEquals(StreamWatchdog.State.STALLED, watchdog.check(now + 12100 * MS));
+		assertEquals(2, watchdog.getConsecutiveStalls());
+
+		watchdog.onConnected(now + 12200 * MS);
+		watchdog.onFrame(now + 12300 * MS);
+		assertEquals(0, watchdog.getConsecutiveStalls());
+		assertEquals(2, watchdog.getStalls());
+	}
+
+	@Test
+	void gapsAreNotLearned() {
+		final StreamWatchdog watchdog = new StreamWatchdog(3, 10, Duration.ofSeconds(2));
+		watchdog.onConnected(0);
+		long now = 0;
+		for (int i = 0; i < 6; i++) {
+			now += 100 * MS;
+			watchdog.onFrame(now);
+		}
+		now += 5000 * MS;
+		watchdog.onFrame(now);
+		assertEquals(100 * MS, watchdog.getFrameIntervalNanos());
+	}
+}
@@ -0,0 +1,44 @@
+package ch.mabaka.mjpg.multiplier.server.input;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+import ch.mabaka.mjpg.multiplier.server.input.data.Frame;
+import ch.mabaka.mjpg.multiplier.server.input.data.FrameBufferPool;
+
+/**
+ * Frames holding real JPEGs for the tests which decode them, also for the stages tested outside of this package.
+ */
+public final class TestFrames {
+
+	private TestFrames() {
+	}
+
+	/**
+	 * @return a frame with a black JPEG of the given size
+	 */
+	public static Frame jpegFrame(final FrameBufferPool pool, final int width, final int height) throws IOException {
+		return jpegFrame(pool, new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB));
+	}
+
+	/**
+	 * @return a frame with the picture encoded as JPEG
+	 */
+	public static Frame jpegFrame(final FrameBufferPool pool, final BufferedImage picture) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ImageIO.write(picture, "jpeg", bytes);
+		final Frame frame = pool.allocate(bytes.size());
+		frame.put(0, bytes.toByteArray(), 0, bytes.size());
+		return frame;
+	}
+
+	/**
+	 * @return the frame as a stage of an output of the stream sees it
+	 */
+	public static StageContext stageContext(final String streamName, final Frame frame) {
+		return new StageContext(streamName, "test", frame);
+	}
+}
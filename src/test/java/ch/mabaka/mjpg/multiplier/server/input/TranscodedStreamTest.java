@@ -0,0 +1,51 @@
+package ch.mabaka.mjpg.multiplier.server.input;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.Test;
+
+import ch.mabaka.mjpg.multiplier.server.input.data.Frame;
+import ch.mabaka.mjpg.multiplier.server.input.data.FrameBufferPool;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class TranscodedStreamTest {
+
+	private final FrameBufferPool pool = new FrameBufferPool(4 * 1024 * 1024);
+
+	@Test
+	void transcodesOnlyWhileTheProfileHasViewers() throws Exception {
+		final FrameFanOut source = new FrameFanOut(4);
+		final TranscodedStream profile = new TranscodedStream("default", "thumb", source,
+				new FrameFanOut(4), new JpegTranscoder(320, 0.6f, pool), Runnable::run,
+				new SimpleMeterRegistry());
+		profile.start();
+		assertEquals(0, source.getSubscriberCount());
+
+		final FrameSubscription viewer = profile.getFanOut().subscribe();
+		assertEquals(1, source.getSubscriberCount());
+		final Frame original = TestFrames.jpegFrame(pool, 1280, 720);
+		source.publish(original);
+
+		final Frame thumb = viewer.take();
+		assertNotNull(thumb);
+		try {
+			final byte[] jpeg = new byte[thumb.getJpegLength()];
+			thumb.getJpeg().get(jpeg);
+			final BufferedImage image = ImageIO.read(new ByteArrayInputStream(jpeg));
+			assertEquals(320, image.getWidth());
+			assertEquals(180, image.getHeight());
+			assertEquals(original.getTimestampMicros(), thumb.getTimestampMicros());
+		} finally {
+			thumb.release();
+		}
+
+		profile.getFanOut().unsubscribe(viewer);
+		assertEquals(0, source.getSubscriberCount());
+	}
+}
@@ -0,0 +1,85 @@
+package ch.mabaka.mjpg.multiplier.server.motion;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+import org.junit.jupiter.api.Test;
+
+class JpegDcDecoderTest {
+
+	@Test
+	void readsTheBrightnessOfTheBlocks() throws IOException {
+		final BufferedImage picture = new BufferedImage(203, 101, BufferedImage.TYPE_INT_RGB);
+		final Graphics2D graphics = picture.createGraphics();
+		graphics.setPaint(new GradientPaint(0, 0, Color.BLACK, 203, 101, Color.WHITE));
+		graphics.fillRect(0, 0, 203, 101);
+		graphics.setColor(Color.RED);
+		graphics.fillRect(40, 24, 48, 32);
+		graphics.dispose();
+		final byte[] jpeg = encode(picture, false);
+
+		final LumaGrid grid = new JpegDcDecoder().decode(ByteBuffer.wrap(jpeg));
+		assertEquals(203, grid.getWidth());
+		assertEquals(26, grid.getColumns());
+		assertEquals(13, grid.getRows());
+		// the mean of each block of the fully decoded picture
+		final LumaGrid decoded = LumaGrid.of(ImageIO.read(new ByteArrayInputStream(jpeg)), 203, 101);
+		for (int y = 0; y < grid.getRows(); y++) {
+			for (int x = 0; x < grid.getColumns(); x++) {
+				assertEquals(blockMean(decoded, x, y), grid.getLuma()[y * grid.getColumns() + x], 3,
+						"block " + x + "," + y);
+			}
+		}
+	}
+
+	@Test
+	void leavesProgressivePicturesToImageIo() throws IOException {
+		final byte[] jpeg = encode(new BufferedImage(64, 64, BufferedImage.TYPE_INT_RGB), true);
+		assertNull(new JpegDcDecoder().decode(ByteBuffer.wrap(jpeg)));
+	}
+
+	private static float blockMean(final LumaGrid pixels, final int column, final int row) {
+		float sum = 0;
+		int count = 0;
+		for (int y = row * 8; y < Math.min(pixels.getRows(), row * 8 + 8); y++) {
+			for (int x = column * 8; x < Math.min(pixels.getColumns(), column * 8 + 8); x++) {
+				sum += pixels.getLuma()[y * pixels.getColumns() + x];
+				count++;
+			}
+		}
+		return sum / count;
+	}
+
+	private static byte[] encode(final BufferedImage picture, final boolean progressive) throws IOException {
+		final ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (MemoryCacheImageOutputStream output = new MemoryCacheImageOutputStream(bytes)) {
+			writer.setOutput(output);
+			final ImageWriteParam param = writer.getDefaultWriteParam();
+			param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			param.setCompressionQuality(0.9f);
+			if (progressive) {
+				param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+			}
+			writer.write(null, new IIOImage(picture, null, null), param);
+		} finally {
+			writer.dispose();
+		}
+		return bytes.toByteArray();
+	}
+}
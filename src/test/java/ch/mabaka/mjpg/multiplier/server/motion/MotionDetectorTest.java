@@ -0,0 +1,156 @@
+package ch.mabaka.mjpg.multiplier.server.motion;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import ch.mabaka.mjpg.multiplier.server.config.MotionProperties;
+import ch.mabaka.mjpg.multiplier.server.input.TestFrames;
+import ch.mabaka.mjpg.multiplier.server.input.data.Frame;
+import ch.mabaka.mjpg.multiplier.server.input.data.FrameBufferPool;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class MotionDetectorTest {
+
+	private static final long START_MICROS = 1_700_000_000_000_000L;
+
+	private static final long FRAME_INTERVAL_MICROS = 100_000;
+
+	private final FrameBufferPool pool = new FrameBufferPool(1024 * 1024);
+
+	private final MotionDetector detector = new MotionDetector(new MotionProperties(), new SimpleMeterRegistry());
+
+	private final BlockingQueue<MotionEvent> events = new LinkedBlockingQueue<>();
+
+	private Frame still;
+
+	private Frame moved;
+
+	@BeforeEach
+	void setUp() throws IOException {
+		detector.addListener(events::add);
+		still = TestFrames.jpegFrame(pool, picture(false));
+		moved = TestFrames.jpegFrame(pool, picture(true));
+	}
+
+	@AfterEach
+	void shutdown() {
+		detector.shutdown();
+	}
+
+	@Test
+	void seesNoMotionOnAStaticPicture() throws Exception {
+		for (int i = 0; i < 30; i++) {
+			process(still, i);
+		}
+		assertNull(events.poll(200, TimeUnit.MILLISECONDS));
+		assertFalse(detector.isMotion("default"));
+		assertTrue(detector.isJudged("default", time(29), System.nanoTime()));
+		assertFalse(detector.isMotionAt("default", time(29)));
+	}
+
+	@Test
+	void startsTheMotionWithTheRegionOfTheChangedBlocks() throws Exception {
+		for (int i = 0; i < 5; i++) {
+			process(still, i);
+		}
+		assertFalse(detector.isJudged("default", time(5), System.nanoTime()));
+		// received longer than the hold time ago, not held back by a stalled detection
+		assertTrue(detector.isJudged("default", time(5), System.nanoTime() - TimeUnit.SECONDS.toNanos(3)));
+
+		process(moved, 5);
+		assertTrue(detector.isJudged("default", time(5), System.nanoTime()));
+		assertTrue(detector.isMotion("default"));
+		final MotionEvent event = events.poll(2, TimeUnit.SECONDS);
+		assertNotNull(event);
+		assertTrue(event.isActive());
+		assertEquals("default", event.getStream());
+		assertEquals(time(5), micros(event));
+		// 4 x 2 of the 16 x 8 blocks
+		assertEquals(8.0 / 128, event.getScore(), 1e-9);
+		assertEquals(32, event.getRegion().getX());
+		assertEquals(16, event.getRegion().getY());
+		assertEquals(32, event.getRegion().getWidth());
+		assertEquals(16, event.getRegion().getHeight());
+	}
+
+	@Test
+	void endsTheMotionOnceTheBackgroundHasAdaptedAndTheHoldTimeHasPassed() throws Exception {
+		for (int i = 0; i < 5; i++) {
+			process(still, i);
+		}
+		// the change stays, the background adapts to it until it no longer counts as motion
+		for (int i = 5; i < 120; i++) {
+			process(moved, i);
+		}
+		final List<MotionEvent> received = new ArrayList<>();
+		MotionEvent event;
+		while ((event = events.poll(500, TimeUnit.MILLISECONDS)) != null) {
+			received.add(event);
+		}
+
+		assertTrue(received.size() > 2, received.size() + " events");
+		assertEquals(time(5), micros(received.get(0)));
+		// every second while the motion goes on
+		for (int i = 1; i < received.size() - 1; i++) {
+			assertTrue(received.get(i).isActive());
+			assertEquals(1_000_000, micros(received.get(i)) - micros(received.get(i - 1)));
+		}
+		final MotionEvent end = received.get(received.size() - 1);
+		assertFalse(end.isActive());
+		assertNull(end.getRegion());
+		final long endMicros = micros(end);
+		assertTrue(endMicros < time(119), "no end while the picture still showed the change");
+		assertFalse(detector.isMotion("default"));
+
+		assertFalse(detector.isMotionAt("default", time(4)));
+		assertTrue(detector.isMotionAt("default", time(5)));
+		assertTrue(detector.isMotionAt("default", endMicros - FRAME_INTERVAL_MICROS));
+		assertFalse(detector.isMotionAt("default", endMicros));
+	}
+
+	private void process(final Frame frame, final int number) throws IOException {
+		frame.setReceived(time(number), System.nanoTime());
+		detector.process(TestFrames.stageContext("default", frame));
+	}
+
+	private static long time(final int number) {
+		return START_MICROS + number * FRAME_INTERVAL_MICROS;
+	}
+
+	private static long micros(final MotionEvent event) {
+		return event.getTimestamp().toEpochMilli() * 1000;
+	}
+
+	/**
+	 * @return a gray picture of 16 x 8 blocks, with a white area covering 4 x 2 blocks if moved
+	 */
+	private static BufferedImage picture(final boolean moved) {
+		final BufferedImage picture = new BufferedImage(128, 64, BufferedImage.TYPE_INT_RGB);
+		final Graphics2D graphics = picture.createGraphics();
+		graphics.setColor(Color.DARK_GRAY);
+		graphics.fillRect(0, 0, 128, 64);
+		if (moved) {
+			graphics.setColor(Color.WHITE);
+			graphics.fillRect(32, 16, 32, 16);
+		}
+		graphics.dispose();
+		return picture;
+	}
+}
@@ -0,0 +1,71 @@
+package ch.mabaka.mjpg.multiplier.server.recording;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+import ch.mabaka.mjpg.multiplier.server.config.RecordingProperties;
+import ch.mabaka.mjpg.multiplier.server.input.FrameFanOut;
+import ch.mabaka.mjpg.multiplier.server.input.data.Frame;
+import ch.mabaka.mjpg.multiplier.server.input.data.FrameBufferPool;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class FrameRecorderTest {
+
+	private static final long START_MICROS = 1_700_000_000_000_000L;
+
+	private static final long FRAME_INTERVAL_MICROS = 100_000;
+
+	@TempDir
+	Path directory;
+
+	private final FrameBufferPool pool = new FrameBufferPool(1024 * 1024);
+
+	@Test
+	void playsBackTheFramesOfAPeriodAcrossSegments() throws Exception {
+		final RecordingProperties properties = new RecordingProperties();
+		properties.setDirectory(directory.toString());
+		properties.setSegmentSize(DataSize.ofBytes(1024));
+		properties.setSyncInterval(Duration.ofMillis(50));
+		final FrameFanOut fanOut = new FrameFanOut(32);
+		final FrameRecorder recorder = new FrameRecorder("default", fanOut, properties, new SimpleMeterRegistry());
+		recorder.start();
+		try {
+			for (int i = 0; i < 10; i++) {
+				final Frame frame = pool.allocate(100);
+				frame.put(0, new byte[] { (byte) i }, 0, 1);
+				frame.setReceived(START_MICROS + i * FRAME_INTERVAL_MICROS, System.nanoTime());
+				fanOut.publish(frame);
+			}
+
+			final List<ByteBuffer> played = new ArrayList<>();
+			final long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+			while (recorder.play(START_MICROS, Long.MAX_VALUE, 1000, part -> {
+			}) < 10) {
+				assertTrue(System.nanoTime() < deadline, "frames not recorded in time");
+				Thread.sleep(10);
+			}
+			recorder.play(START_MICROS + 2 * FRAME_INTERVAL_MICROS, START_MICROS + 5 * FRAME_INTERVAL_MICROS, 1000,
+					played::add);
+
+			assertEquals(4, played.size());
+			for (int i = 0; i < played.size(); i++) {
+				final ByteBuffer part = played.get(i);
+				// the JPEG data is the last part before the trailing line break
+				assertEquals(i + 2, part.get(part.limit() - 2 - 100));
+			}
+			assertTrue(RecordingSegment.list(directory.resolve("default")).size() > 1);
+		} finally {
+			recorder.stop();
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package ch.mabaka.mjpg.multiplier.server.rest;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockAsyncContext;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import ch.mabaka.mjpg.multiplier.server.input.FrameFanOut;
+import ch.mabaka.mjpg.multiplier.server.input.data.Frame;
+import ch.mabaka.mjpg.multiplier.server.input.data.FrameBufferPool;
+import jakarta.servlet.AsyncEvent;
+
+class FrameLongPollTest {
+
+	private final FrameBufferPool pool = new FrameBufferPool(1024 * 1024);
+
+	private final FrameFanOut fanOut = new FrameFanOut(16);
+
+	private final MockHttpServletResponse response = new MockHttpServletResponse();
+
+	private final AsyncContext asyncContext = new AsyncContext(response);
+
+	@AfterEach
+	void shutdown() {
+		fanOut.shutdown();
+	}
+
+	@Test
+	void sendsTheAwaitedFrame() throws InterruptedException {
+		publish(0);
+		new FrameLongPoll(asyncContext, fanOut).start(1, 10_000);
+		assertFalse(asyncContext.completed);
+
+		publish(1);
+		asyncContext.runNextTask();
+		assertTrue(asyncContext.completed);
+		assertEquals("1", response.getHeader(Frame.SEQUENCE_HEADER));
+		assertArrayEquals(new byte[] { 1 }, response.getContentAsByteArray());
+	}
+
+	@Test
+	void waitsAgainWhenWokenByAnOlderFrame() throws InterruptedException {
+		publish(0);
+		new FrameLongPoll(asyncContext, fanOut).start(2, 10_000);
+
+		publish(1);
+		asyncContext.runNextTask();
+		assertFalse(asyncContext.completed);
+
+		publish(2);
+		asyncContext.runNextTask();
+		assertTrue(asyncContext.completed);
+		assertEquals("2", response.getHeader(Frame.SEQUENCE_HEADER));
+	}
+
+	@Test
+	void answersNoContentWhenTimingOutAfterAnOlderFrame() throws InterruptedException {
+		publish(0);
+		final FrameLongPoll longPoll = new FrameLongPoll(asyncContext, fanOut);
+		longPoll.start(2, 10_000);
+		publish(1);
+		asyncContext.runNextTask();
+
+		longPoll.onTimeout(new AsyncEvent(asyncContext));
+		assertTrue(asyncContext.completed);
+		assertEquals(204, response.getStatus());
+		publish(2);
+		assertEquals(0, response.getContentAsByteArray().length);
+	}
+
+	@Test
+	void answersServiceUnavailableWhenTheStreamIsShutDownWhileWaking() throws InterruptedException {
+		publish(0);
+		new FrameLongPoll(asyncContext, fanOut).start(1, 10_000);
+		publish(1);
+		fanOut.shutdown();
+
+		asyncContext.runNextTask();
+		assertTrue(asyncContext.completed);
+		assertEquals(503, response.getStatus());
+	}
+
+	private void publish(final int number) {
+		final Frame frame = pool.allocate(1);
+		frame.put(0, new byte[] { (byte) number }, 0, 1);
+		fanOut.publish(frame);
+	}
+
+	/**
+	 * Runs the tasks handed to a container thread when the test asks for it.
+	 */
+	private static final class AsyncContext extends MockAsyncContext {
+
+		private final BlockingQueue<Runnable> tasks = new LinkedBlockingQueue<>();
+
+		private volatile boolean completed;
+
+		private AsyncContext(final MockHttpServletResponse response) {
+			super(new MockHttpServletRequest(), response);
+		}
+
+		@Override
+		public void start(final Runnable task) {
+			tasks.add(task);
+		}
+
+		@Override
+		public void complete() {
+			completed = true;
+			super.complete();
+		}
+
+		private void runNextTask() throws InterruptedException {
+			final Runnable task = tasks.poll(2, TimeUnit.SECONDS);
+			assertTrue(task != null, "no frame has woken the long-poll");
+			task.run();
+		}
+	}
+}
@@ -0,0 +1,187 @@
+package ch.mabaka.mjpg.multiplier.server.rest;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockAsyncContext;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import ch.mabaka.mjpg.multiplier.server.input.FrameFanOut;
+import ch.mabaka.mjpg.multiplier.server.input.FrameSubscription;
+import ch.mabaka.mjpg.multiplier.server.input.data.Frame;
+import ch.mabaka.mjpg.multiplier.server.input.data.FrameBufferPool;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+
+class NonBlockingFrameStreamTest {
+
+	private final FrameBufferPool pool = new FrameBufferPool(1024 * 1024);
+
+	private final FrameFanOut fanOut = new FrameFanOut(16);
+
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+	private final SocketOutput output = new SocketOutput();
+
+	private final AsyncContext asyncContext = new AsyncContext();
+
+	@AfterEach
+	void stopScheduler() {
+		scheduler.shutdownNow();
+	}
+
+	@Test
+	void writesAvailableFramesAndResumesOnPublish() throws InterruptedException {
+		final FrameSubscription subscription = fanOut.subscribe();
+		publish(1);
+		publish(2);
+		start(subscription);
+		assertEquals(List.of(1, 2), output.frames);
+
+		// caught up, the next publish resumes writing on the notification thread, no thread waits for it
+		publish(3);
+		assertTrue(waitFor(() -> output.frames.size() == 3));
+		assertEquals(List.of(1, 2, 3), output.frames);
+	}
+
+	@Test
+	void resumesWhenTheSocketCanTakeMoreData() throws IOException {
+		final FrameSubscription subscription = fanOut.subscribe();
+		publish(1);
+		publish(2);
+		publish(3);
+		output.writesUntilBlocked = 1;
+		start(subscription);
+		assertEquals(List.of(1), output.frames);
+
+		output.writesUntilBlocked = 1;
+		output.becomeReady();
+		assertEquals(List.of(1, 2), output.frames);
+
+		output.writesUntilBlocked = Integer.MAX_VALUE;
+		output.becomeReady();
+		assertEquals(List.of(1, 2, 3), output.frames);
+	}
+
+	@Test
+	void resumesAViewerWithAFrameRateLimitWhenItsNextFrameIsDue() throws InterruptedException {
+		final FrameSubscription subscription = fanOut.subscribe();
+		subscription.setMaxFrameRate(5);
+		publish(1);
+		start(subscription);
+		publish(2);
+		assertEquals(List.of(1), output.frames);
+
+		// the scheduler resumes the viewer after 200 ms
+		assertTrue(waitFor(() -> output.frames.size() == 2));
+		assertEquals(List.of(1, 2), output.frames);
+	}
+
+	@Test
+	void unsubscribesWhenTheRequestCompletes() {
+		start(fanOut.subscribe());
+		assertEquals(1, fanOut.getSubscriberCount());
+
+		asyncContext.complete();
+		assertEquals(0, fanOut.getSubscriberCount());
+		publish(1);
+		assertEquals(List.of(), output.frames);
+	}
+
+	private static boolean waitFor(final BooleanSupplier condition) throws InterruptedException {
+		for (int i = 0; i < 200 && !condition.getAsBoolean(); i++) {
+			Thread.sleep(10);
+		}
+		return condition.getAsBoolean();
+	}
+
+	private void start(final FrameSubscription subscription) {
+		new NonBlockingFrameStream(asyncContext, output, fanOut, subscription, scheduler).start();
+	}
+
+	/**
+	 * Publish a frame whose JPEG consists of its number only.
+	 */
+	private void publish(final int number) {
+		final Frame frame = pool.allocate(1);
+		frame.put(0, new byte[] { (byte) number }, 0, 1);
+		fanOut.publish(frame);
+	}
+
+	/**
+	 * Completes like the container, only once.
+	 */
+	private static final class AsyncContext extends MockAsyncContext {
+
+		private boolean completed;
+
+		private AsyncContext() {
+			super(new MockHttpServletRequest(), new MockHttpServletResponse());
+		}
+
+		@Override
+		public void complete() {
+			if (completed) {
+				throw new IllegalStateException("Already completed");
+			}
+			completed = true;
+			super.complete();
+		}
+	}
+
+	/**
+	 * A socket which can take a limited number of writes before the container has to call the write listener again.
+	 */
+	private static final class SocketOutput extends ServletOutputStream {
+
+		private final List<Integer> frames = new CopyOnWriteArrayList<>();
+
+		private int writesUntilBlocked = Integer.MAX_VALUE;
+
+		private WriteListener listener;
+
+		@Override
+		public boolean isReady() {
+			return writesUntilBlocked > 0;
+		}
+
+		@Override
+		public void setWriteListener(final WriteListener writeListener) {
+			listener = writeListener;
+			try {
+				writeListener.onWritePossible();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		@Override
+		public void write(final int b) {
+			throw new UnsupportedOperationException("Parts are written at once");
+		}
+
+		@Override
+		public void write(final byte[] data, final int offset, final int length) {
+			writesUntilBlocked--;
+			// the JPEG is the last byte of the part before the trailing line break
+			final byte[] part = Arrays.copyOfRange(data, offset, offset + length);
+			frames.add((int) part[part.length - 3]);
+		}
+
+		private void becomeReady() throws IOException {
+			listener.onWritePossible();
+		}
+	}
+}
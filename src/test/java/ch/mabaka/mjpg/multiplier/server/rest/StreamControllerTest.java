@@ -0,0 +1,102 @@
+package ch.mabaka.mjpg.multiplier.server.rest;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.util.unit.DataSize;
+
+import ch.mabaka.mjpg.multiplier.server.config.GatingProperties;
+import ch.mabaka.mjpg.multiplier.server.config.MosaicProperties;
+import ch.mabaka.mjpg.multiplier.server.config.MyStromProperties;
+import ch.mabaka.mjpg.multiplier.server.config.ProcessingProperties;
+import ch.mabaka.mjpg.multiplier.server.config.RecordingProperties;
+import ch.mabaka.mjpg.multiplier.server.config.ReplayProperties;
+import ch.mabaka.mjpg.multiplier.server.config.StreamSourcesProperties;
+import ch.mabaka.mjpg.multiplier.server.config.TranscodeProperties;
+import ch.mabaka.mjpg.multiplier.server.config.WatchdogProperties;
+import ch.mabaka.mjpg.multiplier.server.input.FrameStage;
+import ch.mabaka.mjpg.multiplier.server.input.SlowConsumerPolicy;
+import ch.mabaka.mjpg.multiplier.server.input.StreamRegistry;
+import ch.mabaka.mjpg.multiplier.server.input.data.Frame;
+import ch.mabaka.mjpg.multiplier.server.input.data.FrameBufferPool;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class StreamControllerTest {
+
+	private final FrameBufferPool pool = new FrameBufferPool(1024 * 1024);
+
+	private StreamRegistry streamRegistry;
+
+	private MockMvc mockMvc;
+
+	@BeforeEach
+	void setUp() {
+		final StreamSourcesProperties sources = new StreamSourcesProperties();
+		sources.setSources(List.of(source("front"), source("garden")));
+		final TranscodeProperties transcodeProperties = new TranscodeProperties();
+		transcodeProperties.getProfiles().put("thumb", new TranscodeProperties.Profile());
+		streamRegistry = new StreamRegistry(sources, new WatchdogProperties(), new GatingProperties(),
+				new ReplayProperties(), new MyStromProperties(), transcodeProperties, new RecordingProperties(),
+				new MosaicProperties(), new ProcessingProperties(),
+				new StaticListableBeanFactory().getBeanProvider(FrameStage.class), pool,
+				new SlowConsumerPolicy(SlowConsumerPolicy.Mode.RING_BUFFER, DataSize.ofMegabytes(8), 0, 0),
+				new SimpleMeterRegistry(), new ThreadPoolTaskScheduler());
+		final StreamController controller = new StreamController();
+		controller.streamRegistry = streamRegistry;
+		mockMvc = MockMvcBuilders.standaloneSetup(controller).build();
+	}
+
+	@AfterEach
+	void stop() {
+		streamRegistry.stop();
+	}
+
+	@Test
+	void routesTheNamedEndpointsToTheirSource() throws Exception {
+		publish("front", 1);
+		publish("garden", 2);
+
+		mockMvc.perform(get("/api/streams/garden/snapshot.jpg")).andExpect(status().isOk())
+				.andExpect(content().bytes(new byte[] { 2 }));
+		mockMvc.perform(get("/api/streams/front/snapshot.jpg")).andExpect(status().isOk())
+				.andExpect(content().bytes(new byte[] { 1 }));
+		// the first listed source is served on the unnamed endpoints without a default source
+		mockMvc.perform(get("/api/snapshot.jpg")).andExpect(content().bytes(new byte[] { 1 }));
+	}
+
+	@Test
+	void answersNotFoundForUnknownNames() throws Exception {
+		mockMvc.perform(get("/api/streams/garage/snapshot.jpg")).andExpect(status().isNotFound());
+		mockMvc.perform(get("/api/streams/garage/status")).andExpect(status().isNotFound());
+		mockMvc.perform(get("/api/streams/garage/stream.mjpg")).andExpect(status().isNotFound());
+		mockMvc.perform(get("/api/streams/front/stream.mjpg").param("profile", "large"))
+				.andExpect(status().isNotFound());
+		mockMvc.perform(get("/api/streams/front/stream.mjpg").param("output", "masked"))
+				.andExpect(status().isNotFound());
+		mockMvc.perform(get("/api/streams/front/stream.mjpg").param("profile", "thumb").param("output", "masked"))
+				.andExpect(status().isBadRequest());
+	}
+
+	private void publish(final String stream, final int number) {
+		final Frame frame = pool.allocate(1);
+		frame.put(0, new byte[] { (byte) number }, 0, 1);
+		streamRegistry.getPipeline(stream).getFanOut().publish(frame);
+	}
+
+	private static StreamSourcesProperties.Source source(final String name) {
+		final StreamSourcesProperties.Source source = new StreamSourcesProperties.Source();
+		source.setName(name);
+		source.setUrl("http://127.0.0.1:1/" + name + ".mjpg");
+		return source;
+	}
+}